@@ -0,0 +1,111 @@
+package it.beng.modeler.microservice.services;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import it.beng.modeler.microservice.actions.IncomingAction;
+import it.beng.modeler.microservice.actions.diagram.publish.BatchAction;
+import it.beng.modeler.microservice.actions.diagram.publish.CreateThingsAction;
+import it.beng.modeler.microservice.actions.diagram.publish.DeleteThingsAction;
+import it.beng.modeler.microservice.actions.diagram.publish.UpdateThingsAction;
+import it.beng.modeler.microservice.actions.diagram.send.LoadDefinitionAction;
+import it.beng.modeler.microservice.actions.diagram.send.LoadDefinitionSinceAction;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Per message overhead of the incoming actions: parse, dispatch (factory lookup and creation) and validate.</p>
+ * Every registered action type MUST have a sample message here, the setup fails otherwise.
+ * Run with {@code mvn -P develop,benchmark verify}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ActionDispatchBenchmark {
+
+    private static final String ADDRESS = "cpd::diagram";
+    private static final String DIAGRAM_ID = UUID.randomUUID().toString();
+    private static final int THINGS = 10;
+
+    @Param({
+        CreateThingsAction.TYPE,
+        UpdateThingsAction.TYPE,
+        DeleteThingsAction.TYPE,
+        LoadDefinitionAction.TYPE,
+        LoadDefinitionSinceAction.TYPE,
+        BatchAction.TYPE
+    })
+    public String type;
+
+    private String message;
+    private JsonObject parsed;
+
+    private static JsonObject thing(int i) {
+        return new JsonObject()
+            .put("id", UUID.randomUUID().toString())
+            .put("$domain", "Model.FPMN.Interaction.Task")
+            .put("name", "task " + i)
+            .put("parentId", DIAGRAM_ID)
+            .put("bounds", new JsonObject().put("x", 10 * i).put("y", 20).put("width", 120).put("height", 60));
+    }
+
+    private static JsonArray things() {
+        final JsonArray things = new JsonArray();
+        for (int i = 0; i < THINGS; i++) things.add(thing(i));
+        return things;
+    }
+
+    private static Map<String, JsonObject> samples() {
+        final Map<String, JsonObject> samples = new HashMap<>();
+        samples.put(CreateThingsAction.TYPE, new JsonObject().put("things", things()));
+        final JsonArray updates = new JsonArray();
+        things().forEach(thing -> updates.add(new JsonObject()
+            .put("id", ((JsonObject) thing).getString("id"))
+            .put("$domain", ((JsonObject) thing).getString("$domain"))
+            .put("version", 1)
+            .put("changes", new JsonObject().put("bounds", new JsonObject().put("x", 42)))));
+        samples.put(UpdateThingsAction.TYPE, new JsonObject().put("updates", updates));
+        samples.put(DeleteThingsAction.TYPE, new JsonObject().put("things", things()));
+        samples.put(LoadDefinitionAction.TYPE, new JsonObject());
+        samples.put(LoadDefinitionSinceAction.TYPE, new JsonObject().put("revision", 42));
+        samples.put(BatchAction.TYPE, new JsonObject().put("actions", new JsonArray()
+            .add(samples.get(CreateThingsAction.TYPE).copy().put("type", CreateThingsAction.TYPE))
+            .add(samples.get(UpdateThingsAction.TYPE).copy().put("type", UpdateThingsAction.TYPE))
+            .add(samples.get(DeleteThingsAction.TYPE).copy().put("type", DeleteThingsAction.TYPE))));
+        samples.forEach((type, sample) -> sample
+            .put("address", ADDRESS)
+            .put("type", type)
+            .put("diagramId", DIAGRAM_ID));
+        return samples;
+    }
+
+    @Setup
+    public void setup() throws ClassNotFoundException {
+        // registers the diagram actions
+        Class.forName(DiagramActionService.class.getName());
+        final Map<String, JsonObject> samples = samples();
+        for (String registered : ActionService.incomingActionTypes())
+            if (!samples.containsKey(registered))
+                throw new IllegalStateException("no sample message for action type " + registered);
+        message = samples.get(type).encode();
+        parsed = new JsonObject(message);
+    }
+
+    @Benchmark
+    public IncomingAction parseDispatchValidate() {
+        return ActionService.createIncomingAction(new JsonObject(message));
+    }
+
+    // creating and validating an action does not modify its json: it can be parsed once
+    @Benchmark
+    public IncomingAction dispatchValidate() {
+        return ActionService.createIncomingAction(parsed);
+    }
+
+}
@@ -0,0 +1,115 @@
+package it.beng.modeler.microservice.utils;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * <p>Building all the mongo commands: binding the compiled {@link CommandTemplates} against substituting the
+ * parameters in the template text and parsing it (the way commands were built before).</p>
+ * Each parameter gets a dummy value of its type. The templates are read from {@code -Dcpd.commands} (the deploy
+ * bundle commands by default). Run with {@code mvn -P develop,benchmark verify}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CommandTemplatesBenchmark {
+
+    private static final String COMMANDS = "src/main/deploy-bundle/data/db/commands/";
+    private static final Pattern SLOT = Pattern.compile("\"\\{([A-Za-z]\\w*)(?::\\w+)?\\??}\"");
+
+    private Vertx vertx;
+    private final List<CommandTemplates.Template> templates = new ArrayList<>();
+    private final List<String> sources = new ArrayList<>();
+    // for each template: parameter -> its slots, as they are in the source
+    private final List<Map<String, Set<String>>> slots = new ArrayList<>();
+    private final List<JsonObject> parameters = new ArrayList<>();
+
+    private static Object dummy(String type) {
+        switch (type) {
+            case "number":
+                return 0;
+            case "boolean":
+                return false;
+            case "object":
+                return new JsonObject();
+            case "array":
+                return new JsonArray();
+            default:
+                return "dummy";
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        final String directory = System.getProperty("cpd.commands", COMMANDS);
+        vertx = Vertx.vertx();
+        CommandTemplates.compile(vertx, directory);
+        final Path root = Paths.get(directory);
+        final List<Path> files;
+        try (Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(path -> path.toString().endsWith(".json")).sorted().collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            final String relative = root.relativize(file).toString().replace('\\', '/');
+            final CommandTemplates.Template template =
+                CommandTemplates.get(relative.substring(0, relative.length() - ".json".length()));
+            final String source = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+            final Map<String, Set<String>> templateSlots = new HashMap<>();
+            final Matcher slot = SLOT.matcher(source);
+            while (slot.find())
+                templateSlots.computeIfAbsent(slot.group(1), name -> new HashSet<>()).add(slot.group());
+            final JsonObject templateParameters = new JsonObject();
+            template.parameters().forEach(parameter ->
+                templateParameters.put(parameter.getKey(), dummy((String) parameter.getValue())));
+            templates.add(template);
+            sources.add(source);
+            slots.add(templateSlots);
+            parameters.add(templateParameters);
+        }
+        if (templates.isEmpty()) throw new IllegalStateException("no command templates in " + directory);
+    }
+
+    @TearDown
+    public void tearDown() {
+        vertx.close();
+    }
+
+    @Benchmark
+    public void bind(Blackhole blackhole) {
+        for (int i = 0; i < templates.size(); i++)
+            blackhole.consume(templates.get(i).bind(parameters.get(i)));
+    }
+
+    @Benchmark
+    public void substitute(Blackhole blackhole) {
+        for (int i = 0; i < templates.size(); i++) {
+            String command = sources.get(i);
+            for (Map.Entry<String, Object> parameter : parameters.get(i)) {
+                final String encoded = Json.encode(parameter.getValue());
+                for (String slot : slots.get(i).getOrDefault(parameter.getKey(), Collections.emptySet()))
+                    command = command.replace(slot, encoded);
+            }
+            blackhole.consume(new JsonObject(command));
+        }
+    }
+
+}
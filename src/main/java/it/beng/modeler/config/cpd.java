@@ -1,7 +1,11 @@
 package it.beng.modeler.config;
 
+import com.hazelcast.core.Cluster;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.DeliveryOptions;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.mongo.MongoClient;
@@ -10,8 +14,17 @@ import it.beng.microservice.common.AsyncHandler;
 import it.beng.microservice.common.Countdown;
 import it.beng.microservice.db.MongoDB;
 import it.beng.microservice.schema.SchemaTools;
+import it.beng.modeler.microservice.cache.ExtensionsIndex;
+import it.beng.modeler.microservice.metrics.Metrics;
+import it.beng.modeler.microservice.processengine.ProcessDefinitions;
+import it.beng.modeler.microservice.processengine.ProcessEngineService;
+import it.beng.modeler.microservice.processengine.ProcessEngineVerticle;
 import it.beng.modeler.microservice.subroute.CollaborationsSubRoute;
+import it.beng.modeler.microservice.feedback.FeedbackQueue;
+import it.beng.modeler.microservice.summaries.ProcedureSummaries;
+import it.beng.modeler.microservice.utils.CommandTemplates;
 import it.beng.modeler.microservice.utils.CommonUtils;
+import it.beng.modeler.microservice.utils.DBIndexes;
 import it.beng.modeler.microservice.utils.DBUtils;
 import it.beng.modeler.model.Domain;
 import org.apache.logging.log4j.LogManager;
@@ -42,6 +55,8 @@ public final class cpd {
         put("id", "_id");
         put("$domain", "\uFF04domain");
         put("$ignore", "\uFF04ignore");
+        put("$version", "\uFF04version");
+        put("$write", "\uFF04write");
     }};
     private static final Map<String, String> SCHEMA_MAPPINGS_EXTENSION = new HashMap<String, String>() {{
         put("$date", "\uFF04date");
@@ -63,10 +78,12 @@ public final class cpd {
     private static String _version;
     private static boolean _develop;
     private static MongoClient _mongoClient;
+    private static Cluster _cluster;
     private static MongoDB _rawDB;
     private static MongoDB _dataDB;
     private static MongoDB _schemaDB;
     private static ProcessEngine _processEngine;
+    private static ProcessEngineService _processEngineService;
     //    private static IdmEngine _idm;
     private static SchemaTools _schemaTools;
 
@@ -151,6 +168,45 @@ public final class cpd {
             public static String expireAfterAccess;
         }
 
+        public static class processEngine {
+            public static int workerPoolSize;
+            public static long sendTimeout;
+        }
+
+        public static class journal {
+            public static int maxGap;
+            public static int history;
+            public static int snapshotEvery;
+            public static long snapshotPeriod;
+        }
+
+        public static class templates {
+            public static String initial;
+            public static int batchSize;
+        }
+
+        public static class jobs {
+            public static int chunkSize;
+            public static long retention;
+        }
+
+        public static class feedback {
+            public static int batchSize;
+            public static boolean synchronous;
+            public static String queuePath;
+            public static int flushSize;
+            public static long flushInterval;
+            public static int capacity;
+        }
+
+        public static class summaries {
+            public static long refreshDelay;
+        }
+
+        public static class metrics {
+            public static String scrapeToken;
+        }
+
         public static class schema {
             public static String path;
 
@@ -174,6 +230,29 @@ public final class cpd {
         public static class eventBus {
             public static String path;
             public static String diagramAddress;
+
+            public static class outbound {
+                public static int maxQueued;
+                public static long maxSaturation;
+                public static boolean resync;
+            }
+
+            public static class mailbox {
+                public static long taskTimeout;
+            }
+
+            public static class ownership {
+                public static int virtualNodes;
+                public static long forwardTimeout;
+                public static long membershipPeriod;
+            }
+
+            public static class presence {
+                public static String address;
+                public static long tick;
+                public static int maxRate;
+                public static int maxStateSize;
+            }
         }
 
         public static class assets {
@@ -275,8 +354,9 @@ public final class cpd {
     public static void setup(final Vertx vertx, final JsonObject config, AsyncHandler<Void> complete) {
         _version = config.getString("version");
         _develop = config.getBoolean("develop", false);
+        _cluster = vertx.isClustered() ? hazelcastCluster() : null;
 
-        final Countdown setupStage = new Countdown(9);
+        final Countdown setupStage = new Countdown(14);
 
         final AsyncHandler<Void> setupStageHandler = c -> {
             if (c.succeeded()) setupStage.next();
@@ -326,6 +406,37 @@ public final class cpd {
                             }
                         );
                         break;
+                    case 9:
+                        // (5) process engine service => setupStep: 9
+                        vertx.deployVerticle(
+                            ProcessEngineVerticle.class.getName(),
+                            ProcessEngineVerticle.deploymentOptions(),
+                            deploy -> {
+                                if (deploy.succeeded()) {
+                                    _processEngineService = ProcessEngineService.createProxy(vertx,
+                                        new DeliveryOptions().setSendTimeout(server.processEngine.sendTimeout));
+                                    Metrics.register("processEngine", ProcessEngineService::metrics);
+                                    setupStage.next();
+                                } else setupStage.fail(deploy.cause());
+                            }
+                        );
+                        break;
+                    case 10:
+                        // (6) extensions index => setupStep: 10
+                        ExtensionsIndex.load(setupStageHandler);
+                        break;
+                    case 11:
+                        // (7) database indexes => setupStep: 11
+                        DBIndexes.ensure(vertx, setupStageHandler);
+                        break;
+                    case 12:
+                        // (8) procedure summaries => setupStep: 12
+                        ProcedureSummaries.start(vertx, setupStageHandler);
+                        break;
+                    case 13:
+                        // (9) feedback queue => setupStep: 13
+                        FeedbackQueue.start(vertx, setupStageHandler);
+                        break;
                 }
             }
         }).onComplete(setupComplete -> {
@@ -377,6 +488,46 @@ public final class cpd {
         cpd.server.cacheBuilder.maximumSize = node.getInteger("maximumSize", 1000);
         cpd.server.cacheBuilder.expireAfterAccess = node.getString("expireAfterAccess", "60m");
 
+        /* server.processEngine */
+        node = config.getJsonObject("server").getJsonObject("processEngine", new JsonObject());
+        cpd.server.processEngine.workerPoolSize = node.getInteger("workerPoolSize", 4);
+        cpd.server.processEngine.sendTimeout = CommonUtils.parseDuration(node.getString("sendTimeout", "30s"));
+
+        /* server.journal */
+        node = config.getJsonObject("server").getJsonObject("journal", new JsonObject());
+        cpd.server.journal.maxGap = Math.max(1, node.getInteger("maxGap", 200));
+        cpd.server.journal.history = Math.max(cpd.server.journal.maxGap, node.getInteger("history", 1000));
+        cpd.server.journal.snapshotEvery = Math.max(1, Math.min(cpd.server.journal.maxGap, node.getInteger("snapshotEvery", 50)));
+        cpd.server.journal.snapshotPeriod = CommonUtils.parseDuration(node.getString("snapshotPeriod", "1m"));
+
+        /* server.templates */
+        node = config.getJsonObject("server").getJsonObject("templates", new JsonObject());
+        cpd.server.templates.initial = node.getString("initial", "").trim();
+        cpd.server.templates.batchSize = Math.max(1, node.getInteger("batchSize", 500));
+
+        /* server.jobs */
+        node = config.getJsonObject("server").getJsonObject("jobs", new JsonObject());
+        cpd.server.jobs.chunkSize = Math.max(1, node.getInteger("chunkSize", 20));
+        cpd.server.jobs.retention = CommonUtils.parseDuration(node.getString("retention", "1h"));
+
+        /* server.feedback */
+        node = config.getJsonObject("server").getJsonObject("feedback", new JsonObject());
+        cpd.server.feedback.batchSize = Math.max(1, node.getInteger("batchSize", 500));
+        cpd.server.feedback.synchronous = node.getBoolean("synchronous", false);
+        cpd.server.feedback.queuePath = node.getString("queuePath", DATA_PATH + "feedback-queue/");
+        cpd.server.feedback.flushSize = Math.max(1, node.getInteger("flushSize", 100));
+        cpd.server.feedback.flushInterval =
+            Math.max(1, CommonUtils.parseDuration(node.getString("flushInterval", "1s")));
+        cpd.server.feedback.capacity = Math.max(1, node.getInteger("capacity", 10000));
+
+        /* server.summaries */
+        node = config.getJsonObject("server").getJsonObject("summaries", new JsonObject());
+        cpd.server.summaries.refreshDelay = CommonUtils.parseDuration(node.getString("refreshDelay", "2s"));
+
+        /* server.metrics */
+        node = config.getJsonObject("server").getJsonObject("metrics", new JsonObject());
+        cpd.server.metrics.scrapeToken = node.getString("scrapeToken", "");
+
         /* server.schema */
         node = config.getJsonObject("server").getJsonObject("schema");
         cpd.server.schema.path = checkPath(node.getString("path", "schema/"), true);
@@ -393,6 +544,21 @@ public final class cpd {
         node = config.getJsonObject("server").getJsonObject("eventBus");
         cpd.server.eventBus.path = checkPath(node.getString("path", "eventbus/"), true);
         cpd.server.eventBus.diagramAddress = node.getString("diagramAddress", "cpd::diagram");
+        node = node.getJsonObject("outbound", new JsonObject());
+        cpd.server.eventBus.outbound.maxQueued = Math.max(1, node.getInteger("maxQueued", 500));
+        cpd.server.eventBus.outbound.maxSaturation = CommonUtils.parseDuration(node.getString("maxSaturation", "30s"));
+        cpd.server.eventBus.outbound.resync = node.getBoolean("resync", true);
+        node = config.getJsonObject("server").getJsonObject("eventBus").getJsonObject("mailbox", new JsonObject());
+        cpd.server.eventBus.mailbox.taskTimeout = Math.max(1, CommonUtils.parseDuration(node.getString("taskTimeout", "20s")));
+        node = config.getJsonObject("server").getJsonObject("eventBus").getJsonObject("ownership", new JsonObject());
+        cpd.server.eventBus.ownership.virtualNodes = Math.max(1, node.getInteger("virtualNodes", 128));
+        cpd.server.eventBus.ownership.forwardTimeout = CommonUtils.parseDuration(node.getString("forwardTimeout", "30s"));
+        cpd.server.eventBus.ownership.membershipPeriod = CommonUtils.parseDuration(node.getString("membershipPeriod", "2s"));
+        node = config.getJsonObject("server").getJsonObject("eventBus").getJsonObject("presence", new JsonObject());
+        cpd.server.eventBus.presence.address = node.getString("address", "cpd::presence");
+        cpd.server.eventBus.presence.tick = Math.max(1, CommonUtils.parseDuration(node.getString("tick", "100ms")));
+        cpd.server.eventBus.presence.maxRate = Math.max(1, node.getInteger("maxRate", 20));
+        cpd.server.eventBus.presence.maxStateSize = node.getInteger("maxStateSize", 2048);
 
         /* server.assets */
         node = config.getJsonObject("server").getJsonObject("assets");
@@ -464,6 +630,13 @@ public final class cpd {
             DB_PATH + "commands/",
             DATA_MAPPINGS);
 
+        try {
+            CommandTemplates.compile(vertx, DB_PATH + "commands/");
+        } catch (RuntimeException e) {
+            complete.handle(Future.failedFuture(e));
+            return null;
+        }
+
         complete.handle(Future.succeededFuture());
         return null;
     }
@@ -521,13 +694,11 @@ public final class cpd {
                                                 aggregatesCount.fail(done.cause());
                                         });
                                     pipelines.forEach(pipeline -> {
-                                        rawDB().runCommand("aggregate",
-                                            rawDB().command("aggregate", new HashMap<String, String>() {{
-                                                put("aggregate", collection);
-                                                put("pipeline", ((JsonArray) pipeline).encode());
-                                            }}), command -> {
+                                        CommandTemplates.rawAggregate("aggregate", new JsonObject()
+                                                .put("aggregate", collection)
+                                                .put("pipeline", pipeline), command -> {
                                                 if (command.succeeded()) {
-                                                    JsonArray result = command.result().getJsonArray("result");
+                                                    JsonArray result = command.result();
                                                     Countdown resultCount = new Countdown(result.size())
                                                         .onComplete(done -> {
                                                             if (done.succeeded())
@@ -587,6 +758,8 @@ public final class cpd {
         }
 
         _processEngine = new StandaloneProcessEngineConfiguration()
+            // keep the process definitions metadata up to date with new deployments
+            .setTypedEventListeners(ProcessDefinitions.deploymentListeners())
             .setJdbcUrl("jdbc:h2:file:./process-engine/database")
             .setJdbcUsername("sa")
             .setJdbcPassword("")
@@ -595,6 +768,7 @@ public final class cpd {
             .buildProcessEngine();
 
         RepositoryService repositoryService = _processEngine.getRepositoryService();
+        ProcessDefinitions.warm(repositoryService);
 
         if (VERSION_CHANGED || repositoryService.createDeploymentQuery()
                                                 .deploymentCategory(Process.CATEGORY)
@@ -651,6 +825,25 @@ public final class cpd {
         return _mongoClient;
     }
 
+    /**
+     * @return the cluster this node has joined, or {@code null} if vert.x is not clustered
+     */
+    public static Cluster cluster() {
+        return _cluster;
+    }
+
+    /**
+     * The clustered vert.x is started by the launcher, with the hazelcast cluster manager: its hazelcast
+     * instance is the only one of this JVM.
+     */
+    private static Cluster hazelcastCluster() {
+        final Set<HazelcastInstance> instances = Hazelcast.getAllHazelcastInstances();
+        if (instances.size() != 1)
+            throw new IllegalStateException("expected the hazelcast instance of the cluster manager, found "
+                + instances.size());
+        return instances.iterator().next().getCluster();
+    }
+
     private static MongoDB rawDB() {
         return _rawDB;
     }
@@ -663,10 +856,18 @@ public final class cpd {
         return _dataDB;
     }
 
+    public static Map<String, String> dataMappings() {
+        return Collections.unmodifiableMap(DATA_MAPPINGS);
+    }
+
     public static ProcessEngine processEngine() {
         return _processEngine;
     }
 
+    public static ProcessEngineService processEngineService() {
+        return _processEngineService;
+    }
+
     public static SchemaTools schemaTools() {
         return _schemaTools;
     }
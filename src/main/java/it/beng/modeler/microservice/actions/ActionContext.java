@@ -0,0 +1,85 @@
+package it.beng.modeler.microservice.actions;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.auth.AbstractUser;
+import io.vertx.ext.auth.AuthProvider;
+import io.vertx.ext.auth.User;
+import io.vertx.ext.web.RoutingContext;
+import it.beng.modeler.config.cpd;
+import it.beng.modeler.microservice.utils.AuthUtils;
+
+/**
+ * <p>The user (and language) an incoming action is handled for.</p>
+ * It is taken from the routing context of the socket the action comes from or, when the action is
+ * forwarded to the cluster node that owns its diagram, from the {@link #toJson() json} forwarded with it.
+ */
+public final class ActionContext {
+
+    private final RoutingContext context;
+    private final User user;
+    private final String lang;
+
+    private ActionContext(RoutingContext context, User user, String lang) {
+        this.context = context;
+        this.user = user;
+        this.lang = lang;
+    }
+
+    public static ActionContext of(RoutingContext context) {
+        return new ActionContext(context, context != null ? context.user() : null, context != null ? null : "en");
+    }
+
+    public static ActionContext fromJson(JsonObject json) {
+        final JsonObject account = json.getJsonObject("account");
+        return new ActionContext(null, account != null ? new ForwardedUser(account) : null, json.getString("lang", "en"));
+    }
+
+    /**
+     * @return the account and the language of the user, the only things that can be forwarded
+     */
+    public JsonObject toJson() {
+        final JsonObject json = new JsonObject();
+        if (user != null) json.put("account", account()).put("lang", lang());
+        return json;
+    }
+
+    public User user() {
+        return user;
+    }
+
+    public JsonObject account() {
+        return AuthUtils.getAccount(user);
+    }
+
+    public String lang() {
+        // resolved on demand: the socket may not have sent any acceptable language
+        return lang != null ? lang : cpd.languageCode(context);
+    }
+
+    private static final class ForwardedUser extends AbstractUser {
+        private final JsonObject principal;
+
+        ForwardedUser(JsonObject account) {
+            principal = new JsonObject().put("account", account);
+        }
+
+        @Override
+        protected void doIsPermitted(String permission, Handler<AsyncResult<Boolean>> handler) {
+            // authorities are checked against the account roles, never against the auth provider
+            handler.handle(Future.succeededFuture(false));
+        }
+
+        @Override
+        public JsonObject principal() {
+            return principal;
+        }
+
+        @Override
+        public void setAuthProvider(AuthProvider authProvider) {
+        }
+    }
+
+}
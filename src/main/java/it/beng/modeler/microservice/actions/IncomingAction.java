@@ -3,7 +3,6 @@ package it.beng.modeler.microservice.actions;
 import io.vertx.core.AsyncResult;
 import io.vertx.core.Handler;
 import io.vertx.core.json.JsonObject;
-import io.vertx.ext.web.RoutingContext;
 import it.beng.microservice.common.AsyncHandler;
 
 public abstract class IncomingAction extends Action {
@@ -18,5 +17,5 @@ public abstract class IncomingAction extends Action {
         return super.isValid() && type().equals(innerType());
     }
 
-    public abstract void handle(RoutingContext context, AsyncHandler<JsonObject> handler);
+    public abstract void handle(ActionContext context, AsyncHandler<JsonObject> handler);
 }
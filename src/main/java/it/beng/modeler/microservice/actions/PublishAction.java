@@ -4,7 +4,6 @@ import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.json.JsonObject;
-import io.vertx.ext.web.RoutingContext;
 import it.beng.microservice.common.AsyncHandler;
 
 public abstract class PublishAction extends IncomingAction {
@@ -13,7 +12,7 @@ public abstract class PublishAction extends IncomingAction {
     }
 
     @Override
-    public void handle(RoutingContext context, AsyncHandler<JsonObject> handler) {
+    public void handle(ActionContext context, AsyncHandler<JsonObject> handler) {
         handler.handle(Future.succeededFuture(json));
     }
 }
@@ -1,23 +1,37 @@
 package it.beng.modeler.microservice.actions.diagram.publish;
 
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
 import io.vertx.core.Future;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
-import io.vertx.ext.web.RoutingContext;
+import io.vertx.ext.mongo.BulkOperation;
 import it.beng.microservice.common.AsyncHandler;
 import it.beng.microservice.common.Countdown;
+import it.beng.modeler.microservice.actions.ActionContext;
 import it.beng.modeler.microservice.actions.diagram.DiagramAction;
 import it.beng.modeler.microservice.actions.diagram.DiagramPublishAction;
+import it.beng.modeler.microservice.cache.DefinitionCache;
+import it.beng.modeler.microservice.journal.DiagramJournal;
+import it.beng.modeler.microservice.summaries.ProcedureSummaries;
 import it.beng.modeler.microservice.utils.AuthUtils;
 import it.beng.modeler.microservice.utils.DBUtils;
+import it.beng.modeler.model.Domain;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.List;
+import java.util.*;
+import java.util.stream.Collectors;
 
 public abstract class AuthorizedAction extends DiagramPublishAction implements DiagramAction {
+    private static final Logger logger = LogManager.getLogger(AuthorizedAction.class);
 
     private static final Collection<String> roles = Arrays.asList("owner", "reviewer", "editor");
 
+    public static final String OK = "ok";
+    static final String FAILED = "failed";
+    static final String SKIPPED = "skipped";
+
     AuthorizedAction(JsonObject action) {
         super(action);
     }
@@ -28,15 +42,33 @@ public abstract class AuthorizedAction extends DiagramPublishAction implements D
     }
 
     @Override
-    public void handle(RoutingContext context, AsyncHandler<JsonObject> handler) {
-        DBUtils.team(diagramId(), team -> {
+    public void handle(ActionContext context, AsyncHandler<JsonObject> handler) {
+        authorize(context, diagramId(), authorize -> {
+            if (authorize.failed()) {
+                handler.handle(Future.failedFuture(authorize.cause()));
+                return;
+            }
+            execute(diagramId(), Collections.singletonList(this), execute -> {
+                if (execute.succeeded())
+                    handler.handle(Future.succeededFuture(json));
+                else
+                    handler.handle(Future.failedFuture(execute.cause()));
+            });
+        });
+    }
+
+    /**
+     * Succeeds if the user is an admin or has a role allowed to change the diagram.
+     */
+    static void authorize(ActionContext context, String diagramId, AsyncHandler<Void> handler) {
+        DBUtils.team(diagramId, team -> {
             if (team.succeeded()) {
                 if (AuthUtils.isAdmin(context.user())) {
-                    afterAuthorizationIsGranted(handler);
-                } else DiagramAction.isPermitted(AuthUtils.getAccount(context), team.result(), roles, isPermitted -> {
+                    handler.handle(Future.succeededFuture());
+                } else DiagramAction.isPermitted(context.account(), team.result(), roles, isPermitted -> {
                     if (isPermitted.succeeded()) {
                         if (isPermitted.result()) {
-                            afterAuthorizationIsGranted(handler);
+                            handler.handle(Future.succeededFuture());
                         } else {
                             handler.handle(Future.failedFuture("unauthorized"));
                         }
@@ -48,20 +80,269 @@ public abstract class AuthorizedAction extends DiagramPublishAction implements D
         });
     }
 
-    private void afterAuthorizationIsGranted(AsyncHandler<JsonObject> handler) {
-        final Countdown countdown = new Countdown(this.items()).onComplete(zero -> {
-            handler.handle(Future.succeededFuture(json));
+    /**
+     * Executes (already authorized) actions on the same diagram under a single revision: the items of all actions
+     * are written in order with one ordered bulk write per collection and journaled as a single entry.
+     * Each action gets its {@code results} and {@code revision}: a partial failure still succeeds (and is published),
+     * with the items not written marked as failed or skipped in the results.
+     *
+     * @return the revision, or {@code null} if the actions have no items (nothing is journaled then)
+     */
+    static void execute(String diagramId, List<AuthorizedAction> actions, AsyncHandler<Long> handler) {
+        final Countdown countdown = new Countdown(actions.size()).onComplete(prepare -> {
+            if (prepare.succeeded())
+                collect(diagramId, actions, handler);
+            else
+                handler.handle(Future.failedFuture(prepare.cause()));
         });
-        this.items().forEach(item -> this.forEach(item, done -> {
-            if (done.failed()) {
-                handler.handle(Future.failedFuture(done.cause()));
-                throw new RuntimeException(done.cause());
-            }
-            countdown.next();
+        actions.forEach(action -> action.prepare(prepare -> {
+            if (prepare.succeeded())
+                countdown.next();
+            else
+                countdown.fail(prepare.cause());
         }));
     }
 
+    private static void collect(String diagramId, List<AuthorizedAction> actions, AsyncHandler<Long> handler) {
+        // the action of each item
+        final List<AuthorizedAction> owners = new ArrayList<>();
+        final List<JsonObject> items = new ArrayList<>();
+        for (AuthorizedAction action : actions) {
+            for (JsonObject item : action.items()) {
+                owners.add(action);
+                items.add(item);
+            }
+        }
+
+        // group items by target collection (keeping their relative order) so that
+        // each collection receives exactly one ordered bulk write
+        final Map<String, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < items.size(); i++) {
+            final String collection = owners.get(i).collection(items.get(i));
+            if (collection == null) {
+                handler.handle(Future.failedFuture("unknown $domain for item " + owners.get(i).itemId(items.get(i))));
+                return;
+            }
+            groups.computeIfAbsent(collection, key -> new ArrayList<>()).add(i);
+        }
+
+        if (groups.isEmpty()) {
+            actions.forEach(action -> action.json.put("results", new JsonArray()));
+            handler.handle(Future.succeededFuture(null));
+            return;
+        }
+
+        // the revision is taken before writing, so that a failure here leaves the diagram untouched
+        DiagramJournal.nextRevision(diagramId, nextRevision -> {
+            if (nextRevision.succeeded())
+                write(diagramId, actions, owners, items, groups, nextRevision.result(), handler);
+            else
+                handler.handle(Future.failedFuture(nextRevision.cause()));
+        });
+    }
+
+    private static void write(String diagramId, List<AuthorizedAction> actions, List<AuthorizedAction> owners,
+                              List<JsonObject> items, Map<String, List<Integer>> groups, long revision,
+                              AsyncHandler<Long> handler) {
+        final JsonObject[] results = new JsonObject[items.size()];
+
+        final Countdown countdown = new Countdown(groups.size()).onComplete(zero ->
+            confirm(actions, owners, items, results, confirm -> {
+                if (confirm.failed()) {
+                    // no journal entry: the missing revision makes clients reload the whole definition
+                    DefinitionCache.invalidate(diagramId);
+                    handler.handle(Future.failedFuture(confirm.cause()));
+                    return;
+                }
+                afterConfirm(diagramId, actions, owners, items, results, revision, handler);
+            }));
+
+        groups.forEach((collection, indexes) -> {
+            final List<BulkOperation> operations = indexes.stream()
+                                                          .map(i -> owners.get(i).operation(items.get(i)))
+                                                          .collect(Collectors.toList());
+            DBUtils.bulkWrite(collection, operations, bulkWrite -> {
+                // the write is ordered: items before the first error are written, items after it are skipped
+                int failedAt = -1;
+                String message = null;
+                if (bulkWrite.failed()) {
+                    failedAt = 0;
+                    message = bulkWrite.cause().getLocalizedMessage();
+                    if (bulkWrite.cause() instanceof MongoBulkWriteException) {
+                        final List<BulkWriteError> errors =
+                            ((MongoBulkWriteException) bulkWrite.cause()).getWriteErrors();
+                        if (!errors.isEmpty()) {
+                            failedAt = errors.get(0).getIndex();
+                            message = errors.get(0).getMessage();
+                        }
+                    }
+                }
+                for (int j = 0; j < indexes.size(); j++) {
+                    final int i = indexes.get(j);
+                    final JsonObject result = new JsonObject()
+                        .put("id", owners.get(i).itemId(items.get(i)))
+                        .put("collection", collection);
+                    if (failedAt < 0 || j < failedAt) {
+                        result.put("status", OK);
+                    } else if (j == failedAt) {
+                        result.put("status", FAILED).put("message", message);
+                    } else {
+                        result.put("status", SKIPPED);
+                    }
+                    results[i] = result;
+                }
+                countdown.next();
+            });
+        });
+    }
+
+    /**
+     * Lets each action confirm the items reported as written, marking the rejected ones as failed.
+     */
+    private static void confirm(List<AuthorizedAction> actions, List<AuthorizedAction> owners,
+                                List<JsonObject> items, JsonObject[] results, AsyncHandler<Void> handler) {
+        final Countdown countdown = new Countdown(actions.size()).onComplete(handler);
+        for (AuthorizedAction action : actions) {
+            final List<Integer> reported = new LinkedList<>();
+            for (int i = 0; i < items.size(); i++)
+                if (owners.get(i) == action && OK.equals(results[i].getString("status"))) reported.add(i);
+            action.confirm(reported.stream().map(items::get).collect(Collectors.toList()), confirm -> {
+                if (confirm.failed()) {
+                    countdown.fail(confirm.cause());
+                    return;
+                }
+                final Iterator<String> rejections = confirm.result().iterator();
+                for (int i : reported) {
+                    final String rejection = rejections.next();
+                    if (rejection != null) results[i].put("status", FAILED).put("message", rejection);
+                }
+                countdown.next();
+            });
+        }
+    }
+
+    private static void afterConfirm(String diagramId, List<AuthorizedAction> actions, List<AuthorizedAction> owners,
+                                     List<JsonObject> items, JsonObject[] results, long revision,
+                                     AsyncHandler<Long> handler) {
+        final Map<AuthorizedAction, List<JsonObject>> written = new LinkedHashMap<>();
+        final List<JsonObject> entries = new LinkedList<>();
+        final List<JsonObject> failures = new LinkedList<>();
+        int notWritten = 0;
+        boolean modelsWritten = false;
+        for (AuthorizedAction action : actions) {
+            final JsonArray actionResults = new JsonArray();
+            final List<JsonObject> actionWritten = new LinkedList<>();
+            for (int i = 0; i < items.size(); i++) {
+                if (owners.get(i) != action) continue;
+                actionResults.add(results[i]);
+                if (OK.equals(results[i].getString("status"))) {
+                    actionWritten.add(items.get(i));
+                    modelsWritten |= Domain.Collection.MODELS.equals(results[i].getString("collection"));
+                } else {
+                    notWritten++;
+                    if (FAILED.equals(results[i].getString("status"))) failures.add(results[i]);
+                }
+            }
+            action.json.put("results", actionResults).put("revision", revision);
+            written.put(action, actionWritten);
+            entries.add(new JsonObject()
+                .put(DiagramJournal.CREATED, new JsonArray())
+                .put(DiagramJournal.UPDATED, new JsonArray())
+                .put(DiagramJournal.DELETED, new JsonArray())
+                .put(action.change(), new JsonArray(
+                    actionWritten.stream().map(action::journaled).collect(Collectors.toList()))));
+        }
+        // an entry is journaled even if nothing was written: a missing revision would force clients to reload
+        DiagramJournal.append(diagramId, revision, DiagramJournal.fold(entries), append -> {
+            if (append.failed())
+                logger.error("could not journal revision " + revision + " of diagram " + diagramId
+                    + ": " + append.cause().getMessage());
+        });
+        // procedure summaries are made of models only
+        if (modelsWritten) ProcedureSummaries.changed(diagramId);
+        final int total = items.size();
+        final int unwritten = notWritten;
+        afterWrite(written.entrySet().iterator(), null, done -> {
+            if (unwritten == total && !failures.isEmpty()) {
+                handler.handle(Future.failedFuture(
+                    "no item written: " + failures.get(0).getString("message")));
+                return;
+            }
+            // whatever has been written is published, the results telling which items failed or were skipped
+            if (!failures.isEmpty())
+                logger.warn(unwritten + " of " + total + " items not written in revision " + revision
+                    + " of diagram " + diagramId + ": " + failures.get(0).getString("message"));
+            if (done.failed())
+                logger.error("after write of revision " + revision + " of diagram " + diagramId + " failed: "
+                    + done.cause().getMessage());
+            handler.handle(Future.succeededFuture(revision));
+        });
+    }
+
+    /**
+     * Runs {@link #afterWrite(List, AsyncHandler)} of each action, one after the other and in order,
+     * failing with the first failure once all of them ran.
+     */
+    private static void afterWrite(Iterator<Map.Entry<AuthorizedAction, List<JsonObject>>> actions,
+                                   Throwable failure, AsyncHandler<Void> handler) {
+        if (!actions.hasNext()) {
+            handler.handle(failure == null ? Future.succeededFuture() : Future.failedFuture(failure));
+            return;
+        }
+        final Map.Entry<AuthorizedAction, List<JsonObject>> action = actions.next();
+        action.getKey().afterWrite(action.getValue(), done ->
+            afterWrite(actions, failure != null || done.succeeded() ? failure : done.cause(), handler));
+    }
+
+    static String collectionOf(String $domain) {
+        final Domain domain = Domain.get($domain);
+        return domain != null ? domain.getCollection() : null;
+    }
+
+    /**
+     * Called once the user is authorized, before the items are collected.
+     */
+    protected void prepare(AsyncHandler<Void> handler) {
+        handler.handle(Future.succeededFuture());
+    }
+
     protected abstract List<JsonObject> items();
 
-    protected abstract void forEach(JsonObject item, AsyncHandler<Void> handler);
+    protected String itemId(JsonObject item) {
+        return item.getString("id");
+    }
+
+    protected abstract String collection(JsonObject item);
+
+    protected abstract BulkOperation operation(JsonObject item);
+
+    /**
+     * @return the kind of change made by this action ({@link DiagramJournal#CREATED}, {@link DiagramJournal#UPDATED}
+     * or {@link DiagramJournal#DELETED})
+     */
+    protected abstract String change();
+
+    /**
+     * @return what is journaled for a written item
+     */
+    protected JsonObject journaled(JsonObject item) {
+        return item;
+    }
+
+    /**
+     * Called once all bulk writes are done, with the items reported as written by them, to reject
+     * those that did not actually change anything (e.g. because of a failed optimistic check).
+     *
+     * @return for each item, in order, the rejection message or {@code null} if it has been written
+     */
+    protected void confirm(List<JsonObject> written, AsyncHandler<List<String>> handler) {
+        handler.handle(Future.succeededFuture(Collections.nCopies(written.size(), null)));
+    }
+
+    /**
+     * Called once all bulk writes are done, with the items that have actually been written.
+     */
+    protected void afterWrite(List<JsonObject> written, AsyncHandler<Void> handler) {
+        handler.handle(Future.succeededFuture());
+    }
 }
@@ -0,0 +1,87 @@
+package it.beng.modeler.microservice.actions.diagram.publish;
+
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import it.beng.microservice.common.AsyncHandler;
+import it.beng.modeler.microservice.actions.ActionContext;
+import it.beng.modeler.microservice.actions.diagram.DiagramPublishAction;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * <p>An ordered list of create, update and delete actions on the same diagram, sent as a single frame.</p>
+ * The user is authorized once, all the items are written with one ordered bulk write per collection under a single
+ * revision, and the batch (each action with its own {@code results}) is published once: clients apply its
+ * {@code actions} in order, as if they had been published one by one.
+ */
+public class BatchAction extends DiagramPublishAction {
+    public static final String TYPE = "[Diagram Action Publish] Batch";
+
+    private static final Map<String, Function<JsonObject, AuthorizedAction>> ACTIONS = new HashMap<>();
+
+    static {
+        ACTIONS.put(CreateThingsAction.TYPE, CreateThingsAction::new);
+        ACTIONS.put(UpdateThingsAction.TYPE, UpdateThingsAction::new);
+        ACTIONS.put(DeleteThingsAction.TYPE, DeleteThingsAction::new);
+    }
+
+    private final List<AuthorizedAction> actions;
+
+    public BatchAction(JsonObject action) {
+        super(action);
+        this.actions = actions();
+    }
+
+    @Override
+    protected String innerType() {
+        return TYPE;
+    }
+
+    @Override
+    public boolean isValid() {
+        return super.isValid() && actions != null && !actions.isEmpty()
+            && actions.stream().allMatch(AuthorizedAction::isValid);
+    }
+
+    /**
+     * @return the actions of the batch (on its diagram), or {@code null} if any of them cannot be batched
+     */
+    private List<AuthorizedAction> actions() {
+        final JsonArray actions = json.getValue("actions") instanceof JsonArray ? json.getJsonArray("actions") : null;
+        if (actions == null) return null;
+        final List<AuthorizedAction> result = new ArrayList<>(actions.size());
+        for (Object action : actions) {
+            if (!(action instanceof JsonObject)) return null;
+            final JsonObject item = (JsonObject) action;
+            final Function<JsonObject, AuthorizedAction> constructor = ACTIONS.get(item.getString("type"));
+            if (constructor == null) return null;
+            item.put("address", address()).put("diagramId", diagramId());
+            result.add(constructor.apply(item));
+        }
+        return result;
+    }
+
+    @Override
+    public void handle(ActionContext context, AsyncHandler<JsonObject> handler) {
+        AuthorizedAction.authorize(context, diagramId(), authorize -> {
+            if (authorize.failed()) {
+                handler.handle(Future.failedFuture(authorize.cause()));
+                return;
+            }
+            AuthorizedAction.execute(diagramId(), actions, execute -> {
+                if (execute.failed()) {
+                    handler.handle(Future.failedFuture(execute.cause()));
+                    return;
+                }
+                final JsonArray results = new JsonArray();
+                actions.forEach(action -> results.addAll(action.json.getJsonArray("results")));
+                json.put("results", results);
+                if (execute.result() != null) json.put("revision", execute.result());
+                handler.handle(Future.succeededFuture(json));
+            });
+        });
+    }
+
+}
@@ -0,0 +1,189 @@
+package it.beng.modeler.microservice.actions.diagram.publish;
+
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.FindOptions;
+import it.beng.microservice.common.AsyncHandler;
+import it.beng.microservice.common.Countdown;
+import it.beng.microservice.db.MongoDB;
+import it.beng.modeler.config.cpd;
+import it.beng.modeler.model.Domain;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * <p>Expands a set of things to delete with everything that depends on them.</p>
+ * Models depend on their diagram ({@code designId}) and parent ({@code parentId}), DIs on the model they show
+ * ({@code modelId}) and on their plane ({@code planeId}). The graph is walked breadth first, with one query per
+ * collection and level, reading only the relation fields. The walk never leaves the diagram of the action: only
+ * the models designed in it and the DIs drawn on its planes are reached, and things of other diagrams cannot be
+ * named at all.
+ */
+final class CascadeDelete {
+
+    private static final String PLANE = "Di.Plane";
+
+    private static final MongoDB mongodb = cpd.dataDB();
+
+    private static final FindOptions RELATIONS = new FindOptions().setFields(new JsonObject()
+        .put("$domain", 1)
+        .put("designId", 1)
+        .put("parentId", 1)
+        .put("modelId", 1)
+        .put("planeId", 1));
+
+    private final String diagramId;
+    private final Set<String> diagramPlanes = new HashSet<>();
+    // thing id -> {id, $domain}, in order of discovery
+    private final Map<String, JsonObject> models = new LinkedHashMap<>();
+    private final Map<String, JsonObject> dis = new LinkedHashMap<>();
+
+    private CascadeDelete(String diagramId) {
+        this.diagramId = diagramId;
+    }
+
+    /**
+     * @return the given things followed by the ones depending on them (as {@code {id, $domain}}), failing if any
+     * of the given things belongs to another diagram
+     */
+    static void expand(String diagramId, List<JsonObject> things, AsyncHandler<List<JsonObject>> handler) {
+        final CascadeDelete cascade = new CascadeDelete(diagramId);
+        final Set<String> models = new LinkedHashSet<>();
+        final Set<String> planes = new LinkedHashSet<>();
+        for (JsonObject thing : things) {
+            final String collection = AuthorizedAction.collectionOf(thing.getString("$domain"));
+            if (Domain.Collection.MODELS.equals(collection) && cascade.models.put(thing.getString("id"), thing) == null)
+                models.add(thing.getString("id"));
+            if (Domain.Collection.DIS.equals(collection) && cascade.dis.put(thing.getString("id"), thing) == null
+                && PLANE.equals(thing.getString("$domain")))
+                planes.add(thing.getString("id"));
+        }
+        cascade.scope(new ArrayList<>(cascade.models.keySet()), new ArrayList<>(cascade.dis.keySet()), scope -> {
+            if (scope.failed()) {
+                handler.handle(Future.failedFuture(scope.cause()));
+                return;
+            }
+            cascade.walk(models, planes, walk -> {
+                if (walk.failed()) {
+                    handler.handle(Future.failedFuture(walk.cause()));
+                    return;
+                }
+                final Set<JsonObject> named = Collections.newSetFromMap(new IdentityHashMap<>());
+                named.addAll(things);
+                final List<JsonObject> expanded = new ArrayList<>(things);
+                cascade.models.values().stream().filter(thing -> !named.contains(thing)).forEach(expanded::add);
+                cascade.dis.values().stream().filter(thing -> !named.contains(thing)).forEach(expanded::add);
+                handler.handle(Future.succeededFuture(expanded));
+            });
+        });
+    }
+
+    /**
+     * Reads the planes of the diagram, failing if any of the given models or DIs is not in the diagram.
+     */
+    private void scope(List<String> modelIds, List<String> diIds, AsyncHandler<Void> handler) {
+        mongodb.findWithOptions(Domain.Collection.DIS, new JsonObject().put("modelId", diagramId), RELATIONS,
+            planes -> {
+                if (planes.failed()) {
+                    handler.handle(Future.failedFuture(planes.cause()));
+                    return;
+                }
+                planes.result().forEach(plane -> diagramPlanes.add(plane.getString("id")));
+                final Countdown countdown = new Countdown(2).onComplete(handler);
+                inScope(Domain.Collection.MODELS, modelIds, model -> diagramId.equals(model.getString("id"))
+                    || diagramId.equals(model.getString("designId")), countdown);
+                inScope(Domain.Collection.DIS, diIds, di -> diagramPlanes.contains(di.getString("id"))
+                    || diagramPlanes.contains(di.getString("planeId")), countdown);
+            });
+    }
+
+    private void inScope(String collection, List<String> ids, Predicate<JsonObject> inScope, Countdown countdown) {
+        if (ids.isEmpty()) {
+            countdown.next();
+            return;
+        }
+        mongodb.findWithOptions(collection, in("id", ids), RELATIONS, find -> {
+            if (find.failed()) {
+                countdown.fail(find.cause());
+                return;
+            }
+            for (JsonObject thing : find.result()) {
+                if (!inScope.test(thing)) {
+                    countdown.fail("thing " + thing.getString("id") + " is not in diagram " + diagramId);
+                    return;
+                }
+            }
+            countdown.next();
+        });
+    }
+
+    private void walk(Set<String> models, Set<String> planes, AsyncHandler<Void> handler) {
+        if (models.isEmpty() && planes.isEmpty()) {
+            handler.handle(Future.succeededFuture());
+            return;
+        }
+        final Set<String> nextModels = new LinkedHashSet<>();
+        final Set<String> nextPlanes = new LinkedHashSet<>();
+        final Countdown countdown = new Countdown(2).onComplete(level -> {
+            if (level.succeeded())
+                walk(nextModels, nextPlanes, handler);
+            else
+                handler.handle(Future.failedFuture(level.cause()));
+        });
+        find(Domain.Collection.MODELS, scoped(new JsonObject().put("designId", diagramId),
+            related(Arrays.asList("designId", "parentId"), models, null, null)),
+            found -> {
+                if (this.models.put(found.getString("id"), found) == null) nextModels.add(found.getString("id"));
+            }, countdown);
+        find(Domain.Collection.DIS, scoped(new JsonObject().put("$or", new JsonArray()
+                .add(in("id", diagramPlanes))
+                .add(in("planeId", diagramPlanes))),
+            related(Collections.singletonList("modelId"), models, "planeId", planes)),
+            found -> {
+                if (dis.put(found.getString("id"), found) == null && PLANE.equals(found.getString("$domain")))
+                    nextPlanes.add(found.getString("id"));
+            }, countdown);
+    }
+
+    /**
+     * @return the query of the things whose {@code fields} refer to one of {@code ids}, or whose {@code field}
+     * refers to one of {@code others} ({@code null} if there are none)
+     */
+    private static JsonObject related(List<String> fields, Set<String> ids, String field, Set<String> others) {
+        final JsonArray or = new JsonArray();
+        if (!ids.isEmpty())
+            fields.forEach(name -> or.add(in(name, ids)));
+        if (field != null && !others.isEmpty())
+            or.add(in(field, others));
+        return or.isEmpty() ? null : new JsonObject().put("$or", or);
+    }
+
+    private static JsonObject scoped(JsonObject scope, JsonObject query) {
+        return query == null ? null : new JsonObject().put("$and", new JsonArray().add(scope).add(query));
+    }
+
+    private static JsonObject in(String field, Collection<String> ids) {
+        return new JsonObject().put(field, new JsonObject().put("$in", new JsonArray(new ArrayList<>(ids))));
+    }
+
+    private static void find(String collection, JsonObject query, Consumer<JsonObject> found, Countdown countdown) {
+        if (query == null) {
+            countdown.next();
+            return;
+        }
+        mongodb.findWithOptions(collection, query, RELATIONS, find -> {
+            if (find.failed()) {
+                countdown.fail(find.cause());
+                return;
+            }
+            find.result().forEach(thing -> found.accept(new JsonObject()
+                .put("id", thing.getString("id"))
+                .put("$domain", thing.getString("$domain"))));
+            countdown.next();
+        });
+    }
+
+}
@@ -1,13 +1,14 @@
 package it.beng.modeler.microservice.actions.diagram.publish;
 
-import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
-import io.vertx.core.Handler;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.BulkOperation;
 import it.beng.microservice.common.AsyncHandler;
 import it.beng.modeler.config.cpd;
-import it.beng.modeler.model.Domain;
+import it.beng.modeler.microservice.cache.DefinitionCache;
+import it.beng.modeler.microservice.journal.DiagramJournal;
+import it.beng.modeler.microservice.utils.DBUtils;
 
 import java.util.List;
 import java.util.stream.Collectors;
@@ -38,19 +39,28 @@ public class CreateThingsAction extends AuthorizedAction {
     }
 
     @Override
-    protected void forEach(JsonObject thing, AsyncHandler<Void> handler) {
+    protected String collection(JsonObject thing) {
+        return collectionOf(thing.getString("$domain"));
+    }
+
+    @Override
+    protected BulkOperation operation(JsonObject thing) {
         final String langCode = thing.getString("language");
         if (langCode != null) {
             thing.put("language", cpd.language(langCode));
         }
-        mongodb.save(
-            Domain.get(thing.getString("$domain")).getCollection(), thing, create -> {
-                if (create.failed()) {
-                    handler.handle(Future.failedFuture(create.cause()));
-                } else {
-                    handler.handle(Future.succeededFuture());
-                }
-            });
+        return DBUtils.bulkSave(thing);
+    }
+
+    @Override
+    protected String change() {
+        return DiagramJournal.CREATED;
+    }
+
+    @Override
+    protected void afterWrite(List<JsonObject> written, AsyncHandler<Void> handler) {
+        DefinitionCache.saved(diagramId(), written);
+        handler.handle(Future.succeededFuture());
     }
 
     public JsonArray things() {
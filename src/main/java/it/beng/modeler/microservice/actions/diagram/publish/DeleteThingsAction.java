@@ -1,12 +1,13 @@
 package it.beng.modeler.microservice.actions.diagram.publish;
 
-import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
-import io.vertx.core.Handler;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.BulkOperation;
 import it.beng.microservice.common.AsyncHandler;
-import it.beng.modeler.model.Domain;
+import it.beng.modeler.microservice.cache.DefinitionCache;
+import it.beng.modeler.microservice.journal.DiagramJournal;
+import it.beng.modeler.microservice.utils.DBUtils;
 
 import java.util.List;
 import java.util.stream.Collectors;
@@ -28,6 +29,24 @@ public class DeleteThingsAction extends AuthorizedAction {
         return super.isValid() && things() != null;
     }
 
+    /**
+     * In {@code cascade} mode the things depending on the deleted ones are deleted as well: they are added to
+     * {@code things}, so that they are published and journaled like the others.
+     */
+    @Override
+    protected void prepare(AsyncHandler<Void> handler) {
+        if (!json.getBoolean("cascade", false)) {
+            handler.handle(Future.succeededFuture());
+            return;
+        }
+        CascadeDelete.expand(diagramId(), items(), expand -> {
+            if (expand.succeeded()) {
+                json.put("things", new JsonArray(expand.result()));
+                handler.handle(Future.succeededFuture());
+            } else handler.handle(Future.failedFuture(expand.cause()));
+        });
+    }
+
     @Override
     protected List<JsonObject> items() {
         return this.things().stream()
@@ -37,16 +56,31 @@ public class DeleteThingsAction extends AuthorizedAction {
     }
 
     @Override
-    protected void forEach(JsonObject item, AsyncHandler<Void> handler) {
-        mongodb.removeDocument(
-            Domain.get(item.getString("$domain")).getCollection(),
-            new JsonObject().put("id", item.getString("id")), delete -> {
-                if (delete.failed()) {
-                    handler.handle(Future.failedFuture(delete.cause()));
-                } else {
-                    handler.handle(Future.succeededFuture());
-                }
-            });
+    protected String collection(JsonObject item) {
+        return collectionOf(item.getString("$domain"));
+    }
+
+    @Override
+    protected BulkOperation operation(JsonObject item) {
+        return DBUtils.bulkDelete(item.getString("id"));
+    }
+
+    @Override
+    protected String change() {
+        return DiagramJournal.DELETED;
+    }
+
+    @Override
+    protected JsonObject journaled(JsonObject thing) {
+        return new JsonObject()
+            .put("id", thing.getString("id"))
+            .put("$domain", thing.getString("$domain"));
+    }
+
+    @Override
+    protected void afterWrite(List<JsonObject> written, AsyncHandler<Void> handler) {
+        DefinitionCache.deleted(diagramId(), written);
+        handler.handle(Future.succeededFuture());
     }
 
     public JsonArray things() {
@@ -3,15 +3,19 @@ package it.beng.modeler.microservice.actions.diagram.publish;
 import io.vertx.core.Future;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.BulkOperation;
 import it.beng.microservice.common.AsyncHandler;
-import it.beng.modeler.microservice.utils.ProcessEngineUtils;
+import it.beng.microservice.common.Countdown;
+import it.beng.modeler.config.cpd;
+import it.beng.modeler.microservice.cache.DefinitionCache;
+import it.beng.modeler.microservice.journal.DiagramJournal;
+import it.beng.modeler.microservice.utils.DBUtils;
 import it.beng.modeler.model.Domain;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.util.List;
-import java.util.Map;
-import java.util.Objects;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.stream.Collectors;
 
 public class UpdateThingsAction extends AuthorizedAction {
@@ -19,6 +23,14 @@ public class UpdateThingsAction extends AuthorizedAction {
 
     public static final String TYPE = "[Diagram Action Publish] Update Things";
 
+    // things updated by this action, as read back after writing them
+    private final Map<String, JsonObject> updated = new HashMap<>();
+    // things updated by this action, as read before writing them
+    private final Map<String, JsonObject> stored = new HashMap<>();
+    // the unique id of the write of each update
+    private final String writePrefix = Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36);
+    private final Map<JsonObject, String> writes = new IdentityHashMap<>();
+
     public UpdateThingsAction(JsonObject action) {
         super(action);
     }
@@ -30,7 +42,8 @@ public class UpdateThingsAction extends AuthorizedAction {
 
     @Override
     public boolean isValid() {
-        return super.isValid() && updates() != null;
+        return super.isValid() && updates() != null && items().stream().allMatch(update ->
+            update.getJsonObject("changes") != null && itemId(update) != null);
     }
 
     @Override
@@ -41,30 +54,157 @@ public class UpdateThingsAction extends AuthorizedAction {
                    .collect(Collectors.toList());
     }
 
-    @Override
-    protected void forEach(JsonObject update, AsyncHandler<Void> handler) {
+    /**
+     * A patch carries only {@code {id, $domain, changes}} and, optionally, the {@code version} the thing is
+     * expected to have; otherwise the update carries {@code {original, changes}} and replaces the whole thing,
+     * if it still has the version of the original.
+     */
+    private static boolean isPatch(JsonObject update) {
+        return update.getJsonObject("original") == null;
+    }
+
+    private static JsonObject replacement(JsonObject update) {
+        final JsonObject original = update.getJsonObject("original");
         JsonObject changes = update.getJsonObject("changes");
-        JsonObject replace = new JsonObject(update.getJsonObject("original").mergeIn(changes, true).stream()
-                                                  .filter(entry -> Objects.nonNull(entry.getValue()))
-                                                  .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue))
-        );
-        Domain domain = Domain.get(replace.getString("$domain"));
-        mongodb.findOneAndReplace(
-            domain.getCollection(),
-            new JsonObject().put("id", replace.getString("id")),
-            replace,
-            findOneAndReplace -> {
-                if (findOneAndReplace.succeeded()) {
-                    if (domain == Domain.ofDefinition(Domain.Definition.DIAGRAM)) {
-                        ProcessEngineUtils.update(update, updated -> {
-                            if (updated.succeeded())
-                                handler.handle(Future.succeededFuture());
-                            else
-                                handler.handle(Future.failedFuture(updated.cause()));
-                        });
-                    }
-                } else handler.handle(Future.failedFuture(findOneAndReplace.cause()));
-            });
+        return new JsonObject(original.copy().mergeIn(changes, true).stream()
+                                      .filter(entry -> Objects.nonNull(entry.getValue()))
+                                      .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)));
+    }
+
+    /**
+     * @return the version the thing is expected to have, or {@code null} if it is updated whatever its version
+     */
+    private static Long expectedVersion(JsonObject update) {
+        return isPatch(update) ? update.getLong("version") : update.getJsonObject("original").getLong("$version", 0L);
+    }
+
+    private String write(JsonObject update) {
+        return writes.computeIfAbsent(update, u -> writePrefix + "." + writes.size());
+    }
+
+    /**
+     * Reads the updated things: mongo cannot set a field inside a {@code null} or scalar value, that must be
+     * replaced as a whole (see {@link DBUtils#patch(JsonObject, JsonObject)}), and a replacement unsets the fields
+     * it does not have. The actions of a diagram run one at a time, the things cannot change before they are
+     * written.
+     */
+    @Override
+    protected void prepare(AsyncHandler<Void> handler) {
+        find(items(), stored, handler);
+    }
+
+    private void find(List<JsonObject> updates, Map<String, JsonObject> things, AsyncHandler<Void> handler) {
+        final Map<String, Set<String>> ids = new LinkedHashMap<>();
+        updates.forEach(update -> {
+            final String collection = collection(update);
+            if (collection != null)
+                ids.computeIfAbsent(collection, c -> new LinkedHashSet<>()).add(itemId(update));
+        });
+        if (ids.isEmpty()) {
+            handler.handle(Future.succeededFuture());
+            return;
+        }
+        final Countdown countdown = new Countdown(ids.size()).onComplete(handler);
+        ids.forEach((collection, collectionIds) ->
+            mongodb.find(collection, DBUtils.or("id", new ArrayList<>(collectionIds)), find -> {
+                if (find.succeeded()) {
+                    find.result().forEach(thing -> things.put(thing.getString("id"), thing));
+                    countdown.next();
+                } else countdown.fail(find.cause());
+            }));
+    }
+
+    @Override
+    protected String itemId(JsonObject update) {
+        return isPatch(update) ? update.getString("id") : update.getJsonObject("original").getString("id");
+    }
+
+    @Override
+    protected String collection(JsonObject update) {
+        return collectionOf(isPatch(update) ? update.getString("$domain") : replacement(update).getString("$domain"));
+    }
+
+    @Override
+    protected BulkOperation operation(JsonObject update) {
+        final String id = itemId(update);
+        if (isPatch(update))
+            return DBUtils.bulkPatch(id, expectedVersion(update), update.getJsonObject("changes"), stored.get(id),
+                write(update));
+        return DBUtils.bulkVersionedReplace(replacement(update), expectedVersion(update), stored.get(id),
+            write(update));
+    }
+
+    /**
+     * Reads back the updated things: an update matched its thing (that existed and had the expected version)
+     * only if its write id is among the latest ones of the thing, the others are rejected. The written ones are
+     * journaled and cached with the whole state of their thing.
+     */
+    @Override
+    protected void confirm(List<JsonObject> written, AsyncHandler<List<String>> handler) {
+        find(written, updated, readBack -> {
+            if (readBack.failed()) {
+                handler.handle(Future.failedFuture(readBack.cause()));
+                return;
+            }
+            handler.handle(Future.succeededFuture(written.stream().map(update -> {
+                final String id = itemId(update);
+                final JsonObject thing = updated.get(id);
+                if (thing == null) return "thing " + id + " not found";
+                if (thing.getJsonArray("$write", new JsonArray()).contains(write(update))) return null;
+                final Long version = expectedVersion(update);
+                return version != null
+                    ? "version conflict on thing " + id + ": expected " + version
+                    + ", now " + thing.getLong("$version", 0L)
+                    : "thing " + id + " not written";
+            }).collect(Collectors.toList())));
+        });
+    }
+
+    /**
+     * @return the whole state of the updated thing
+     */
+    private JsonObject updated(JsonObject update) {
+        return updated.get(itemId(update));
+    }
+
+    @Override
+    protected String change() {
+        return DiagramJournal.UPDATED;
+    }
+
+    @Override
+    protected JsonObject journaled(JsonObject update) {
+        return updated(update);
+    }
+
+    @Override
+    protected void afterWrite(List<JsonObject> written, AsyncHandler<Void> handler) {
+        DefinitionCache.saved(diagramId(), written.stream()
+                                                 .map(this::updated)
+                                                 .collect(Collectors.toList()));
+        // diagram updates may change the collaboration team, which must be reflected in the process engine
+        updateProcesses(written.stream()
+                               .filter(update -> Domain.get(updated(update).getString("$domain"))
+                                   == Domain.ofDefinition(Domain.Definition.DIAGRAM))
+                               .map(update -> isPatch(update)
+                                   ? new JsonObject()
+                                   .put("original", updated(update))
+                                   .put("changes", update.getJsonObject("changes"))
+                                   : update)
+                               .iterator(), handler);
+    }
+
+    private static void updateProcesses(Iterator<JsonObject> updates, AsyncHandler<Void> handler) {
+        if (!updates.hasNext()) {
+            handler.handle(Future.succeededFuture());
+            return;
+        }
+        cpd.processEngineService().update(updates.next(), updated -> {
+            if (updated.succeeded())
+                updateProcesses(updates, handler);
+            else
+                handler.handle(Future.failedFuture(updated.cause()));
+        });
     }
 
     public JsonArray updates() {
@@ -0,0 +1,40 @@
+package it.beng.modeler.microservice.actions.diagram.reply;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import it.beng.modeler.microservice.actions.ReplyAction;
+import it.beng.modeler.microservice.actions.diagram.DiagramAction;
+
+public class DefinitionChangedAction extends ReplyAction implements DiagramAction {
+
+    public static final String TYPE = "[Diagram Action Reply] Definition Changed";
+
+    /**
+     * @param changes the {@code {fromRevision, revision, created, updated, deleted}} folded by the diagram journal
+     */
+    public DefinitionChangedAction(String diagramId, JsonObject changes, JsonArray tasks) {
+        super(changes.copy()
+                     .put("address", ADDRESS)
+                     .put("type", TYPE)
+                     .put("diagramId", diagramId)
+                     .put("tasks", tasks));
+    }
+
+    @Override
+    public boolean isValid() {
+        return super.isValid() && diagramId() != null && revision() != null;
+    }
+
+    public String diagramId() {
+        return json.getString("diagramId");
+    }
+
+    public Long fromRevision() {
+        return json.getLong("fromRevision");
+    }
+
+    public Long revision() {
+        return json.getLong("revision");
+    }
+
+}
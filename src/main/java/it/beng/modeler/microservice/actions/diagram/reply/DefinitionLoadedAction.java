@@ -8,11 +8,12 @@ public class DefinitionLoadedAction extends ReplyAction implements DiagramAction
 
     public static final String TYPE = "[Diagram Action Reply] Definition Loaded";
 
-    public DefinitionLoadedAction(JsonObject definition) {
+    public DefinitionLoadedAction(JsonObject definition, long revision) {
         super(new JsonObject()
             .put("address", ADDRESS)
             .put("type", TYPE)
-            .put("definition", definition));
+            .put("definition", definition)
+            .put("revision", revision));
     }
 
     @Override
@@ -24,4 +25,8 @@ public class DefinitionLoadedAction extends ReplyAction implements DiagramAction
         return json.getJsonObject("definition");
     }
 
+    public Long revision() {
+        return json.getLong("revision");
+    }
+
 }
@@ -0,0 +1,31 @@
+package it.beng.modeler.microservice.actions.diagram.reply;
+
+import io.vertx.core.json.JsonObject;
+import it.beng.modeler.microservice.actions.ReplyAction;
+import it.beng.modeler.microservice.actions.diagram.DiagramAction;
+
+/**
+ * Sent to a client that fell too far behind: the updates queued for it have been dropped,
+ * so it must load the definition again (Load Definition, or Load Definition Since its last revision).
+ */
+public class ResyncRequiredAction extends ReplyAction implements DiagramAction {
+
+    public static final String TYPE = "[Diagram Action Reply] Resync Required";
+
+    public ResyncRequiredAction(String diagramId) {
+        super(new JsonObject()
+            .put("address", ADDRESS)
+            .put("type", TYPE)
+            .put("diagramId", diagramId));
+    }
+
+    @Override
+    public boolean isValid() {
+        return super.isValid() && diagramId() != null;
+    }
+
+    public String diagramId() {
+        return json.getString("diagramId");
+    }
+
+}
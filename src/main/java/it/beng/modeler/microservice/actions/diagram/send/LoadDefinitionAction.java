@@ -5,20 +5,19 @@ import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
-import io.vertx.ext.web.RoutingContext;
 import it.beng.microservice.common.AsyncHandler;
-import it.beng.microservice.db.MongoDB;
 import it.beng.modeler.config.cpd;
+import it.beng.modeler.microservice.actions.ActionContext;
 import it.beng.modeler.microservice.actions.SendAction;
 import it.beng.modeler.microservice.actions.diagram.DiagramAction;
 import it.beng.modeler.microservice.actions.diagram.reply.DefinitionLoadedAction;
+import it.beng.modeler.microservice.cache.DefinitionCache;
+import it.beng.modeler.microservice.cache.ExtensionsIndex;
+import it.beng.modeler.microservice.journal.DiagramJournal;
+import it.beng.modeler.microservice.journal.DiagramSnapshots;
 import it.beng.modeler.microservice.utils.DBUtils;
-import it.beng.modeler.microservice.utils.JsonUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.flowable.engine.repository.ProcessDefinitionQuery;
-import org.flowable.task.api.Task;
-import org.flowable.task.api.TaskQuery;
 
 import java.util.*;
 import java.util.stream.Collectors;
@@ -47,115 +46,89 @@ public class LoadDefinitionAction extends SendAction implements DiagramAction {
     }
 
     @Override
-    public void handle(RoutingContext context, AsyncHandler<JsonObject> handler) {
-        MongoDB.Command command = mongodb.command(COMMAND_PATH + "getDiagramDefinition",
-            new HashMap<String, String>() {{
-                put("diagramId", diagramId());
-            }}
-        );
+    public void handle(ActionContext context, AsyncHandler<JsonObject> handler) {
+        // the revision is read first: the definition loaded afterwards is at least that recent,
+        // and any change the client receives twice (here and from a later delta) is simply reapplied
+        DiagramJournal.revision(diagramId(), revision -> {
+            if (revision.failed()) {
+                handler.handle(Future.failedFuture(revision.cause()));
+                return;
+            }
+            loadDefinition(loadDefinition -> {
+                if (loadDefinition.failed()) {
+                    handler.handle(Future.failedFuture(loadDefinition.cause()));
+                    return;
+                }
+                activeTasks(context, diagramId(), activeTasks -> {
+                    if (activeTasks.succeeded())
+                        reply(new DefinitionLoadedAction(
+                            loadDefinition.result().put("tasks", activeTasks.result()),
+                            revision.result()
+                        ), handler);
+                    else
+                        handler.handle(Future.failedFuture(activeTasks.cause()));
+                });
+            });
+        });
+    }
 
-        mongodb.runCommand("aggregate", command, getDiagramDefinition -> {
-            if (getDiagramDefinition.succeeded()) {
-                JsonObject definition = JsonUtils.firstOrNull(getDiagramDefinition.result().getJsonArray("result"));
-                if (definition != null) {
-                    final ProcessDefinitionQuery processDefinitionQuery = cpd.processEngine()
-                                                                             .getRepositoryService()
-                                                                             .createProcessDefinitionQuery();
-                    final TaskQuery taskQuery = cpd.processEngine()
-                                                   .getTaskService()
-                                                   .createTaskQuery();
-                    final List<JsonObject> tasks =
-                        (context == null || context.user() == null
-                            // user is not logged in => keep tasks empty
-                            ? Collections.<Task>emptyList()
-                            // take all active tasks of processes that have diagramId as business key
-                            : taskQuery.processInstanceBusinessKey(diagramId())
-                                       .active()
-                                       .list()
-                        ).stream().map(task -> {
-                                String processKey = processDefinitionQuery
-                                    .processDefinitionId(task.getProcessDefinitionId())
-                                    .singleResult()
-                                    .getKey();
-                                String taskKey = task.getTaskDefinitionKey();
-                                // transform flowable task to partial JsonObject Task
-                                // "name", "documentation" and "model" fields (which are language dependent)
-                                // will be added in a 2nd stage
-                                return new JsonObject()
-                                    .put("processKey", processKey)
-                                    .put("taskKey", taskKey)
-                                    .put("id", task.getId())
-                                    .put("processId", task.getProcessInstanceId())
-                                    .put("assignee", task.getAssignee())
-                                    .put("createTime", DBUtils.mongoDateTime(
-                                        DBUtils.parseDateTime(task.getCreateTime().toInstant().toString())
-                                    ))
-                                    // TODO: create Collaboration.Process and Collaboration.Process.Task schemas
-                                    .put("$domain", "Model.Thing");
-                            }
-                        ).collect(Collectors.toList());
-                    if (tasks.isEmpty()) {
-                        reply(new DefinitionLoadedAction(definition.put("tasks", new JsonArray())), handler);
-                    } else {
-                        // 2nd stage (for translations retrieval)
-                        final String lang = cpd.languageCode(context);
-                        DBUtils.loadCollection("extensions", new JsonObject()
-                            // filter "extensions" collection by process-task key of fetched tasks
-                            .put("id", new JsonObject()
-                                .put("$in", new JsonArray(tasks.stream().map(task -> new JsonObject()
-                                    .put("processKey", task.getString("processKey"))
-                                    .put("taskKey", task.getString("taskKey"))
-                                ).collect(Collectors.toList())))), loadExtensions -> {
-                            if (loadExtensions.succeeded()) {
-                                final List<JsonObject> extensions = loadExtensions
-                                    .result().stream()
-                                    .map(extension -> {
-                                        JsonObject model = extension.getJsonObject("model");
-                                        JsonObject outputs = model.getJsonObject("outputs");
-                                        if (outputs != null) {
-                                            // if the model has outputs, translate them
-                                            model.put("outputs", new JsonObject(
-                                                outputs.stream().collect(Collectors.toMap(
-                                                    Map.Entry::getKey,
-                                                    entry -> DBUtils.langOrEN((JsonObject) entry.getValue(), lang)))
-                                            ));
-                                        }
-                                        return extension
-                                            // translate name and documentation
-                                            .put("name",
-                                                DBUtils.langOrEN(extension.getJsonObject("name"), lang))
-                                            .put("documentation",
-                                                DBUtils.langOrEN(extension.getJsonObject("documentation"), lang))
-                                            .put("model", model);
-                                    })
-                                    .collect(Collectors.toList());
-                                reply(new DefinitionLoadedAction(
-                                    // add computed tasks to the definition
-                                    definition.put("tasks", new JsonArray(
-                                        tasks.stream().map(task -> {
-                                            JsonObject foundExtension = extensions.stream().filter(
-                                                extension -> extension.getJsonObject("id").equals(
-                                                    new JsonObject().put("processKey", task.getString("processKey"))
-                                                                    .put("taskKey", task.getString("taskKey"))
-                                                )).findFirst().orElse(null);
-                                            if (foundExtension == null) {
-                                                logger.error("no extension found for task " + task.encodePrettily());
-                                                return null;
-                                            }
-                                            return task.put("name", foundExtension.getString("name"))
-                                                       .put("documentation", foundExtension.getString("documentation"))
-                                                       .put("model", foundExtension.getJsonObject("model"));
-                                        }).filter(Objects::nonNull).collect(Collectors.toList())
-                                    ))
-                                ), handler);
-                            } else handler.handle(Future.failedFuture(loadExtensions.cause()));
-                        });
+    /**
+     * Active tasks of the processes that have diagramId as business key, each one with the
+     * "name", "documentation" and "model" (which are language dependent) of its extension.
+     */
+    static void activeTasks(ActionContext context, String diagramId, AsyncHandler<JsonArray> handler) {
+        if (context.user() == null) {
+            // user is not logged in => keep tasks empty
+            handler.handle(Future.succeededFuture(new JsonArray()));
+            return;
+        }
+        cpd.processEngineService().getActiveTasks(diagramId, getActiveTasks -> {
+            if (getActiveTasks.failed()) {
+                handler.handle(Future.failedFuture(getActiveTasks.cause()));
+                return;
+            }
+            final String lang = context.lang();
+            handler.handle(Future.succeededFuture(new JsonArray(
+                getActiveTasks.result().stream().map(task -> {
+                    final JsonObject extension = ExtensionsIndex.get(
+                        task.getString("processKey"), task.getString("taskKey"), lang);
+                    if (extension == null) {
+                        logger.error("no extension found for task " + task.encodePrettily());
+                        return null;
                     }
-                } else
-                    handler.handle(Future.failedFuture("definition not found"));
-            } else {
-                handler.handle(Future.failedFuture(getDiagramDefinition.cause()));
+                    return task.put("name", extension.getString("name"))
+                               .put("documentation", extension.getString("documentation"))
+                               .put("model", extension.getJsonObject("model").copy());
+                }).filter(Objects::nonNull).collect(Collectors.toList())
+            )));
+        });
+    }
+
+    /**
+     * Loads the definition from the {@link DefinitionCache} or, on cache miss, from the latest snapshot
+     * plus the journal tail, running the aggregate only when there is no usable snapshot.
+     */
+    private void loadDefinition(AsyncHandler<JsonObject> handler) {
+        final JsonObject cached = DefinitionCache.get(diagramId());
+        if (cached != null) {
+            handler.handle(Future.succeededFuture(cached));
+            return;
+        }
+
+        final long stamp = DefinitionCache.stamp();
+        DiagramSnapshots.load(diagramId(), snapshot -> {
+            if (snapshot.failed())
+                logger.error("could not load snapshot of diagram " + diagramId() + ": " + snapshot.cause().getMessage());
+            if (snapshot.succeeded() && snapshot.result() != null) {
+                DefinitionCache.put(diagramId(), snapshot.result(), stamp);
+                handler.handle(Future.succeededFuture(snapshot.result()));
+                return;
             }
+            DBUtils.diagramDefinition(diagramId(), diagramDefinition -> {
+                if (diagramDefinition.succeeded())
+                    DefinitionCache.put(diagramId(), diagramDefinition.result(), stamp);
+                handler.handle(diagramDefinition);
+            });
         });
     }
 
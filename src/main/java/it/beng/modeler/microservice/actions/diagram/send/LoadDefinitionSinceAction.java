@@ -0,0 +1,66 @@
+package it.beng.modeler.microservice.actions.diagram.send;
+
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonObject;
+import it.beng.microservice.common.AsyncHandler;
+import it.beng.modeler.microservice.actions.ActionContext;
+import it.beng.modeler.microservice.actions.SendAction;
+import it.beng.modeler.microservice.actions.diagram.DiagramAction;
+import it.beng.modeler.microservice.actions.diagram.reply.DefinitionChangedAction;
+import it.beng.modeler.microservice.journal.DiagramJournal;
+
+/**
+ * Replies with the things created, updated or deleted since the given revision, or with the whole
+ * definition (as {@link LoadDefinitionAction} does) when the journal cannot tell what changed.
+ */
+public class LoadDefinitionSinceAction extends SendAction implements DiagramAction {
+
+    public static final String TYPE = "[Diagram Action Send] Load Definition Since";
+
+    public LoadDefinitionSinceAction(JsonObject action) {
+        super(action);
+    }
+
+    @Override
+    protected String innerType() {
+        return TYPE;
+    }
+
+    @Override
+    public boolean isValid() {
+        return super.isValid() && diagramId() != null && revision() != null;
+    }
+
+    public String diagramId() {
+        return json.getString("diagramId");
+    }
+
+    public Long revision() {
+        return json.getLong("revision");
+    }
+
+    @Override
+    public void handle(ActionContext context, AsyncHandler<JsonObject> handler) {
+        DiagramJournal.since(diagramId(), revision(), since -> {
+            if (since.failed()) {
+                handler.handle(Future.failedFuture(since.cause()));
+                return;
+            }
+            if (since.result() == null) {
+                new LoadDefinitionAction(new JsonObject()
+                    .put("address", address())
+                    .put("type", LoadDefinitionAction.TYPE)
+                    .put("diagramId", diagramId())
+                ).handle(context, handler);
+                return;
+            }
+            LoadDefinitionAction.activeTasks(context, diagramId(), activeTasks -> {
+                if (activeTasks.succeeded())
+                    reply(new DefinitionChangedAction(diagramId(), since.result(), activeTasks.result()), handler);
+                else
+                    handler.handle(Future.failedFuture(activeTasks.cause()));
+            });
+        });
+    }
+
+}
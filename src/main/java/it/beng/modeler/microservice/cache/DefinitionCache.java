@@ -0,0 +1,273 @@
+package it.beng.modeler.microservice.cache;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import it.beng.modeler.microservice.metrics.Metrics;
+import it.beng.modeler.model.Domain;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Cache of the diagram definitions computed by the {@code getDiagramDefinition} aggregate, keyed by diagram id.</p>
+ * Definitions are stored on first load and then patched in place with the things written by
+ * the diagram actions. Whatever cannot be patched safely is invalidated, so that the next load
+ * runs the aggregate again.
+ */
+public final class DefinitionCache {
+    private static final Logger logger = LogManager.getLogger(DefinitionCache.class);
+
+    private static LruCache<String, JsonObject> cache;
+
+    // ticks on every change: a definition loaded at a tick is stored only if its diagram has not changed since
+    private static final AtomicLong clock = new AtomicLong();
+    // diagram id -> tick of its last change, the changes up to floor being forgotten
+    private static final Map<String, Long> changed = new ConcurrentHashMap<>();
+    private static volatile long floor;
+    private static final int MAX_CHANGED = 4096;
+
+    private static final String INVALIDATE_ADDRESS = "cpd::definitionCache::invalidate";
+    private static volatile EventBus eventBus;
+
+    private DefinitionCache() {}
+
+    private static synchronized LruCache<String, JsonObject> cache() {
+        if (cache == null) {
+            cache = LruCache.fromConfig();
+            Metrics.register("definitionCache", cache::stats);
+        }
+        return cache;
+    }
+
+    /**
+     * @return a copy of the cached definition, or {@code null} if the diagram is not cached
+     */
+    public static JsonObject get(String diagramId) {
+        final JsonObject definition = cache().get(diagramId);
+        return definition != null ? definition.copy() : null;
+    }
+
+    /**
+     * @return the stamp to be passed to {@link #put(String, JsonObject, long)} once the definition is loaded
+     */
+    public static long stamp() {
+        return clock.get();
+    }
+
+    private static long lastChange(String diagramId) {
+        return Math.max(floor, changed.getOrDefault(diagramId, 0L));
+    }
+
+    private static void change(String diagramId) {
+        changed.put(diagramId, clock.incrementAndGet());
+        if (changed.size() > MAX_CHANGED) {
+            synchronized (changed) {
+                if (changed.size() <= MAX_CHANGED) return;
+                forgetChanges(clock.get());
+            }
+        }
+    }
+
+    /**
+     * Caches a copy of the definition, unless its diagram has been written since {@code loadStamp} was taken.
+     */
+    public static void put(String diagramId, JsonObject definition, long loadStamp) {
+        if (lastChange(diagramId) > loadStamp) return;
+        cache().put(diagramId, definition.copy());
+        // a change recorded after the check above may have been applied before the put
+        if (lastChange(diagramId) > loadStamp) cache().invalidate(diagramId);
+    }
+
+    public static void invalidate(String diagramId) {
+        change(diagramId);
+        cache().invalidate(diagramId);
+    }
+
+    public static void invalidateAll() {
+        synchronized (changed) {
+            forgetChanges(clock.incrementAndGet());
+        }
+        cache().invalidateAll();
+    }
+
+    private static void forgetChanges(long tick) {
+        floor = tick;
+        changed.clear();
+        // the changes recorded while clearing are forgotten as well
+        floor = clock.get();
+    }
+
+    /**
+     * Lets {@link #invalidateInCluster(String)} reach the caches of all the nodes of the cluster.
+     */
+    public static synchronized void joinCluster(Vertx vertx) {
+        if (eventBus != null) return;
+        eventBus = vertx.eventBus();
+        eventBus.<String>consumer(INVALIDATE_ADDRESS, message -> {
+            if (message.body().isEmpty())
+                invalidateAll();
+            else
+                invalidate(message.body());
+        });
+    }
+
+    /**
+     * Invalidates the definition (all of them if {@code diagramId} is {@code null}) in every node of the cluster:
+     * to be used for the changes not made by the diagram actions, which run on the node owning the diagram.
+     */
+    public static void invalidateInCluster(String diagramId) {
+        if (eventBus != null)
+            eventBus.publish(INVALIDATE_ADDRESS, diagramId != null ? diagramId : "");
+        else if (diagramId != null)
+            invalidate(diagramId);
+        else
+            invalidateAll();
+    }
+
+    /**
+     * Patches the definition with created or replaced things.
+     */
+    public static void saved(String diagramId, List<JsonObject> things) {
+        patch(diagramId, things, false);
+    }
+
+    /**
+     * Patches the definition with deleted things.
+     */
+    public static void deleted(String diagramId, List<JsonObject> things) {
+        patch(diagramId, things, true);
+    }
+
+    private static void patch(String diagramId, List<JsonObject> things, boolean delete) {
+        if (things.isEmpty()) return;
+        change(diagramId);
+        cache().computeIfPresent(diagramId, (id, cached) -> {
+            // readers copy the cached definition outside of the cache lock: never patch it in place
+            final JsonObject definition = cached.copy();
+            if (!apply(definition, things, delete)) {
+                logger.debug("definition of diagram " + diagramId + " invalidated");
+                return null;
+            }
+            return definition;
+        });
+    }
+
+    /**
+     * Applies the saved (or deleted) things to the definition, in place.
+     *
+     * @return {@code false} if some thing cannot be applied safely: the definition must be loaded again
+     */
+    public static boolean apply(JsonObject definition, List<JsonObject> things, boolean delete) {
+        for (JsonObject thing : things) {
+            final Domain domain = Domain.get(thing.getString("$domain"));
+            final boolean patched = domain != null && (delete
+                ? delete(definition, domain.getCollection(), thing.getString("id"))
+                : save(definition, domain.getCollection(), thing.copy()));
+            if (!patched) {
+                logger.debug("thing " + thing.getString("id") + " cannot be applied to the definition");
+                return false;
+            }
+        }
+        prune(definition);
+        return true;
+    }
+
+    private static boolean isId(JsonObject object, String id) {
+        return object != null && id != null && id.equals(object.getString("id"));
+    }
+
+    private static int indexOf(JsonArray array, String id) {
+        for (int i = 0; i < array.size(); i++)
+            if (isId(array.getJsonObject(i), id)) return i;
+        return -1;
+    }
+
+    private static void upsert(JsonArray array, JsonObject thing) {
+        final int i = indexOf(array, thing.getString("id"));
+        if (i < 0)
+            array.add(thing);
+        else {
+            // JsonArray cannot replace an element: its backing list is raw
+            @SuppressWarnings("unchecked")
+            final List<Object> things = array.getList();
+            things.set(i, thing);
+        }
+    }
+
+    private static boolean remove(JsonArray array, String id) {
+        final int i = indexOf(array, id);
+        if (i >= 0) array.remove(i);
+        return i >= 0;
+    }
+
+    private static boolean save(JsonObject definition, String collection, JsonObject thing) {
+        final String id = thing.getString("id");
+        if (id == null) return false;
+        if (Domain.Collection.DIS.equals(collection)) {
+            final JsonObject plane = definition.getJsonObject("plane");
+            if (isId(plane, id)) {
+                definition.put("plane", thing);
+            } else if (plane != null && Objects.equals(plane.getString("id"), thing.getString("planeId"))) {
+                upsert(definition.getJsonArray("dis"), thing);
+            } else {
+                // moved out of (or never part of) this diagram
+                remove(definition.getJsonArray("dis"), id);
+            }
+            return true;
+        }
+        if (Domain.Collection.MODELS.equals(collection)) {
+            if (isId(definition.getJsonObject("diagram"), id)) {
+                definition.put("diagram", thing);
+            } else if (isId(definition.getJsonObject("root"), id)) {
+                definition.put("root", thing);
+            } else {
+                // unreachable childs are pruned afterwards
+                upsert(definition.getJsonArray("childs"), thing);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean delete(JsonObject definition, String collection, String id) {
+        if (id == null) return false;
+        if (Domain.Collection.DIS.equals(collection)) {
+            if (isId(definition.getJsonObject("plane"), id)) return false;
+            remove(definition.getJsonArray("dis"), id);
+            return true;
+        }
+        if (Domain.Collection.MODELS.equals(collection)) {
+            if (isId(definition.getJsonObject("diagram"), id) || isId(definition.getJsonObject("root"), id))
+                return false;
+            remove(definition.getJsonArray("childs"), id);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Keeps only the childs that the aggregate would reach from the root following their {@code parentId}.
+     */
+    private static void prune(JsonObject definition) {
+        final JsonArray childs = definition.getJsonArray("childs");
+        final Set<String> reachable = new HashSet<>();
+        reachable.add(definition.getJsonObject("root").getString("id"));
+        boolean grown = true;
+        while (grown) {
+            grown = false;
+            for (int i = 0; i < childs.size(); i++) {
+                final JsonObject model = childs.getJsonObject(i);
+                if (reachable.contains(model.getString("parentId")) && reachable.add(model.getString("id")))
+                    grown = true;
+            }
+        }
+        for (int i = childs.size() - 1; i >= 0; i--)
+            if (!reachable.contains(childs.getJsonObject(i).getString("id"))) childs.remove(i);
+    }
+
+}
@@ -0,0 +1,143 @@
+package it.beng.modeler.microservice.cache;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import it.beng.microservice.common.AsyncHandler;
+import it.beng.modeler.config.cpd;
+import it.beng.modeler.microservice.utils.DBUtils;
+import it.beng.modeler.model.Domain;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * <p>In-memory index of the "extensions" collection (the process tasks metadata).</p>
+ * Extensions are indexed by (processKey, taskKey) and by role, and are translated once per language:
+ * every locale in {@code cpd.app.locales} is translated at load time, any other language on first use.
+ * The index is rebuilt with {@link #load(AsyncHandler)} whenever the collection changes: in cluster mode, on
+ * every node (see {@link #reloadInCluster()}).
+ */
+public final class ExtensionsIndex {
+    private static final Logger logger = LogManager.getLogger(ExtensionsIndex.class);
+
+    private static final String RELOAD_ADDRESS = "cpd::extensionsIndex::reload";
+    private static volatile EventBus eventBus;
+
+    private static volatile Index index = new Index(Collections.emptyList(), Collections.emptyList());
+
+    private ExtensionsIndex() {}
+
+    private static final class Index {
+        private final Map<String, Map<String, JsonObject>> byKey = new HashMap<>();
+        private final Map<String, List<JsonObject>> byRole = new HashMap<>();
+        private final Map<String, Map<String, Map<String, JsonObject>>> byLanguage = new ConcurrentHashMap<>();
+
+        Index(List<JsonObject> extensions, Collection<String> languages) {
+            for (JsonObject extension : extensions) {
+                final JsonObject id = extension.getJsonObject("id");
+                byKey.computeIfAbsent(id.getString("processKey"), processKey -> new HashMap<>())
+                     .put(id.getString("taskKey"), extension);
+                final JsonArray roles = extension.getJsonObject("model").getJsonArray("roles", new JsonArray());
+                for (Object role : roles)
+                    byRole.computeIfAbsent((String) role, r -> new LinkedList<>()).add(extension);
+            }
+            languages.forEach(this::translated);
+        }
+
+        Map<String, Map<String, JsonObject>> translated(String lang) {
+            return byLanguage.computeIfAbsent(lang, l -> byKey.entrySet().stream().collect(Collectors.toMap(
+                Map.Entry::getKey,
+                process -> process.getValue().entrySet().stream().collect(Collectors.toMap(
+                    Map.Entry::getKey,
+                    task -> translate(task.getValue(), l)
+                ))
+            )));
+        }
+    }
+
+    private static JsonObject translate(JsonObject extension, String lang) {
+        final JsonObject translated = extension.copy();
+        final JsonObject model = translated.getJsonObject("model");
+        final JsonObject outputs = model.getJsonObject("outputs");
+        if (outputs != null) {
+            // if the model has outputs, translate them
+            model.put("outputs", new JsonObject(
+                outputs.stream().collect(Collectors.toMap(
+                    Map.Entry::getKey,
+                    entry -> DBUtils.langOrEN((JsonObject) entry.getValue(), lang)))
+            ));
+        }
+        return translated
+            // translate name and documentation
+            .put("name", DBUtils.langOrEN(extension.getJsonObject("name"), lang))
+            .put("documentation", DBUtils.langOrEN(extension.getJsonObject("documentation"), lang))
+            .put("model", model);
+    }
+
+    /**
+     * (Re)loads the whole collection and swaps the index once it is built.
+     */
+    public static void load(AsyncHandler<Void> handler) {
+        DBUtils.loadCollection(Domain.Collection.EXTENSIONS, load -> {
+            if (load.succeeded()) {
+                final Set<String> languages = new HashSet<>(cpd.app.locales);
+                languages.add("en");
+                index = new Index(load.result(), languages);
+                logger.info(load.result().size() + " extensions indexed in " + languages.size() + " languages");
+                handler.handle(Future.succeededFuture());
+            } else handler.handle(Future.failedFuture(load.cause()));
+        });
+    }
+
+    /**
+     * Reloads the index, logging (instead of propagating) failures.
+     */
+    public static void reload() {
+        load(reload -> {
+            if (reload.failed())
+                logger.error("could not reload extensions: " + reload.cause().getMessage());
+        });
+    }
+
+    /**
+     * Lets {@link #reloadInCluster()} reach the indexes of all the nodes of the cluster.
+     */
+    public static synchronized void joinCluster(Vertx vertx) {
+        if (eventBus != null) return;
+        eventBus = vertx.eventBus();
+        eventBus.consumer(RELOAD_ADDRESS, message -> reload());
+    }
+
+    /**
+     * Reloads the index in every node of the cluster (only in this one if it is not clustered).
+     */
+    public static void reloadInCluster() {
+        if (eventBus != null)
+            eventBus.publish(RELOAD_ADDRESS, null);
+        else
+            reload();
+    }
+
+    /**
+     * @return the extension translated in the given language (shared: it MUST NOT be modified),
+     * or {@code null} if there is no such extension
+     */
+    public static JsonObject get(String processKey, String taskKey, String lang) {
+        final Map<String, JsonObject> tasks = index.translated(lang).get(processKey);
+        return tasks != null ? tasks.get(taskKey) : null;
+    }
+
+    /**
+     * @return the (untranslated) extensions of all tasks that can be assigned to the given role
+     */
+    public static List<JsonObject> ofRole(String role) {
+        return Collections.unmodifiableList(index.byRole.getOrDefault(role, Collections.emptyList()));
+    }
+
+}
@@ -0,0 +1,200 @@
+package it.beng.modeler.microservice.cache;
+
+import io.vertx.core.json.JsonObject;
+import it.beng.modeler.config.cpd;
+import it.beng.modeler.microservice.utils.CommonUtils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+/**
+ * <p>Size bounded, access expiring, least recently used cache.</p>
+ * Keys are spread over {@code concurrencyLevel} independently locked segments,
+ * each one holding at most its share of {@code maximumSize} entries.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public final class LruCache<K, V> {
+
+    private final Segment[] segments;
+    private final long expireAfterAccess;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    public LruCache(int concurrencyLevel, int initialCapacity, int maximumSize, long expireAfterAccess) {
+        final int count = Math.max(1, Math.min(concurrencyLevel, maximumSize));
+        // an array of the inner class cannot be created with its type arguments
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        final Segment[] segments = new LruCache.Segment[count];
+        this.segments = segments;
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(
+                Math.max(1, initialCapacity / count),
+                Math.max(1, maximumSize / count + (i < maximumSize % count ? 1 : 0))
+            );
+        }
+        this.expireAfterAccess = expireAfterAccess;
+    }
+
+    /**
+     * Creates a cache configured with the {@code cpd.server.cacheBuilder} settings.
+     */
+    public static <K, V> LruCache<K, V> fromConfig() {
+        return new LruCache<>(
+            cpd.server.cacheBuilder.concurrencyLevel,
+            cpd.server.cacheBuilder.initialCapacity,
+            cpd.server.cacheBuilder.maximumSize,
+            CommonUtils.parseDuration(cpd.server.cacheBuilder.expireAfterAccess)
+        );
+    }
+
+    private Segment segment(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    public V get(K key) {
+        final V value = segment(key).get(key);
+        (value != null ? hits : misses).incrementAndGet();
+        return value;
+    }
+
+    public void put(K key, V value) {
+        segment(key).put(key, value);
+    }
+
+    /**
+     * Atomically recomputes the value of a present (and not expired) entry.
+     * A {@code null} result removes the entry.
+     */
+    public void computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remapping) {
+        segment(key).computeIfPresent(key, remapping);
+    }
+
+    public void invalidate(K key) {
+        segment(key).remove(key);
+    }
+
+    public void invalidateAll() {
+        for (Segment segment : segments) segment.clear();
+    }
+
+    /**
+     * Visits all entries, without touching their access time.
+     */
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        for (Segment segment : segments) segment.forEach(action);
+    }
+
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) size += segment.size();
+        return size;
+    }
+
+    public JsonObject stats() {
+        final long hits = this.hits.get();
+        final long misses = this.misses.get();
+        return new JsonObject()
+            .put("size", size())
+            .put("hits", hits)
+            .put("misses", misses)
+            .put("hitRate", hits + misses == 0 ? 0d : (double) hits / (hits + misses))
+            .put("evictions", evictions.get())
+            .put("expirations", expirations.get());
+    }
+
+    private static final class Entry<V> {
+        final V value;
+        long accessed;
+
+        Entry(V value, long accessed) {
+            this.value = value;
+            this.accessed = accessed;
+        }
+    }
+
+    private final class Segment {
+        private final LinkedHashMap<K, Entry<V>> map;
+
+        Segment(int initialCapacity, int maximumSize) {
+            this.map = new LinkedHashMap<K, Entry<V>>(initialCapacity, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                    if (size() > maximumSize) {
+                        evictions.incrementAndGet();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        private boolean isExpired(Entry<V> entry, long now) {
+            return expireAfterAccess > 0 && now - entry.accessed > expireAfterAccess;
+        }
+
+        // access order puts the least recently used entries first: stop at the first live one
+        private void expire(long now) {
+            final Iterator<Entry<V>> iterator = map.values().iterator();
+            while (iterator.hasNext()) {
+                if (!isExpired(iterator.next(), now)) break;
+                iterator.remove();
+                expirations.incrementAndGet();
+            }
+        }
+
+        synchronized V get(Object key) {
+            final long now = System.currentTimeMillis();
+            expire(now);
+            final Entry<V> entry = map.get(key);
+            if (entry == null) return null;
+            entry.accessed = now;
+            return entry.value;
+        }
+
+        synchronized void put(K key, V value) {
+            final long now = System.currentTimeMillis();
+            expire(now);
+            map.put(key, new Entry<>(value, now));
+        }
+
+        synchronized void computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remapping) {
+            final long now = System.currentTimeMillis();
+            expire(now);
+            final Entry<V> entry = map.get(key);
+            if (entry == null) return;
+            final V value = remapping.apply(key, entry.value);
+            if (value == null)
+                map.remove(key);
+            else
+                map.put(key, new Entry<>(value, now));
+        }
+
+        synchronized void remove(Object key) {
+            map.remove(key);
+        }
+
+        synchronized void clear() {
+            map.clear();
+        }
+
+        synchronized void forEach(BiConsumer<? super K, ? super V> action) {
+            map.forEach((key, entry) -> action.accept(key, entry.value));
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+    }
+
+}
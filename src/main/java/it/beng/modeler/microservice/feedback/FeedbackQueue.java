@@ -0,0 +1,368 @@
+package it.beng.modeler.microservice.feedback;
+
+import com.mongodb.MongoBulkWriteException;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.json.JsonObject;
+import it.beng.microservice.common.AsyncHandler;
+import it.beng.modeler.config.cpd;
+import it.beng.modeler.microservice.metrics.Metrics;
+import it.beng.modeler.microservice.utils.DBUtils;
+import it.beng.modeler.model.Domain;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * <p>Write-behind ingestion of the user feedbacks.</p>
+ * A feedback is acknowledged once appended (synced) to the current segment of the local queue, a file of one
+ * feedback per line in {@code cpd.server.feedback.queuePath}. Every {@code flushInterval}, or as soon as
+ * {@code flushSize} feedbacks are queued, a new segment is opened, the current one is closed as soon as its
+ * outstanding appends are over, and the feedbacks of the closed segments are upserted with a single bulk write:
+ * the segments are deleted once written. A failed append is blanked out of its segment, so that it is never
+ * replayed. Segments left by a previous run are flushed at startup, upserts making replays harmless.
+ */
+public final class FeedbackQueue {
+    private static final Logger logger = LogManager.getLogger(FeedbackQueue.class);
+
+    private static final Pattern SEGMENT = Pattern.compile("segment-(\\d+)\\.ndjson$");
+    private static final OpenOptions OPEN = new OpenOptions().setCreateNew(true).setDsync(true);
+
+    private static final Object lock = new Object();
+    private static Vertx vertx;
+    private static long sequence;
+    private static Segment segment;
+    // the previous segment, until its outstanding appends are over
+    private static Segment closing;
+    // closed segments, and their feedbacks, to be written
+    private static final List<String> closedSegments = new ArrayList<>();
+    private static final List<JsonObject> flushing = new ArrayList<>();
+    private static boolean flushRunning;
+
+    private static final AtomicLong appended = new AtomicLong();
+    private static final AtomicLong flushed = new AtomicLong();
+    private static final AtomicLong flushes = new AtomicLong();
+    private static final AtomicLong flushFailures = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final AtomicLong lastFlushMillis = new AtomicLong();
+    private static final AtomicLong maxFlushMillis = new AtomicLong();
+    private static final AtomicLong totalFlushMillis = new AtomicLong();
+
+    private FeedbackQueue() {}
+
+    private static final class Segment {
+        final AsyncFile file;
+        final String path;
+        long size;
+        // the appended feedbacks: failed appends are removed (by identity, feedbacks may be equal)
+        final List<JsonObject> feedbacks = new ArrayList<>();
+        int outstanding;
+        // run once the segment is rotated and its outstanding appends are over
+        Runnable drained;
+
+        Segment(AsyncFile file, String path) {
+            this.file = file;
+            this.path = path;
+        }
+
+        void remove(JsonObject feedback) {
+            feedbacks.removeIf(appended -> appended == feedback);
+        }
+
+        /**
+         * @return the drained callback to run, if the last outstanding append of a rotated segment is over
+         */
+        Runnable completed() {
+            return --outstanding == 0 ? drained : null;
+        }
+    }
+
+    /**
+     * Recovers the segments left by a previous run, opens a new segment and starts flushing.
+     */
+    public static void start(Vertx vertx, AsyncHandler<Void> handler) {
+        if (cpd.server.feedback.synchronous) {
+            handler.handle(Future.succeededFuture());
+            return;
+        }
+        FeedbackQueue.vertx = vertx;
+        Metrics.register("feedbackQueue", FeedbackQueue::metrics);
+        vertx.<Void>executeBlocking(blocking -> {
+            try {
+                recover();
+                blocking.complete();
+            } catch (RuntimeException e) {
+                blocking.fail(e);
+            }
+        }, recover -> {
+            if (recover.failed()) {
+                handler.handle(Future.failedFuture(recover.cause()));
+                return;
+            }
+            final String path = nextSegmentPath();
+            open(path, open -> {
+                if (open.failed()) {
+                    handler.handle(Future.failedFuture(open.cause()));
+                    return;
+                }
+                synchronized (lock) {
+                    segment = new Segment(open.result(), path);
+                }
+                vertx.setPeriodic(cpd.server.feedback.flushInterval, timer -> flush());
+                flush();
+                handler.handle(Future.succeededFuture());
+            });
+        });
+    }
+
+    private static void recover() {
+        final String path = cpd.server.feedback.queuePath;
+        vertx.fileSystem().mkdirsBlocking(path);
+        final SortedMap<Long, String> segments = new TreeMap<>();
+        for (String file : vertx.fileSystem().readDirBlocking(path)) {
+            final Matcher matcher = SEGMENT.matcher(file);
+            if (matcher.find()) segments.put(Long.parseLong(matcher.group(1)), file);
+        }
+        for (String file : segments.values()) {
+            for (String line : vertx.fileSystem().readFileBlocking(file).toString().split("\n")) {
+                if (line.trim().isEmpty()) continue;
+                try {
+                    flushing.add(new JsonObject(line));
+                } catch (RuntimeException e) {
+                    // e.g. the last line of a segment cut by a crash: it was never acknowledged
+                    dropped.incrementAndGet();
+                    logger.warn("unreadable feedback dropped from " + file);
+                }
+            }
+            closedSegments.add(file);
+        }
+        sequence = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        if (!flushing.isEmpty())
+            logger.info(flushing.size() + " queued feedbacks recovered from " + segments.size() + " segments");
+    }
+
+    private static String nextSegmentPath() {
+        synchronized (lock) {
+            return cpd.server.feedback.queuePath + String.format("segment-%012d.ndjson", sequence++);
+        }
+    }
+
+    private static void open(String path, AsyncHandler<AsyncFile> handler) {
+        vertx.fileSystem().open(path, OPEN, open -> {
+            if (open.succeeded())
+                handler.handle(Future.succeededFuture(open.result()));
+            else
+                handler.handle(Future.failedFuture(open.cause()));
+        });
+    }
+
+    /**
+     * Queues the feedback.
+     *
+     * @return {@code false} if the queue is full (the feedback is dropped)
+     */
+    public static void append(JsonObject feedback, AsyncHandler<Boolean> handler) {
+        synchronized (lock) {
+            if (segment == null) {
+                handler.handle(Future.failedFuture("feedback queue not started"));
+                return;
+            }
+            if (depth() >= cpd.server.feedback.capacity) {
+                dropped.incrementAndGet();
+                handler.handle(Future.succeededFuture(false));
+                return;
+            }
+            final Segment appending = segment;
+            final Buffer line = Buffer.buffer(feedback.encode() + "\n");
+            final long position = appending.size;
+            appending.feedbacks.add(feedback);
+            appending.outstanding++;
+            appending.file.write(line, position, write -> {
+                if (write.failed()) {
+                    failed(appending, feedback, line.length(), position);
+                    handler.handle(Future.failedFuture(write.cause()));
+                    return;
+                }
+                final Runnable drained;
+                synchronized (lock) {
+                    drained = appending.completed();
+                }
+                appended.incrementAndGet();
+                handler.handle(Future.succeededFuture(true));
+                if (drained != null) drained.run();
+            });
+            appending.size += line.length();
+            if (appending.feedbacks.size() < cpd.server.feedback.flushSize) return;
+        }
+        vertx.runOnContext(flush -> flush());
+    }
+
+    /**
+     * Forgets the feedback of a failed append and blanks its line (it may have been written, or partially
+     * written): blank lines are skipped when the segment is recovered.
+     */
+    private static void failed(Segment appending, JsonObject feedback, int length, long position) {
+        synchronized (lock) {
+            appending.remove(feedback);
+        }
+        final Buffer blank = Buffer.buffer(length);
+        for (int i = 0; i < length - 1; i++) blank.appendByte((byte) ' ');
+        blank.appendByte((byte) '\n');
+        appending.file.write(blank, position, write -> {
+            if (write.failed())
+                logger.error("could not blank a failed feedback append in " + appending.path + ": "
+                    + write.cause().getMessage());
+            final Runnable drained;
+            synchronized (lock) {
+                drained = appending.completed();
+            }
+            if (drained != null) drained.run();
+        });
+    }
+
+    private static int depth() {
+        return segment.feedbacks.size() + (closing != null ? closing.feedbacks.size() : 0) + flushing.size();
+    }
+
+    /**
+     * Switches to a new segment, closes the current one and writes the feedbacks of the closed segments.
+     */
+    private static void flush() {
+        final boolean rotate;
+        synchronized (lock) {
+            if (flushRunning || segment == null || segment.feedbacks.isEmpty() && flushing.isEmpty()) return;
+            flushRunning = true;
+            rotate = !segment.feedbacks.isEmpty();
+        }
+        if (!rotate) {
+            // the feedbacks of a failed flush
+            write();
+            return;
+        }
+        final String path = nextSegmentPath();
+        open(path, open -> {
+            if (open.failed()) {
+                logger.error("could not rotate the feedback queue: " + open.cause().getMessage());
+                synchronized (lock) {
+                    flushRunning = false;
+                }
+                return;
+            }
+            final boolean drained;
+            synchronized (lock) {
+                closing = segment;
+                segment = new Segment(open.result(), path);
+                // the feedbacks of the closing segment are final only once its outstanding appends are over
+                closing.drained = FeedbackQueue::close;
+                drained = closing.outstanding == 0;
+            }
+            if (drained) close();
+        });
+    }
+
+    private static void close() {
+        final Segment closed;
+        synchronized (lock) {
+            closed = closing;
+            closing = null;
+            closedSegments.add(closed.path);
+            flushing.addAll(closed.feedbacks);
+        }
+        closed.file.close(close -> {
+            if (close.failed())
+                logger.error("could not close feedback queue segment: " + close.cause().getMessage());
+            write();
+        });
+    }
+
+    private static void write() {
+        final List<JsonObject> batch;
+        final List<String> segments;
+        synchronized (lock) {
+            batch = new ArrayList<>(flushing);
+            segments = new ArrayList<>(closedSegments);
+        }
+        if (batch.isEmpty()) {
+            // e.g. all the appends of the closed segments failed
+            written(0, segments);
+            return;
+        }
+        final long start = System.currentTimeMillis();
+        DBUtils.bulkWrite(Domain.Collection.USER_FEEDBACKS,
+            batch.stream().map(DBUtils::bulkSave).collect(Collectors.toList()), bulkWrite -> {
+                final long millis = System.currentTimeMillis() - start;
+                lastFlushMillis.set(millis);
+                maxFlushMillis.accumulateAndGet(millis, Math::max);
+                totalFlushMillis.addAndGet(millis);
+                flushes.incrementAndGet();
+                if (bulkWrite.succeeded()) {
+                    written(batch.size(), segments);
+                    return;
+                }
+                flushFailures.incrementAndGet();
+                final int failedAt = bulkWrite.cause() instanceof MongoBulkWriteException
+                    && !((MongoBulkWriteException) bulkWrite.cause()).getWriteErrors().isEmpty()
+                    ? ((MongoBulkWriteException) bulkWrite.cause()).getWriteErrors().get(0).getIndex() : -1;
+                if (failedAt < 0) {
+                    // e.g. no database: everything is retried with the next flush
+                    logger.error("could not flush " + batch.size() + " feedbacks: " + bulkWrite.cause().getMessage());
+                    synchronized (lock) {
+                        flushRunning = false;
+                    }
+                    return;
+                }
+                // the write is ordered: feedbacks before the rejected one are written, the others are retried
+                dropped.incrementAndGet();
+                logger.error("feedback " + batch.get(failedAt).getString("id") + " dropped: "
+                    + ((MongoBulkWriteException) bulkWrite.cause()).getWriteErrors().get(0).getMessage());
+                final boolean done;
+                synchronized (lock) {
+                    flushing.subList(0, failedAt + 1).clear();
+                    done = flushing.isEmpty();
+                }
+                flushed.addAndGet(failedAt);
+                if (done)
+                    written(0, segments);
+                else
+                    write();
+            });
+    }
+
+    private static void written(int count, List<String> segments) {
+        flushed.addAndGet(count);
+        synchronized (lock) {
+            flushing.clear();
+            closedSegments.removeAll(segments);
+            flushRunning = false;
+        }
+        segments.forEach(path -> vertx.fileSystem().delete(path, delete -> {
+            if (delete.failed())
+                logger.error("could not delete feedback queue segment " + path + ": " + delete.cause().getMessage());
+        }));
+    }
+
+    private static JsonObject metrics() {
+        synchronized (lock) {
+            return new JsonObject()
+                .put("depth", segment != null ? depth() : flushing.size())
+                .put("segments", closedSegments.size() + (segment != null ? 1 : 0) + (closing != null ? 1 : 0))
+                .put("appended", appended.get())
+                .put("flushed", flushed.get())
+                .put("dropped", dropped.get())
+                .put("flushes", flushes.get())
+                .put("flushFailures", flushFailures.get())
+                .put("lastFlushMillis", lastFlushMillis.get())
+                .put("maxFlushMillis", maxFlushMillis.get())
+                .put("avgFlushMillis", flushes.get() > 0 ? totalFlushMillis.get() / flushes.get() : 0);
+        }
+    }
+
+}
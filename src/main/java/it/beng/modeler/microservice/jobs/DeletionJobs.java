@@ -0,0 +1,279 @@
+package it.beng.modeler.microservice.jobs;
+
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.FindOptions;
+import it.beng.microservice.common.AsyncHandler;
+import it.beng.microservice.common.Countdown;
+import it.beng.modeler.config.cpd;
+import it.beng.modeler.microservice.cache.DefinitionCache;
+import it.beng.modeler.microservice.journal.DiagramJournal;
+import it.beng.modeler.microservice.metrics.Metrics;
+import it.beng.modeler.microservice.summaries.ProcedureSummaries;
+import it.beng.modeler.microservice.utils.DBUtils;
+import it.beng.modeler.model.Domain;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.time.OffsetDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * <p>Background deletion of collaborations.</p>
+ * A job deletes its collaborations {@code cpd.server.jobs.chunkSize} at a time: first their processes (on the
+ * process engine workers), then, for the collaborations whose processes are gone, all their documents with a
+ * single delete per collection. Ids that are not diagrams are reported as not found (404). A collaboration whose
+ * deletion fails is left as it is (and reported), so that it can be deleted again. The status of a job is saved
+ * after each chunk in the {@code deletion.jobs} collection, so that any node of the cluster can report it, and it
+ * is kept there for {@code retention} after the job ends.
+ */
+public final class DeletionJobs {
+    private static final Logger logger = LogManager.getLogger(DeletionJobs.class);
+
+    public static final String RUNNING = "running";
+    public static final String COMPLETED = "completed";
+
+    // the jobs running on this node
+    private static final Map<String, JsonObject> JOBS = new ConcurrentHashMap<>();
+
+    private static final AtomicLong started = new AtomicLong();
+    private static final AtomicLong deleted = new AtomicLong();
+    private static final AtomicLong failed = new AtomicLong();
+
+    static {
+        Metrics.register("deletionJobs", DeletionJobs::metrics);
+    }
+
+    private DeletionJobs() {}
+
+    /**
+     * Starts deleting the collaborations, once the initial status of the job is saved.
+     *
+     * @return the initial status of the job
+     */
+    public static void start(List<String> collaborationIds, AsyncHandler<JsonObject> handler) {
+        final List<String> ids = collaborationIds.stream().distinct().collect(Collectors.toList());
+        final JsonObject job = new JsonObject()
+            .put("id", UUID.randomUUID().toString())
+            .put("state", RUNNING)
+            .put("total", ids.size())
+            .put("processed", 0)
+            .put("deleted", new JsonArray())
+            .put("failures", new JsonArray())
+            .put("removed", new JsonObject())
+            .put("started", OffsetDateTime.now().toString());
+        final JsonObject status = job.copy();
+        save(job, save -> {
+            if (save.failed()) {
+                handler.handle(Future.failedFuture(save.cause()));
+                return;
+            }
+            JOBS.put(job.getString("id"), job);
+            started.incrementAndGet();
+            logger.info("deletion job " + job.getString("id") + " started for " + ids.size() + " collaborations");
+            run(job, ids.iterator());
+            handler.handle(Future.succeededFuture(status));
+        });
+    }
+
+    /**
+     * @return the status of the job, or {@code null} if there is no such job (anymore)
+     */
+    public static void status(String jobId, AsyncHandler<JsonObject> handler) {
+        cpd.mongoClient().findOne(Domain.Collection.DELETION_JOBS, new JsonObject().put("_id", jobId), null,
+            findOne -> {
+                if (findOne.failed()) {
+                    handler.handle(Future.failedFuture(findOne.cause()));
+                    return;
+                }
+                final JsonObject status = findOne.result();
+                if (status != null) {
+                    status.remove("_id");
+                    status.remove("expires");
+                }
+                handler.handle(Future.succeededFuture(status));
+            });
+    }
+
+    /**
+     * Saves the status of the job, that expires after the retention: a job whose node went down while it was
+     * running is not saved anymore, so its status expires as well.
+     */
+    private static void save(JsonObject job, AsyncHandler<Void> handler) {
+        final JsonObject status;
+        synchronized (job) {
+            status = job.copy().put("_id", job.getString("id"));
+        }
+        status.put("expires", DBUtils.mongoDateTime(
+            OffsetDateTime.now().plus(cpd.server.jobs.retention, ChronoUnit.MILLIS)));
+        cpd.mongoClient().save(Domain.Collection.DELETION_JOBS, status, save -> {
+            if (save.succeeded())
+                handler.handle(Future.succeededFuture());
+            else {
+                logger.error("could not save the status of deletion job " + job.getString("id") + ": "
+                    + save.cause().getMessage());
+                handler.handle(Future.failedFuture(save.cause()));
+            }
+        });
+    }
+
+    private static void run(JsonObject job, Iterator<String> ids) {
+        final List<String> chunk = new ArrayList<>();
+        while (ids.hasNext() && chunk.size() < cpd.server.jobs.chunkSize) chunk.add(ids.next());
+        if (chunk.isEmpty()) {
+            synchronized (job) {
+                job.put("state", COMPLETED).put("finished", OffsetDateTime.now().toString());
+            }
+            logger.info("deletion job " + job.getString("id") + " completed: " + job.getJsonArray("deleted").size()
+                + " collaborations deleted, " + job.getJsonArray("failures").size() + " failed");
+            save(job, save -> JOBS.remove(job.getString("id")));
+            return;
+        }
+        diagrams(job, chunk, diagrams -> deleteProcesses(job, diagrams.result(), withoutProcesses ->
+            deleteDocuments(job, withoutProcesses.result(), documents -> {
+                synchronized (job) {
+                    job.put("processed", job.getInteger("processed") + chunk.size());
+                }
+                // the deletion goes on even if its status could not be saved
+                save(job, save -> run(job, ids));
+            })));
+    }
+
+    private static void failed(JsonObject job, String collaborationId, Throwable cause) {
+        failed.incrementAndGet();
+        logger.error("could not delete collaboration " + collaborationId + ": " + cause.getMessage());
+        synchronized (job) {
+            job.getJsonArray("failures").add(new JsonObject()
+                .put("id", collaborationId)
+                .put("message", cause.getMessage()));
+        }
+    }
+
+    private static void notFound(JsonObject job, String collaborationId) {
+        failed.incrementAndGet();
+        synchronized (job) {
+            job.getJsonArray("failures").add(new JsonObject()
+                .put("id", collaborationId)
+                .put("status", HttpResponseStatus.NOT_FOUND.code())
+                .put("message", "collaboration not found"));
+        }
+    }
+
+    /**
+     * @return the ids of the chunk that are diagrams, the others being reported as not found
+     */
+    private static void diagrams(JsonObject job, List<String> chunk, AsyncHandler<List<String>> handler) {
+        final Domain diagramDomain = Domain.ofDefinition(Domain.Definition.DIAGRAM);
+        final JsonObject query = DBUtils.toMongo(DBUtils.and(Arrays.asList(diagramDomain.getQuery(),
+            new JsonObject().put("id", new JsonObject().put("$in", new JsonArray(chunk))))));
+        cpd.mongoClient().findWithOptions(diagramDomain.getCollection(), query,
+            new FindOptions().setFields(new JsonObject().put("_id", 1)), find -> {
+                if (find.failed()) {
+                    chunk.forEach(id -> failed(job, id, find.cause()));
+                    handler.handle(Future.succeededFuture(Collections.emptyList()));
+                    return;
+                }
+                final Set<Object> found = find.result().stream()
+                                              .map(diagram -> diagram.getValue("_id"))
+                                              .collect(Collectors.toSet());
+                chunk.stream().filter(id -> !found.contains(id)).forEach(id -> notFound(job, id));
+                handler.handle(Future.succeededFuture(
+                    chunk.stream().filter(found::contains).collect(Collectors.toList())));
+            });
+    }
+
+    /**
+     * @return the collaborations whose processes have been deleted
+     */
+    private static void deleteProcesses(JsonObject job, List<String> chunk, AsyncHandler<List<String>> handler) {
+        if (chunk.isEmpty()) {
+            handler.handle(Future.succeededFuture(chunk));
+            return;
+        }
+        final List<String> deleted = Collections.synchronizedList(new ArrayList<>());
+        final Countdown countdown = new Countdown(chunk.size()).onComplete(zero -> {
+            // keep the order of the chunk
+            handler.handle(Future.succeededFuture(
+                chunk.stream().filter(deleted::contains).collect(Collectors.toList())));
+        });
+        chunk.forEach(id -> cpd.processEngineService().deleteCollaboration(id, deleteProcesses -> {
+            if (deleteProcesses.succeeded())
+                deleted.add(id);
+            else
+                failed(job, id, deleteProcesses.cause());
+            countdown.next();
+        }));
+    }
+
+    private static void deleteDocuments(JsonObject job, List<String> collaborationIds, AsyncHandler<Void> handler) {
+        if (collaborationIds.isEmpty()) {
+            handler.handle(Future.succeededFuture());
+            return;
+        }
+        final JsonObject ids = new JsonObject().put("$in", new JsonArray(collaborationIds));
+        final Map<String, Long> removed = new ConcurrentHashMap<>();
+        final Countdown countdown = new Countdown(3).onComplete(documents -> {
+            if (documents.succeeded()) {
+                synchronized (job) {
+                    collaborationIds.forEach(job.getJsonArray("deleted")::add);
+                    final JsonObject counts = job.getJsonObject("removed");
+                    removed.forEach((collection, count) ->
+                        counts.put(collection, counts.getLong(collection, 0L) + count));
+                }
+                deleted.addAndGet(collaborationIds.size());
+                collaborationIds.forEach(DefinitionCache::invalidateInCluster);
+                collaborationIds.forEach(ProcedureSummaries::changed);
+            } else collaborationIds.forEach(id -> failed(job, id, documents.cause()));
+            handler.handle(Future.succeededFuture());
+        });
+        // models: the diagrams and everything designed in them
+        remove(Domain.Collection.MODELS, new JsonObject().put("$or", new JsonArray()
+            .add(new JsonObject().put("_id", ids))
+            .add(new JsonObject().put("designId", ids))), removed, countdown);
+        // dis: the planes of the diagrams and everything drawn on them
+        cpd.mongoClient().findWithOptions(Domain.Collection.DIS, new JsonObject().put("modelId", ids),
+            new FindOptions().setFields(new JsonObject().put("_id", 1)), planes -> {
+                if (planes.failed()) {
+                    countdown.fail(planes.cause());
+                    return;
+                }
+                final JsonArray planeIds = new JsonArray(planes.result().stream()
+                                                                .map(plane -> plane.getValue("_id"))
+                                                                .collect(Collectors.toList()));
+                remove(Domain.Collection.DIS, new JsonObject().put("$or", new JsonArray()
+                    .add(new JsonObject().put("modelId", ids))
+                    .add(new JsonObject().put("planeId", new JsonObject().put("$in", planeIds)))), removed, countdown);
+            });
+        DiagramJournal.purge(collaborationIds, purge -> {
+            if (purge.succeeded()) {
+                removed.putAll(purge.result());
+                countdown.next();
+            } else countdown.fail(purge.cause());
+        });
+    }
+
+    private static void remove(String collection, JsonObject query, Map<String, Long> removed, Countdown countdown) {
+        cpd.mongoClient().removeDocuments(collection, query, remove -> {
+            if (remove.succeeded()) {
+                removed.put(collection, remove.result().getRemovedCount());
+                countdown.next();
+            } else countdown.fail(remove.cause());
+        });
+    }
+
+    private static JsonObject metrics() {
+        return new JsonObject()
+            .put("jobs", JOBS.size())
+            .put("running", JOBS.values().stream().filter(job -> RUNNING.equals(job.getString("state"))).count())
+            .put("started", started.get())
+            .put("deleted", deleted.get())
+            .put("failed", failed.get());
+    }
+
+}
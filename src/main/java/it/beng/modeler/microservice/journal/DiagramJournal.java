@@ -0,0 +1,223 @@
+package it.beng.modeler.microservice.journal;
+
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.FindOptions;
+import io.vertx.ext.mongo.UpdateOptions;
+import it.beng.microservice.common.AsyncHandler;
+import it.beng.microservice.common.Countdown;
+import it.beng.microservice.db.MongoDB;
+import it.beng.modeler.config.cpd;
+import it.beng.modeler.model.Domain;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Per-diagram revisions and append-only journal of the changes made by the diagram publish actions.</p>
+ * Every publish action takes the next revision of its diagram and then journals the things it has
+ * created, updated or deleted under that revision. The last {@code cpd.server.journal.history} revisions
+ * of each diagram are kept, as its history; clients lagging more than {@code maxGap} revisions behind must
+ * reload the whole definition, which is then the latest {@link DiagramSnapshots snapshot} plus the journal tail.
+ */
+public final class DiagramJournal {
+    private static final Logger logger = LogManager.getLogger(DiagramJournal.class);
+
+    public static final String CREATED = "created";
+    public static final String UPDATED = "updated";
+    public static final String DELETED = "deleted";
+
+    private static final MongoDB mongodb = cpd.dataDB();
+
+    private DiagramJournal() {}
+
+    private static JsonObject revisionQuery(String diagramId) {
+        return new JsonObject().put("_id", diagramId);
+    }
+
+    private static long revisionOf(JsonObject document) {
+        return document != null ? document.getLong("revision", 0L) : 0L;
+    }
+
+    /**
+     * @return the current revision of the diagram (0 if it has never been changed)
+     */
+    public static void revision(String diagramId, AsyncHandler<Long> handler) {
+        cpd.mongoClient().findOne(Domain.Collection.DIAGRAM_REVISIONS, revisionQuery(diagramId), null, findOne -> {
+            if (findOne.succeeded())
+                handler.handle(Future.succeededFuture(revisionOf(findOne.result())));
+            else
+                handler.handle(Future.failedFuture(findOne.cause()));
+        });
+    }
+
+    /**
+     * Atomically increments and returns the revision of the diagram.
+     */
+    public static void nextRevision(String diagramId, AsyncHandler<Long> handler) {
+        cpd.mongoClient().findOneAndUpdateWithOptions(
+            Domain.Collection.DIAGRAM_REVISIONS,
+            revisionQuery(diagramId),
+            new JsonObject().put("$inc", new JsonObject().put("revision", 1L)),
+            new FindOptions(),
+            new UpdateOptions().setUpsert(true).setReturningNewDocument(true),
+            update -> {
+                if (update.succeeded())
+                    handler.handle(Future.succeededFuture(revisionOf(update.result())));
+                else
+                    handler.handle(Future.failedFuture(update.cause()));
+            });
+    }
+
+    /**
+     * Journals the changes made under the given revision.
+     *
+     * @param changes an object with (any of) the {@code created}, {@code updated} and {@code deleted} things
+     */
+    public static void append(String diagramId, long revision, JsonObject changes, AsyncHandler<Void> handler) {
+        final JsonObject entry = new JsonObject()
+            .put("id", diagramId + "@" + revision)
+            .put("diagramId", diagramId)
+            .put("revision", revision)
+            .put(CREATED, changes.getJsonArray(CREATED, new JsonArray()))
+            .put(UPDATED, changes.getJsonArray(UPDATED, new JsonArray()))
+            .put(DELETED, changes.getJsonArray(DELETED, new JsonArray()));
+        mongodb.insert(Domain.Collection.DIAGRAM_JOURNAL, entry, insert -> {
+            if (insert.failed()) {
+                handler.handle(Future.failedFuture(insert.cause()));
+                return;
+            }
+            DiagramSnapshots.changed(diagramId);
+            if (revision % cpd.server.journal.maxGap == 0) {
+                // entries older than the history are never folded again (history >= maxGap)
+                mongodb.removeDocuments(Domain.Collection.DIAGRAM_JOURNAL, new JsonObject()
+                    .put("diagramId", diagramId)
+                    .put("revision", new JsonObject().put("$lte", revision - cpd.server.journal.history)), trim -> {
+                    if (trim.failed())
+                        logger.error("could not trim journal of diagram " + diagramId + ": " + trim.cause().getMessage());
+                });
+            }
+            handler.handle(Future.succeededFuture());
+        });
+    }
+
+    /**
+     * Takes the next revision of the diagram and journals the changes under it: to be used for the changes not
+     * made by the diagram actions.
+     *
+     * @return the revision
+     */
+    public static void journal(String diagramId, JsonObject changes, AsyncHandler<Long> handler) {
+        nextRevision(diagramId, nextRevision -> {
+            if (nextRevision.failed()) {
+                handler.handle(Future.failedFuture(nextRevision.cause()));
+                return;
+            }
+            append(diagramId, nextRevision.result(), changes, append -> {
+                if (append.succeeded())
+                    handler.handle(Future.succeededFuture(nextRevision.result()));
+                else
+                    handler.handle(Future.failedFuture(append.cause()));
+            });
+        });
+    }
+
+    /**
+     * Removes the journal, revision and snapshot of the (deleted) diagrams.
+     *
+     * @return the number of removed documents, by collection
+     */
+    public static void purge(List<String> diagramIds, AsyncHandler<Map<String, Long>> handler) {
+        final JsonObject ids = new JsonObject().put("$in", new JsonArray(diagramIds));
+        final Map<String, JsonObject> queries = new LinkedHashMap<>();
+        queries.put(Domain.Collection.DIAGRAM_JOURNAL, new JsonObject().put("diagramId", ids));
+        queries.put(Domain.Collection.DIAGRAM_REVISIONS, new JsonObject().put("_id", ids));
+        queries.put(Domain.Collection.DIAGRAM_SNAPSHOTS, new JsonObject().put("_id", ids));
+        final Map<String, Long> removed = new LinkedHashMap<>();
+        final Countdown countdown = new Countdown(queries.size()).onComplete(purged -> {
+            if (purged.succeeded()) {
+                diagramIds.forEach(DiagramSnapshots::forget);
+                handler.handle(Future.succeededFuture(removed));
+            } else handler.handle(Future.failedFuture(purged.cause()));
+        });
+        queries.forEach((collection, query) -> cpd.mongoClient().removeDocuments(collection, query, remove -> {
+            if (remove.succeeded()) {
+                removed.put(collection, remove.result().getRemovedCount());
+                countdown.next();
+            } else countdown.fail(remove.cause());
+        }));
+    }
+
+    /**
+     * Folds all changes made after {@code since} into a single set of created, updated and deleted things,
+     * each thing appearing at most once and with its last known state.
+     *
+     * @return {@code {fromRevision, revision, created, updated, deleted}}, or {@code null} if the journal
+     * cannot tell what changed (the client is too far behind, ahead of the server, or some entry is missing)
+     */
+    public static void since(String diagramId, long since, AsyncHandler<JsonObject> handler) {
+        revision(diagramId, revision -> {
+            if (revision.failed()) {
+                handler.handle(Future.failedFuture(revision.cause()));
+                return;
+            }
+            final long current = revision.result();
+            if (since > current || current - since > cpd.server.journal.maxGap) {
+                handler.handle(Future.succeededFuture(null));
+                return;
+            }
+            final JsonObject query = new JsonObject()
+                .put("diagramId", diagramId)
+                .put("revision", new JsonObject().put("$gt", since).put("$lte", current));
+            final FindOptions options = new FindOptions().setSort(new JsonObject().put("revision", 1));
+            mongodb.findWithOptions(Domain.Collection.DIAGRAM_JOURNAL, query, options, find -> {
+                if (find.failed()) {
+                    handler.handle(Future.failedFuture(find.cause()));
+                    return;
+                }
+                final List<JsonObject> entries = find.result();
+                if (entries.size() != current - since) {
+                    logger.debug("journal of diagram " + diagramId + " has " + entries.size()
+                        + " of " + (current - since) + " entries since revision " + since);
+                    handler.handle(Future.succeededFuture(null));
+                    return;
+                }
+                handler.handle(Future.succeededFuture(fold(entries)
+                    .put("fromRevision", since)
+                    .put("revision", current)));
+            });
+        });
+    }
+
+    /**
+     * Folds the entries, in order, into a single set of created, updated and deleted things.
+     */
+    public static JsonObject fold(List<JsonObject> entries) {
+        // thing id -> {change, thing}, in order of first change
+        final Map<String, Object[]> changes = new LinkedHashMap<>();
+        for (JsonObject entry : entries) {
+            for (Object thing : entry.getJsonArray(CREATED))
+                changes.compute(((JsonObject) thing).getString("id"), (id, previous) ->
+                    // re-created after being deleted: the client still has to replace it
+                    new Object[]{previous != null && DELETED.equals(previous[0]) ? UPDATED : CREATED, thing});
+            for (Object thing : entry.getJsonArray(UPDATED))
+                changes.compute(((JsonObject) thing).getString("id"), (id, previous) ->
+                    new Object[]{previous != null && CREATED.equals(previous[0]) ? CREATED : UPDATED, thing});
+            for (Object thing : entry.getJsonArray(DELETED))
+                changes.compute(((JsonObject) thing).getString("id"), (id, previous) ->
+                    // created and deleted in the gap: the client never saw it
+                    previous != null && CREATED.equals(previous[0]) ? null : new Object[]{DELETED, thing});
+        }
+        final JsonObject result = new JsonObject()
+            .put(CREATED, new JsonArray())
+            .put(UPDATED, new JsonArray())
+            .put(DELETED, new JsonArray());
+        changes.values().forEach(change -> result.getJsonArray((String) change[0]).add(change[1]));
+        return result;
+    }
+
+}
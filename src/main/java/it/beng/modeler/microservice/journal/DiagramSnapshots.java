@@ -0,0 +1,208 @@
+package it.beng.modeler.microservice.journal;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import it.beng.microservice.common.AsyncHandler;
+import it.beng.modeler.config.cpd;
+import it.beng.modeler.microservice.cache.DefinitionCache;
+import it.beng.modeler.microservice.metrics.Metrics;
+import it.beng.modeler.microservice.utils.DBUtils;
+import it.beng.modeler.model.Domain;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.time.OffsetDateTime;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * <p>Periodic snapshots of the diagram definitions.</p>
+ * A snapshot is the whole definition (as computed by the {@code getDiagramDefinition} aggregate) taken at a
+ * revision: loading a diagram is then the snapshot plus the journal entries after it, the aggregate running only
+ * when there is no usable snapshot. Every {@code cpd.server.journal.snapshotPeriod} the compactor takes a new
+ * snapshot of each diagram journaled by this node at least {@code snapshotEvery} times since its last one.
+ * Snapshots are taken in the mailbox of the diagram, between two of its actions: no revision is in flight then.
+ */
+public final class DiagramSnapshots {
+    private static final Logger logger = LogManager.getLogger(DiagramSnapshots.class);
+
+    // diagram id -> revisions journaled (by this node) since its last snapshot
+    private static final Map<String, AtomicInteger> CHANGED = new ConcurrentHashMap<>();
+    private static final AtomicBoolean compacting = new AtomicBoolean();
+
+    private static final AtomicLong taken = new AtomicLong();
+    private static final AtomicLong failed = new AtomicLong();
+    private static final AtomicLong loaded = new AtomicLong();
+    private static final AtomicLong missed = new AtomicLong();
+
+    static {
+        Metrics.register("snapshots", DiagramSnapshots::metrics);
+    }
+
+    private DiagramSnapshots() {}
+
+    static void changed(String diagramId) {
+        CHANGED.computeIfAbsent(diagramId, id -> new AtomicInteger()).incrementAndGet();
+    }
+
+    static void forget(String diagramId) {
+        CHANGED.remove(diagramId);
+    }
+
+    private static void due(String diagramId) {
+        CHANGED.computeIfAbsent(diagramId, id -> new AtomicInteger()).addAndGet(cpd.server.journal.snapshotEvery);
+    }
+
+    private static BiConsumer<String, Consumer<Runnable>> mailbox;
+
+    /**
+     * Starts the compactor, that only snapshots the diagrams accepted by {@code owned}, one at a time.
+     *
+     * @param mailbox submits a task (that runs its {@code done} callback once over) to the mailbox of a diagram
+     */
+    public static void start(Vertx vertx, Predicate<String> owned, BiConsumer<String, Consumer<Runnable>> mailbox) {
+        DiagramSnapshots.mailbox = mailbox;
+        vertx.setPeriodic(cpd.server.journal.snapshotPeriod, id -> {
+            if (!compacting.compareAndSet(false, true)) return;
+            final List<String> diagramIds = CHANGED.entrySet().stream()
+                                                   .filter(entry -> entry.getValue().get() >= cpd.server.journal.snapshotEvery)
+                                                   .map(Map.Entry::getKey)
+                                                   .collect(Collectors.toList());
+            diagramIds.stream().filter(owned.negate()).forEach(CHANGED::remove);
+            compact(diagramIds.stream().filter(owned).iterator());
+        });
+    }
+
+    private static void compact(Iterator<String> diagramIds) {
+        if (!diagramIds.hasNext()) {
+            compacting.set(false);
+            return;
+        }
+        final String diagramId = diagramIds.next();
+        mailbox.accept(diagramId, done -> take(diagramId, take -> {
+            done.run();
+            if (take.failed()) {
+                failed.incrementAndGet();
+                logger.error("could not snapshot diagram " + diagramId + ": " + take.cause().getMessage());
+            }
+            compact(diagramIds);
+        }));
+    }
+
+    /**
+     * Takes a snapshot of the definition, at the revision read before loading it. It MUST run in the mailbox of
+     * the diagram: the writes of every revision taken so far are then over, and the definition is at least that
+     * recent (the journal entries it already includes are simply applied again when it is loaded).
+     */
+    private static void take(String diagramId, AsyncHandler<Void> handler) {
+        final AtomicInteger changed = CHANGED.get(diagramId);
+        final int counted = changed != null ? changed.get() : 0;
+        DiagramJournal.revision(diagramId, revision -> {
+            if (revision.failed()) {
+                handler.handle(Future.failedFuture(revision.cause()));
+                return;
+            }
+            DBUtils.diagramDefinition(diagramId, definition -> {
+                if (definition.failed()) {
+                    handler.handle(Future.failedFuture(definition.cause()));
+                    return;
+                }
+                final JsonObject snapshot = new JsonObject()
+                    .put("_id", diagramId)
+                    .put("revision", revision.result())
+                    // stored as a string: things have "$" fields that cannot be nested in a mongo document
+                    .put("definition", definition.result().encode())
+                    .put("taken", DBUtils.mongoDateTime(OffsetDateTime.now()));
+                cpd.mongoClient().save(Domain.Collection.DIAGRAM_SNAPSHOTS, snapshot, save -> {
+                    if (save.failed()) {
+                        handler.handle(Future.failedFuture(save.cause()));
+                        return;
+                    }
+                    taken.incrementAndGet();
+                    CHANGED.computeIfPresent(diagramId, (id, count) -> count.addAndGet(-counted) > 0 ? count : null);
+                    handler.handle(Future.succeededFuture());
+                });
+            });
+        });
+    }
+
+    /**
+     * Drops the snapshot of the diagram (all of them if {@code diagramId} is {@code null}), so that it is loaded
+     * with the aggregate again: to be used for the changes that cannot be journaled.
+     */
+    public static void drop(String diagramId, AsyncHandler<Void> handler) {
+        final JsonObject query = diagramId != null ? new JsonObject().put("_id", diagramId) : new JsonObject();
+        cpd.mongoClient().removeDocuments(Domain.Collection.DIAGRAM_SNAPSHOTS, query, remove -> {
+            if (remove.succeeded())
+                handler.handle(Future.succeededFuture());
+            else
+                handler.handle(Future.failedFuture(remove.cause()));
+        });
+    }
+
+    /**
+     * @return the latest snapshot with the journal entries after it applied, or {@code null} if the diagram
+     * has no snapshot or it cannot be brought up to date (the diagram is then due for a new one)
+     */
+    public static void load(String diagramId, AsyncHandler<JsonObject> handler) {
+        final JsonObject query = new JsonObject().put("_id", diagramId);
+        cpd.mongoClient().findOne(Domain.Collection.DIAGRAM_SNAPSHOTS, query, null, findOne -> {
+            if (findOne.failed()) {
+                handler.handle(Future.failedFuture(findOne.cause()));
+                return;
+            }
+            final JsonObject snapshot = findOne.result();
+            if (snapshot == null) {
+                missed(diagramId, handler);
+                return;
+            }
+            DiagramJournal.since(diagramId, snapshot.getLong("revision", 0L), since -> {
+                if (since.failed()) {
+                    handler.handle(Future.failedFuture(since.cause()));
+                    return;
+                }
+                if (since.result() == null) {
+                    missed(diagramId, handler);
+                    return;
+                }
+                final JsonObject definition = new JsonObject(snapshot.getString("definition"));
+                final List<JsonObject> saved = new LinkedList<>();
+                since.result().getJsonArray(DiagramJournal.CREATED).forEach(thing -> saved.add((JsonObject) thing));
+                since.result().getJsonArray(DiagramJournal.UPDATED).forEach(thing -> saved.add((JsonObject) thing));
+                final List<JsonObject> deleted = new LinkedList<>();
+                since.result().getJsonArray(DiagramJournal.DELETED).forEach(thing -> deleted.add((JsonObject) thing));
+                if (DefinitionCache.apply(definition, saved, false) && DefinitionCache.apply(definition, deleted, true)) {
+                    loaded.incrementAndGet();
+                    handler.handle(Future.succeededFuture(definition));
+                } else missed(diagramId, handler);
+            });
+        });
+    }
+
+    private static void missed(String diagramId, AsyncHandler<JsonObject> handler) {
+        missed.incrementAndGet();
+        due(diagramId);
+        handler.handle(Future.succeededFuture(null));
+    }
+
+    private static JsonObject metrics() {
+        return new JsonObject()
+            .put("pending", CHANGED.size())
+            .put("taken", taken.get())
+            .put("failed", failed.get())
+            .put("loaded", loaded.get())
+            .put("missed", missed.get());
+    }
+
+}
@@ -0,0 +1,166 @@
+package it.beng.modeler.microservice.metrics;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.bridge.BridgeEventType;
+import io.vertx.ext.web.handler.sockjs.BridgeEvent;
+import io.vertx.ext.web.handler.sockjs.SockJSSocket;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * <p>Traffic of the SockJS event bus bridge.</p>
+ * Messages and bytes (of their body, as sent over the socket) are counted per address and event type,
+ * with the per-diagram (and reply) uuid in addresses replaced by {@code *}; actions are counted per type,
+ * with the histogram of their latency from bridge receipt to completion (or failure); sockets are counted
+ * and each open socket reports its traffic and its backlog (the actions it sent that are still in progress).
+ */
+public final class BridgeMetrics {
+
+    private static final Pattern UUID = Pattern.compile(
+        "[0-9a-fA-F]{8}-(?:[0-9a-fA-F]{4}-){3}[0-9a-fA-F]{12}");
+
+    private static final Map<String, Traffic> ADDRESSES = new ConcurrentHashMap<>();
+    private static final Map<String, ActionStats> ACTIONS = new ConcurrentHashMap<>();
+    private static final Map<SockJSSocket, SocketStats> SOCKETS = new ConcurrentHashMap<>();
+    private static final LongAdder openedSockets = new LongAdder();
+    private static final LongAdder closedSockets = new LongAdder();
+
+    static {
+        Metrics.register("bridge", BridgeMetrics::snapshot);
+    }
+
+    private BridgeMetrics() {}
+
+    private static final class Traffic {
+        final LongAdder messages = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+
+        void add(long bytes) {
+            messages.increment();
+            this.bytes.add(bytes);
+        }
+
+        JsonObject snapshot() {
+            return new JsonObject()
+                .put("messages", messages.sum())
+                .put("bytes", bytes.sum());
+        }
+    }
+
+    private static final class ActionStats {
+        final LongAdder succeeded = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final Histogram latency = new Histogram();
+    }
+
+    private static final class SocketStats {
+        final Traffic inbound = new Traffic();
+        final Traffic outbound = new Traffic();
+        final AtomicInteger inProgress = new AtomicInteger();
+    }
+
+    private static String address(String address) {
+        return address == null ? "-" : UUID.matcher(address).replaceAll("*");
+    }
+
+    public static String socketId(SockJSSocket socket) {
+        final String id = socket.writeHandlerID();
+        return id != null ? id : Integer.toHexString(System.identityHashCode(socket));
+    }
+
+    private static long bytes(Object body) {
+        if (body == null) return 0;
+        if (body instanceof String) return ((String) body).length();
+        if (body instanceof JsonObject) return ((JsonObject) body).encode().length();
+        if (body instanceof JsonArray) return ((JsonArray) body).encode().length();
+        return body.toString().length();
+    }
+
+    private static void count(SockJSSocket socket, BridgeEventType type, JsonObject message, boolean inbound) {
+        if (message == null) return;
+        final long bytes = bytes(message.getValue("body"));
+        ADDRESSES.computeIfAbsent(address(message.getString("address")) + " " + type.name().toLowerCase(),
+            key -> new Traffic()).add(bytes);
+        final SocketStats stats = SOCKETS.get(socket);
+        if (stats != null) (inbound ? stats.inbound : stats.outbound).add(bytes);
+    }
+
+    /**
+     * Counts the sockets and the inbound messages as they are received, before they are decoded.
+     */
+    public static void inbound(BridgeEvent event) {
+        switch (event.type()) {
+            case SOCKET_CREATED:
+                openedSockets.increment();
+                SOCKETS.put(event.socket(), new SocketStats());
+                break;
+            case SOCKET_CLOSED:
+                closedSockets.increment();
+                SOCKETS.remove(event.socket());
+                break;
+            case SEND:
+            case PUBLISH:
+                count(event.socket(), event.type(), event.getRawMessage(), true);
+                break;
+            default:
+        }
+    }
+
+    /**
+     * Counts the outbound messages as they are going to be written, after they are encoded.
+     */
+    public static void outbound(SockJSSocket socket, JsonObject message) {
+        count(socket, BridgeEventType.RECEIVE, message, false);
+    }
+
+    /**
+     * @return the receipt time, to be passed to {@link #actionDone(BridgeEvent, String, long, boolean)}
+     */
+    public static long actionReceived(BridgeEvent event) {
+        final SocketStats socket = SOCKETS.get(event.socket());
+        if (socket != null) socket.inProgress.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    public static void actionDone(BridgeEvent event, String type, long received, boolean succeeded) {
+        final SocketStats socket = SOCKETS.get(event.socket());
+        if (socket != null) socket.inProgress.decrementAndGet();
+        final ActionStats action = ACTIONS.computeIfAbsent(type == null ? "-" : type, key -> new ActionStats());
+        (succeeded ? action.succeeded : action.failed).increment();
+        action.latency.record(System.nanoTime() - received);
+    }
+
+    private static JsonObject snapshot() {
+        final JsonObject addresses = new JsonObject();
+        ADDRESSES.forEach((key, traffic) -> {
+            final int i = key.lastIndexOf(' ');
+            JsonObject address = addresses.getJsonObject(key.substring(0, i));
+            if (address == null) addresses.put(key.substring(0, i), address = new JsonObject());
+            address.put(key.substring(i + 1), traffic.snapshot());
+        });
+        final JsonObject actions = new JsonObject();
+        ACTIONS.forEach((type, action) -> actions.put(type, new JsonObject()
+            .put("succeeded", action.succeeded.sum())
+            .put("failed", action.failed.sum())
+            .put("latencyMs", action.latency.snapshot())));
+        final JsonObject sockets = new JsonObject();
+        SOCKETS.forEach((socket, stats) -> sockets.put(socketId(socket), new JsonObject()
+            .put("inbound", stats.inbound.snapshot())
+            .put("outbound", stats.outbound.snapshot())
+            .put("backlog", stats.inProgress.get())
+            .put("writeQueueFull", socket.writeQueueFull())));
+        return new JsonObject()
+            .put("openSockets", SOCKETS.size())
+            .put("openedSockets", openedSockets.sum())
+            .put("closedSockets", closedSockets.sum())
+            .put("addresses", addresses)
+            .put("actions", actions)
+            .put("sockets", sockets);
+    }
+
+}
@@ -0,0 +1,44 @@
+package it.beng.modeler.microservice.metrics;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Lock free latency histogram with fixed millisecond buckets.</p>
+ * Its snapshot ({@code {buckets: {le: cumulative count}, sum, count}}) is rendered by {@link Prometheus}
+ * as a native histogram.
+ */
+public final class Histogram {
+
+    private static final long[] BOUNDS_MS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+    private final AtomicLongArray counts = new AtomicLongArray(BOUNDS_MS.length + 1);
+    private final LongAdder sumNanos = new LongAdder();
+
+    public void record(long nanos) {
+        // buckets are "less than or equal" bounds
+        int i = 0;
+        while (i < BOUNDS_MS.length && nanos > TimeUnit.MILLISECONDS.toNanos(BOUNDS_MS[i])) i++;
+        counts.incrementAndGet(i);
+        sumNanos.add(nanos);
+    }
+
+    public JsonObject snapshot() {
+        final JsonObject buckets = new JsonObject();
+        long cumulative = 0;
+        for (int i = 0; i < BOUNDS_MS.length; i++) {
+            cumulative += counts.get(i);
+            buckets.put(Long.toString(BOUNDS_MS[i]), cumulative);
+        }
+        cumulative += counts.get(BOUNDS_MS.length);
+        buckets.put("+Inf", cumulative);
+        return new JsonObject()
+            .put("buckets", buckets)
+            .put("sum", (double) sumNanos.sum() / TimeUnit.MILLISECONDS.toNanos(1))
+            .put("count", cumulative);
+    }
+
+}
@@ -0,0 +1,33 @@
+package it.beng.modeler.microservice.metrics;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+
+/**
+ * <p>Registry of the server's runtime metrics.</p>
+ * Each component registers, under its own name, a supplier that returns a snapshot of its metrics.
+ */
+public final class Metrics {
+
+    private static final Map<String, Supplier<JsonObject>> SOURCES = new ConcurrentSkipListMap<>();
+
+    private Metrics() {}
+
+    public static void register(String name, Supplier<JsonObject> source) {
+        SOURCES.put(name, source);
+    }
+
+    public static void unregister(String name) {
+        SOURCES.remove(name);
+    }
+
+    public static JsonObject snapshot() {
+        final JsonObject snapshot = new JsonObject();
+        SOURCES.forEach((name, source) -> snapshot.put(name, source.get()));
+        return snapshot;
+    }
+
+}
@@ -0,0 +1,155 @@
+package it.beng.modeler.microservice.metrics;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * <p>Renders the {@link Metrics#snapshot()} in the Prometheus text exposition format.</p>
+ * Every numeric leaf becomes a sample named after its path ({@code cpd_<source>_<field>_...}); keys that are
+ * not valid name parts (addresses, action types...) become labels ({@code key}, {@code key2}, ...) and
+ * {@link Histogram} snapshots become (classic) histograms with {@code _bucket}, {@code _sum} and {@code _count}
+ * samples. The per-socket and per-diagram maps are not exported as labels, one series per id would grow without
+ * bounds: they are aggregated instead ({@code max*} fields by maximum, {@code avg*} fields dropped, the others
+ * summed) along with the number of their entries. Each metric family gets its {@code # HELP} and {@code # TYPE}.
+ */
+public final class Prometheus {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final Pattern NAME_PART = Pattern.compile("[a-zA-Z_][a-zA-Z0-9_]*");
+
+    // maps keyed by socket or diagram id: exported as aggregates only
+    private static final Set<String> AGGREGATED = new HashSet<>(Arrays.asList(
+        "actionMailboxes.mailboxes",
+        "outboundQueues.sockets",
+        "bridge.sockets"
+    ));
+
+    private Prometheus() {}
+
+    private static final class Family {
+        final String type;
+        final String help;
+        final StringBuilder samples = new StringBuilder();
+
+        Family(String type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+
+    public static String format(JsonObject snapshot) {
+        final Map<String, Family> families = new LinkedHashMap<>();
+        write(families, "cpd", "", new LinkedHashMap<>(), snapshot);
+        // the samples of a family must be contiguous, whereas labelled ones are found all over the snapshot
+        final StringBuilder out = new StringBuilder();
+        families.forEach((name, family) -> out
+            .append("# HELP ").append(name).append(' ').append(family.help).append('\n')
+            .append("# TYPE ").append(name).append(' ').append(family.type).append('\n')
+            .append(family.samples));
+        return out.toString();
+    }
+
+    private static boolean isHistogram(JsonObject object) {
+        return object.getValue("buckets") instanceof JsonObject && object.getValue("count") instanceof Number;
+    }
+
+    private static String help(String path, Map<String, String> labels) {
+        return labels.isEmpty() ? path : path + " by " + String.join(", ", labels.keySet());
+    }
+
+    private static void write(Map<String, Family> families, String name, String path, Map<String, String> labels,
+                              JsonObject object) {
+        if (isHistogram(object)) {
+            final Family family = families.computeIfAbsent(name, n -> new Family("histogram", help(path, labels)));
+            object.getJsonObject("buckets").forEach(bucket -> {
+                final Map<String, String> bucketLabels = new LinkedHashMap<>(labels);
+                bucketLabels.put("le", bucket.getKey());
+                sample(family.samples, name + "_bucket", bucketLabels, bucket.getValue());
+            });
+            sample(family.samples, name + "_sum", labels, object.getValue("sum"));
+            sample(family.samples, name + "_count", labels, object.getValue("count"));
+            return;
+        }
+        object.forEach(entry -> {
+            String childName = name;
+            String childPath = path;
+            Map<String, String> childLabels = labels;
+            if (NAME_PART.matcher(entry.getKey()).matches()) {
+                childName = name + "_" + entry.getKey();
+                childPath = path.isEmpty() ? entry.getKey() : path + "." + entry.getKey();
+            } else {
+                childLabels = new LinkedHashMap<>(labels);
+                childLabels.put(labels.isEmpty() ? "key" : "key" + (labels.size() + 1), entry.getKey());
+            }
+            final Object value = entry.getValue();
+            if (value instanceof JsonObject && AGGREGATED.contains(childPath)) {
+                final JsonObject entries = (JsonObject) value;
+                final JsonObject aggregate = new JsonObject().put("entries", entries.size());
+                entries.forEach(keyed -> {
+                    if (keyed.getValue() instanceof JsonObject)
+                        aggregate(aggregate, (JsonObject) keyed.getValue());
+                });
+                write(families, childName, childPath, childLabels, aggregate);
+            } else if (value instanceof JsonObject)
+                write(families, childName, childPath, childLabels, (JsonObject) value);
+            else if (value instanceof Number || value instanceof Boolean) {
+                final String help = help(childPath, childLabels);
+                final Family family = families.computeIfAbsent(childName, n -> new Family("untyped", help));
+                sample(family.samples, childName, childLabels, value);
+            }
+        });
+    }
+
+    /**
+     * Adds the fields of the object to the aggregate: {@code max*} fields by maximum, the others (but the
+     * {@code avg*} ones, that cannot be added up) by sum.
+     */
+    private static void aggregate(JsonObject aggregate, JsonObject object) {
+        object.forEach(entry -> {
+            final String key = entry.getKey();
+            final Object value = entry.getValue();
+            if (value instanceof JsonObject) {
+                JsonObject child = aggregate.getJsonObject(key);
+                if (child == null) aggregate.put(key, child = new JsonObject());
+                aggregate(child, (JsonObject) value);
+            } else if (value instanceof Number && !key.startsWith("avg")) {
+                final double number = ((Number) value).doubleValue();
+                final Object current = aggregate.getValue(key);
+                if (!(current instanceof Number))
+                    aggregate.put(key, number);
+                else if (key.startsWith("max"))
+                    aggregate.put(key, Math.max(((Number) current).doubleValue(), number));
+                else
+                    aggregate.put(key, ((Number) current).doubleValue() + number);
+            }
+        });
+    }
+
+    private static void sample(StringBuilder out, String name, Map<String, String> labels, Object value) {
+        final double number;
+        if (value instanceof Number)
+            number = ((Number) value).doubleValue();
+        else if (value instanceof Boolean)
+            number = (Boolean) value ? 1 : 0;
+        else
+            return;
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{');
+            boolean first = true;
+            for (Map.Entry<String, String> label : labels.entrySet()) {
+                if (!first) out.append(',');
+                first = false;
+                out.append(label.getKey()).append("=\"")
+                   .append(label.getValue().replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                   .append('"');
+            }
+            out.append('}');
+        }
+        out.append(' ').append(number).append('\n');
+    }
+
+}
@@ -0,0 +1,60 @@
+package it.beng.modeler.microservice.processengine;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+
+import java.util.List;
+
+/**
+ * <p>Client side {@link ProcessEngineService} decorator that feeds the {@link ProcessEngineMetrics}.</p>
+ */
+final class MeteredProcessEngineService implements ProcessEngineService {
+
+    private final ProcessEngineService service;
+
+    MeteredProcessEngineService(ProcessEngineService service) {
+        this.service = service;
+    }
+
+    @Override
+    public void getActiveCollaborationIds(Handler<AsyncResult<List<String>>> handler) {
+        service.getActiveCollaborationIds(ProcessEngineMetrics.sent(handler));
+    }
+
+    @Override
+    public void getCollaborationsTeam(String collaborationId, Handler<AsyncResult<List<JsonObject>>> handler) {
+        service.getCollaborationsTeam(collaborationId, ProcessEngineMetrics.sent(handler));
+    }
+
+    @Override
+    public void getActiveTasks(String collaborationId, Handler<AsyncResult<List<JsonObject>>> handler) {
+        service.getActiveTasks(collaborationId, ProcessEngineMetrics.sent(handler));
+    }
+
+    @Override
+    public void getActiveTasksOf(List<String> collaborationIds, Handler<AsyncResult<JsonObject>> handler) {
+        service.getActiveTasksOf(collaborationIds, ProcessEngineMetrics.sent(handler));
+    }
+
+    @Override
+    public void startCollaboration(String collaborationId, JsonObject team, Handler<AsyncResult<Void>> handler) {
+        service.startCollaboration(collaborationId, team, ProcessEngineMetrics.sent(handler));
+    }
+
+    @Override
+    public void update(JsonObject update, Handler<AsyncResult<Void>> handler) {
+        service.update(update, ProcessEngineMetrics.sent(handler));
+    }
+
+    @Override
+    public void deleteCollaboration(String collaborationId, Handler<AsyncResult<Void>> handler) {
+        service.deleteCollaboration(collaborationId, ProcessEngineMetrics.sent(handler));
+    }
+
+    @Override
+    public void completeTask(JsonObject task, JsonObject variable, Handler<AsyncResult<Void>> handler) {
+        service.completeTask(task, variable, ProcessEngineMetrics.sent(handler));
+    }
+
+}
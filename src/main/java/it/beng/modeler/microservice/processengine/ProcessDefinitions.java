@@ -0,0 +1,99 @@
+package it.beng.modeler.microservice.processengine;
+
+import io.vertx.core.json.JsonObject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.flowable.common.engine.api.delegate.event.FlowableEngineEventType;
+import org.flowable.common.engine.api.delegate.event.FlowableEntityEvent;
+import org.flowable.common.engine.api.delegate.event.FlowableEvent;
+import org.flowable.common.engine.api.delegate.event.FlowableEventListener;
+import org.flowable.common.engine.impl.cfg.TransactionState;
+import org.flowable.engine.RepositoryService;
+import org.flowable.engine.repository.ProcessDefinition;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Metadata (id, key, name, version) of the deployed process definitions, keyed by process definition id.</p>
+ * Process definitions are immutable once deployed, so they are loaded once at startup
+ * and then added as soon as new ones are deployed.
+ */
+public final class ProcessDefinitions {
+    private static final Logger logger = LogManager.getLogger(ProcessDefinitions.class);
+
+    private static final Map<String, JsonObject> DEFINITIONS = new ConcurrentHashMap<>();
+
+    private ProcessDefinitions() {}
+
+    private static JsonObject put(ProcessDefinition definition) {
+        final JsonObject metadata = new JsonObject()
+            .put("id", definition.getId())
+            .put("key", definition.getKey())
+            .put("name", definition.getName())
+            .put("version", definition.getVersion());
+        DEFINITIONS.put(definition.getId(), metadata);
+        return metadata;
+    }
+
+    /**
+     * Loads the metadata of all deployed process definitions.
+     */
+    public static void warm(RepositoryService repositoryService) {
+        repositoryService.createProcessDefinitionQuery().list().forEach(ProcessDefinitions::put);
+        logger.info(DEFINITIONS.size() + " process definitions loaded");
+    }
+
+    /**
+     * @return the metadata of the process definition, querying the repository only if it is not known yet
+     */
+    public static JsonObject get(RepositoryService repositoryService, String processDefinitionId) {
+        final JsonObject metadata = DEFINITIONS.get(processDefinitionId);
+        if (metadata != null) return metadata;
+        final ProcessDefinition definition = repositoryService.createProcessDefinitionQuery()
+                                                              .processDefinitionId(processDefinitionId)
+                                                              .singleResult();
+        return definition != null ? put(definition) : null;
+    }
+
+    public static String key(RepositoryService repositoryService, String processDefinitionId) {
+        final JsonObject metadata = get(repositoryService, processDefinitionId);
+        return metadata != null ? metadata.getString("key") : null;
+    }
+
+    /**
+     * Typed event listeners for the process engine configuration: they add the
+     * definitions of every new deployment once its transaction is committed.
+     */
+    public static Map<String, List<FlowableEventListener>> deploymentListeners() {
+        return Collections.singletonMap(FlowableEngineEventType.ENTITY_CREATED.name(),
+            Collections.singletonList(new FlowableEventListener() {
+                @Override
+                public void onEvent(FlowableEvent event) {
+                    if (event instanceof FlowableEntityEvent) {
+                        final Object entity = ((FlowableEntityEvent) event).getEntity();
+                        if (entity instanceof ProcessDefinition) {
+                            logger.debug("process definition deployed: " + ((ProcessDefinition) entity).getId());
+                            put((ProcessDefinition) entity);
+                        }
+                    }
+                }
+
+                @Override
+                public boolean isFailOnException() {
+                    return false;
+                }
+
+                @Override
+                public boolean isFireOnTransactionLifecycleEvent() {
+                    return true;
+                }
+
+                @Override
+                public String getOnTransaction() {
+                    return TransactionState.COMMITTED.name();
+                }
+            }));
+    }
+
+}
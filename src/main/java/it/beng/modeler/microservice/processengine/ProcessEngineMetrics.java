@@ -0,0 +1,74 @@
+package it.beng.modeler.microservice.processengine;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Queue depth and latency of the {@link ProcessEngineService} calls.</p>
+ * Requests are "pending" from the moment they are sent until their reply is received,
+ * and "active" while they are being executed by a worker: the difference is the queue depth.
+ */
+final class ProcessEngineMetrics {
+
+    private static final AtomicLong pending = new AtomicLong();
+    private static final AtomicLong active = new AtomicLong();
+    private static final AtomicLong calls = new AtomicLong();
+    private static final AtomicLong failures = new AtomicLong();
+    private static final AtomicLong latencyNanos = new AtomicLong();
+    private static final AtomicLong maxLatencyNanos = new AtomicLong();
+    private static final AtomicLong executions = new AtomicLong();
+    private static final AtomicLong executionNanos = new AtomicLong();
+
+    private ProcessEngineMetrics() {}
+
+    /**
+     * Wraps the reply handler of a call that is being sent.
+     */
+    static <T> Handler<AsyncResult<T>> sent(Handler<AsyncResult<T>> handler) {
+        pending.incrementAndGet();
+        final long start = System.nanoTime();
+        return result -> {
+            final long latency = System.nanoTime() - start;
+            pending.decrementAndGet();
+            calls.incrementAndGet();
+            if (result.failed()) failures.incrementAndGet();
+            latencyNanos.addAndGet(latency);
+            maxLatencyNanos.accumulateAndGet(latency, Math::max);
+            handler.handle(result);
+        };
+    }
+
+    static long started() {
+        active.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    static void executed(long start) {
+        executionNanos.addAndGet(System.nanoTime() - start);
+        executions.incrementAndGet();
+        active.decrementAndGet();
+    }
+
+    private static double millis(long nanos, long count) {
+        return count == 0 ? 0d : (double) nanos / count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    static JsonObject snapshot() {
+        final long pending = ProcessEngineMetrics.pending.get();
+        final long active = ProcessEngineMetrics.active.get();
+        return new JsonObject()
+            .put("pending", pending)
+            .put("active", active)
+            .put("queued", Math.max(0, pending - active))
+            .put("calls", calls.get())
+            .put("failures", failures.get())
+            .put("avgLatencyMs", millis(latencyNanos.get(), calls.get()))
+            .put("maxLatencyMs", millis(maxLatencyNanos.get(), 1))
+            .put("avgExecutionMs", millis(executionNanos.get(), executions.get()));
+    }
+
+}
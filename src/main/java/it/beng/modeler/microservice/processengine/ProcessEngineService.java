@@ -0,0 +1,63 @@
+package it.beng.modeler.microservice.processengine;
+
+import io.vertx.codegen.annotations.ProxyGen;
+import io.vertx.codegen.annotations.VertxGen;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.json.JsonObject;
+
+import java.util.List;
+
+/**
+ * <p>Asynchronous facade of the Flowable process engine.</p>
+ * Every operation runs on the {@link ProcessEngineVerticle} worker pool, never on the event loop.
+ */
+@ProxyGen
+@VertxGen
+public interface ProcessEngineService {
+
+    String ADDRESS = "cpd::process-engine";
+
+    static ProcessEngineService createProxy(Vertx vertx, DeliveryOptions options) {
+        return new MeteredProcessEngineService(new ProcessEngineServiceVertxEBProxy(vertx, ADDRESS, options));
+    }
+
+    static JsonObject metrics() {
+        return ProcessEngineMetrics.snapshot();
+    }
+
+    /**
+     * Business keys of all active collaboration processes.
+     */
+    void getActiveCollaborationIds(Handler<AsyncResult<List<String>>> handler);
+
+    /**
+     * Teams of the active processes of a collaboration.
+     */
+    void getCollaborationsTeam(String collaborationId, Handler<AsyncResult<List<JsonObject>>> handler);
+
+    /**
+     * Active tasks of the processes of a collaboration, as partial (i.e. not yet translated) task objects.
+     */
+    void getActiveTasks(String collaborationId, Handler<AsyncResult<List<JsonObject>>> handler);
+
+    /**
+     * Active tasks of the processes of many collaborations, fetched with a single query.
+     * The result maps each collaboration id to the array of its partial task objects.
+     */
+    void getActiveTasksOf(List<String> collaborationIds, Handler<AsyncResult<JsonObject>> handler);
+
+    void startCollaboration(String collaborationId, JsonObject team, Handler<AsyncResult<Void>> handler);
+
+    /**
+     * Reflects an {@code {original, changes}} update of a diagram into its processes.
+     */
+    void update(JsonObject update, Handler<AsyncResult<Void>> handler);
+
+    void deleteCollaboration(String collaborationId, Handler<AsyncResult<Void>> handler);
+
+    void completeTask(JsonObject task, JsonObject variable, Handler<AsyncResult<Void>> handler);
+
+}
@@ -0,0 +1,257 @@
+package it.beng.modeler.microservice.processengine;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import it.beng.modeler.config.cpd;
+import it.beng.modeler.microservice.cache.ExtensionsIndex;
+import it.beng.modeler.microservice.utils.DBUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.flowable.engine.ManagementService;
+import org.flowable.engine.ProcessEngine;
+import org.flowable.engine.RepositoryService;
+import org.flowable.engine.RuntimeService;
+import org.flowable.engine.TaskService;
+import org.flowable.engine.runtime.Execution;
+import org.flowable.engine.runtime.ProcessInstance;
+import org.flowable.task.api.NativeTaskQuery;
+import org.flowable.task.api.Task;
+
+import java.util.*;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * <p>Blocking implementation of the {@link ProcessEngineService}, it MUST run on a worker context.</p>
+ *
+ * @author vince
+ */
+final class ProcessEngineServiceImpl implements ProcessEngineService {
+    private static final Logger logger = LogManager.getLogger(ProcessEngineServiceImpl.class);
+
+    private final ProcessEngine processEngine;
+
+    ProcessEngineServiceImpl(ProcessEngine processEngine) {
+        this.processEngine = processEngine;
+    }
+
+    private <T> void execute(String operation, Supplier<T> supplier, Handler<AsyncResult<T>> handler) {
+        final long start = ProcessEngineMetrics.started();
+        AsyncResult<T> result;
+        try {
+            result = Future.succeededFuture(supplier.get());
+        } catch (Throwable t) {
+            logger.error("process engine " + operation + " failed: " + t.getMessage());
+            result = Future.failedFuture(t);
+        }
+        ProcessEngineMetrics.executed(start);
+        handler.handle(result);
+    }
+
+    private void execute(String operation, Runnable runnable, Handler<AsyncResult<Void>> handler) {
+        execute(operation, () -> {
+            runnable.run();
+            return null;
+        }, handler);
+    }
+
+    @Override
+    public void getActiveCollaborationIds(Handler<AsyncResult<List<String>>> handler) {
+        execute("getActiveCollaborationIds",
+            () -> processEngine.getRuntimeService().createProcessInstanceQuery()
+                               .active()
+                               .list().stream()
+                               .map(ProcessInstance::getBusinessKey)
+                               .collect(Collectors.toList()),
+            handler);
+    }
+
+    @Override
+    public void getCollaborationsTeam(String collaborationId, Handler<AsyncResult<List<JsonObject>>> handler) {
+        execute("getCollaborationsTeam",
+            () -> processEngine.getRuntimeService().createProcessInstanceQuery()
+                               .active()
+                               .processInstanceBusinessKey(collaborationId)
+                               .list().stream()
+                               .map(ProcessInstance::getProcessVariables)
+                               .map(vars -> new JsonObject()
+                                   .put("owner", vars.get("owner"))
+                                   .put("reviewer", vars.get("reviewer"))
+                                   .put("editor", vars.get("editor"))
+                                   .put("observer", vars.get("observer"))
+                               )
+                               .collect(Collectors.toList()),
+            handler);
+    }
+
+    @Override
+    public void getActiveTasks(String collaborationId, Handler<AsyncResult<List<JsonObject>>> handler) {
+        execute("getActiveTasks",
+            () -> activeTasks(Collections.singletonList(collaborationId)).get(collaborationId),
+            handler);
+    }
+
+    @Override
+    public void getActiveTasksOf(List<String> collaborationIds, Handler<AsyncResult<JsonObject>> handler) {
+        execute("getActiveTasksOf", () -> {
+            final JsonObject result = new JsonObject();
+            activeTasks(collaborationIds).forEach(
+                (collaborationId, tasks) -> result.put(collaborationId, new JsonArray(tasks)));
+            return result;
+        }, handler);
+    }
+
+    /**
+     * Active tasks of all processes having one of the given business keys.
+     * It runs exactly two queries (tasks joined with their process instances, and the
+     * business keys of those process instances) whatever the number of keys and tasks.
+     */
+    private Map<String, List<JsonObject>> activeTasks(Collection<String> businessKeys) {
+        final Map<String, List<JsonObject>> tasks = new LinkedHashMap<>();
+        businessKeys.forEach(businessKey -> tasks.put(businessKey, new LinkedList<>()));
+        if (tasks.isEmpty()) return tasks;
+
+        final ManagementService managementService = processEngine.getManagementService();
+        final NativeTaskQuery query = processEngine.getTaskService().createNativeTaskQuery();
+        final StringBuilder sql = new StringBuilder()
+            .append("SELECT T.* FROM ").append(managementService.getTableName(Task.class)).append(" T")
+            .append(" INNER JOIN ").append(managementService.getTableName(Execution.class)).append(" P")
+            .append(" ON T.PROC_INST_ID_ = P.ID_")
+            .append(" WHERE T.SUSPENSION_STATE_ = 1 AND P.BUSINESS_KEY_ IN (");
+        int i = 0;
+        for (String businessKey : tasks.keySet()) {
+            sql.append(i > 0 ? ", " : "").append("#{key").append(i).append("}");
+            query.parameter("key" + i++, businessKey);
+        }
+        final List<Task> activeTasks = query.sql(sql.append(") ORDER BY T.CREATE_TIME_").toString()).list();
+        if (activeTasks.isEmpty()) return tasks;
+
+        final Set<String> processInstanceIds = activeTasks.stream()
+                                                         .map(Task::getProcessInstanceId)
+                                                         .collect(Collectors.toSet());
+        final Map<String, String> businessKeyOf = new HashMap<>();
+        processEngine.getRuntimeService().createProcessInstanceQuery()
+                     .processInstanceIds(processInstanceIds)
+                     .list()
+                     .forEach(instance -> businessKeyOf.put(instance.getId(), instance.getBusinessKey()));
+
+        final RepositoryService repositoryService = processEngine.getRepositoryService();
+        activeTasks.forEach(task -> {
+            final List<JsonObject> processTasks = tasks.get(businessKeyOf.get(task.getProcessInstanceId()));
+            if (processTasks != null) processTasks.add(new JsonObject()
+                .put("processKey", ProcessDefinitions.key(repositoryService, task.getProcessDefinitionId()))
+                .put("taskKey", task.getTaskDefinitionKey())
+                .put("id", task.getId())
+                .put("processId", task.getProcessInstanceId())
+                .put("assignee", task.getAssignee())
+                .put("createTime", DBUtils.mongoDateTime(
+                    DBUtils.parseDateTime(task.getCreateTime().toInstant().toString())
+                ))
+                // TODO: create Collaboration.Process and Collaboration.Process.Task schemas
+                .put("$domain", "Model.Thing"));
+        });
+        return tasks;
+    }
+
+    @Override
+    public void startCollaboration(String collaborationId, JsonObject team, Handler<AsyncResult<Void>> handler) {
+        execute("startCollaboration", () -> {
+            processEngine.getRuntimeService()
+                         .startProcessInstanceByKey(
+                             cpd.Process.PROCEDURE_MODELING_KEY,
+                             collaborationId,
+                             new HashMap<String, Object>() {{
+                                 put("owner", team.getJsonArray("owner").getString(0));
+                                 put("reviewer", team.getJsonArray("reviewer").getString(0));
+                                 put("editor", team.getJsonArray("editor").getString(0));
+                                 // observer isn't mandatory
+                                 if (team.getJsonArray("observer") != null && team.getJsonArray("observer").size() > 0) {
+                                     put("observer", team.getJsonArray("observer").getString(0));
+                                 }
+                             }}
+                         );
+        }, handler);
+    }
+
+    @Override
+    public void update(JsonObject update, Handler<AsyncResult<Void>> handler) {
+        final JsonObject changes = update.getJsonObject("changes");
+        final JsonObject original = update.getJsonObject("original");
+        final JsonObject newTeam = changes == null ? null : changes.getJsonObject("team");
+        if (newTeam == null || newTeam.isEmpty() || !"Model.FPMN.Diagram".equals(original.getString("$domain"))) {
+            handler.handle(Future.succeededFuture());
+            return;
+        }
+        logger.debug("TEAM CHANGED: " + newTeam.encodePrettily());
+        final String businessKey = original.getString("id");
+        final Map<String, String> newUsers = new LinkedHashMap<>();
+        newTeam.forEach(entry -> newUsers.put(entry.getKey(), ((JsonArray) entry.getValue()).getString(0)));
+        execute("update", () -> newUsers.forEach((role, newUserId) -> {
+            // (1) set changed roles as process variables
+            logger.debug("changing variable of active process: {" + role + ": " + newUserId + "}");
+            final RuntimeService runtimeService = processEngine.getRuntimeService();
+            runtimeService.createExecutionQuery()
+                          .processInstanceBusinessKey(businessKey)
+                          .list().forEach(
+                execution -> {
+                    logger.debug("setting " + role + " = " + newUserId
+                        + " in execution " + execution.getId());
+                    runtimeService.setVariable(execution.getId(), role, newUserId);
+                }
+            );
+
+            // (2) change active tasks assignee by role (NOTE: assignee role is stored extensions collection)
+            logger.debug("changing assignee of active tasks to " + newUserId);
+            final TaskService taskService = processEngine.getTaskService();
+            ExtensionsIndex.ofRole(role).forEach(extension -> {
+                final JsonObject id = extension.getJsonObject("id");
+                taskService.createTaskQuery()
+                           .processInstanceBusinessKey(businessKey)
+                           .active()
+                           .processDefinitionKey(id.getString("processKey"))
+                           .taskDefinitionKey(id.getString("taskKey"))
+                           .list().forEach(
+                    task -> {
+                        logger.debug("changing assignee of «"
+                            + extension.getJsonObject("name").getString("en")
+                            + "»: " + task.getAssignee() + " => " + newUserId);
+                        taskService.setAssignee(task.getId(), newUserId);
+                    });
+            });
+        }), handler);
+    }
+
+    @Override
+    public void deleteCollaboration(String collaborationId, Handler<AsyncResult<Void>> handler) {
+        execute("deleteCollaboration", () -> {
+            RuntimeService runtimeService = processEngine.getRuntimeService();
+            runtimeService.createProcessInstanceQuery()
+                          .processInstanceBusinessKey(collaborationId)
+                          .list().forEach(
+                processInstance -> {
+                    logger.debug("deleting process " + processInstance.getId() + "...");
+                    runtimeService.deleteProcessInstance(processInstance.getId(), "removed by admin");
+                    logger.debug("...process " + processInstance.getId() + " deleted!");
+                }
+            );
+        }, handler);
+    }
+
+    @Override
+    public void completeTask(JsonObject task, JsonObject variable, Handler<AsyncResult<Void>> handler) {
+        execute("completeTask", () -> {
+            Objects.requireNonNull(task);
+            String taskId = task.getString("id");
+            Objects.requireNonNull(taskId);
+            processEngine.getTaskService().complete(taskId, new HashMap<String, Object>() {{
+                if (variable != null) {
+                    String key = variable.getMap().keySet().iterator().next();
+                    put(key, variable.getValue(key));
+                }
+            }});
+        }, handler);
+    }
+}
@@ -0,0 +1,43 @@
+package it.beng.modeler.microservice.processengine;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.json.JsonObject;
+import it.beng.modeler.config.cpd;
+
+/**
+ * <p>Worker verticle serving the {@link ProcessEngineService}.</p>
+ * Each instance serves one request at a time, so deploying {@code workerPoolSize} instances
+ * on a pool of the same size bounds the number of concurrent process engine operations.
+ * The service is registered locally because every node runs its own process engine.
+ */
+public class ProcessEngineVerticle extends AbstractVerticle {
+
+    public static final String WORKER_POOL_NAME = "cpd-process-engine";
+
+    private MessageConsumer<JsonObject> consumer;
+
+    public static DeploymentOptions deploymentOptions() {
+        return new DeploymentOptions()
+            .setWorker(true)
+            .setWorkerPoolName(WORKER_POOL_NAME)
+            .setWorkerPoolSize(cpd.server.processEngine.workerPoolSize)
+            .setInstances(cpd.server.processEngine.workerPoolSize);
+    }
+
+    @Override
+    public void start() {
+        consumer = vertx.eventBus().localConsumer(
+            ProcessEngineService.ADDRESS,
+            new ProcessEngineServiceVertxProxyHandler(vertx, new ProcessEngineServiceImpl(cpd.processEngine()))
+        );
+    }
+
+    @Override
+    public void stop(Future<Void> stopFuture) {
+        consumer.unregister(stopFuture);
+    }
+
+}
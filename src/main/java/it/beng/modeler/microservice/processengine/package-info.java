@@ -0,0 +1,7 @@
+/**
+ * <p>Process engine operations, exposed as an event bus service proxy.</p>
+ */
+@ModuleGen(name = "cpd-process-engine", groupPackage = "it.beng.modeler")
+package it.beng.modeler.microservice.processengine;
+
+import io.vertx.codegen.annotations.ModuleGen;
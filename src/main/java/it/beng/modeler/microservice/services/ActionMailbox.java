@@ -0,0 +1,192 @@
+package it.beng.modeler.microservice.services;
+
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import it.beng.modeler.config.cpd;
+import it.beng.modeler.microservice.cache.LruCache;
+import it.beng.modeler.microservice.metrics.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * <p>Serial mailboxes of the incoming actions, one per key (e.g. the diagram id).</p>
+ * Tasks submitted with the same key run one at a time, in submission order, each one on the context
+ * it was submitted from; tasks with different keys run in parallel. A task that does not complete within
+ * the configured timeout is reported as late, but its mailbox keeps waiting for it: starting the next task
+ * while it is still running would break the serialization. A mailbox only exists while it has queued tasks,
+ * whereas its metrics (queue depth, drain latency and late tasks) are kept in an LRU cache.
+ */
+final class ActionMailbox {
+    private static final Logger logger = LogManager.getLogger(ActionMailbox.class);
+
+    private static final Map<String, ActionMailbox> MAILBOXES = new ConcurrentHashMap<>();
+
+    private static LruCache<String, Stats> stats;
+
+    private final Queue<Task> queue = new ArrayDeque<>();
+    private final Stats mailboxStats;
+
+    private ActionMailbox(String key) {
+        final LruCache<String, Stats> stats = stats();
+        Stats mailboxStats = stats.get(key);
+        if (mailboxStats == null) {
+            mailboxStats = new Stats();
+            stats.put(key, mailboxStats);
+        }
+        this.mailboxStats = mailboxStats;
+    }
+
+    private static synchronized LruCache<String, Stats> stats() {
+        if (stats == null) {
+            stats = LruCache.fromConfig();
+            Metrics.register("actionMailboxes", ActionMailbox::snapshot);
+        }
+        return stats;
+    }
+
+    /**
+     * Queues the task in the mailbox of the given key. The task MUST run its {@code done} callback
+     * (at most once) when it is over, the next task of the same mailbox is not started before.
+     * If {@code done} is not run within the task timeout, the task is logged and counted as timed out,
+     * the mailbox is still blocked until it is run.
+     */
+    static void submit(String key, Consumer<Runnable> task) {
+        final Task submitted = new Task(key, task, Vertx.currentContext());
+        final boolean[] idle = {false};
+        MAILBOXES.compute(key, (k, mailbox) -> {
+            if (mailbox == null) mailbox = new ActionMailbox(k);
+            idle[0] = mailbox.queue.isEmpty();
+            mailbox.queue.add(submitted);
+            mailbox.mailboxStats.queued(mailbox.queue.size());
+            return mailbox;
+        });
+        // the head of the queue is the running task: start it only if there was none
+        if (idle[0]) submitted.start();
+    }
+
+    private static void timedOut(Task task) {
+        final ActionMailbox mailbox = MAILBOXES.get(task.key);
+        if (mailbox != null) mailbox.mailboxStats.timedOut();
+    }
+
+    private static void done(Task task) {
+        final Task[] next = {null};
+        MAILBOXES.computeIfPresent(task.key, (k, mailbox) -> {
+            mailbox.queue.remove();
+            mailbox.mailboxStats.drained(task);
+            next[0] = mailbox.queue.peek();
+            return next[0] != null ? mailbox : null;
+        });
+        if (next[0] != null) {
+            // never start the next task from the completion of the previous one: it would grow the stack
+            if (next[0].context != null)
+                next[0].context.runOnContext(v -> next[0].start());
+            else
+                next[0].start();
+        }
+    }
+
+    private static final class Task {
+        final String key;
+        final Consumer<Runnable> task;
+        final Context context;
+        final long submitted = System.nanoTime();
+        long started;
+
+        Task(String key, Consumer<Runnable> task, Context context) {
+            this.key = key;
+            this.task = task;
+            this.context = context;
+        }
+
+        void start() {
+            started = System.nanoTime();
+            final AtomicBoolean done = new AtomicBoolean();
+            final long timer = context != null
+                ? context.owner().setTimer(cpd.server.eventBus.mailbox.taskTimeout, id -> {
+                    if (done.get()) return;
+                    logger.warn("action of mailbox " + key + " still running after "
+                        + cpd.server.eventBus.mailbox.taskTimeout + "ms, the mailbox keeps waiting for it");
+                    ActionMailbox.timedOut(this);
+                })
+                : -1L;
+            final Runnable callback = () -> {
+                if (!done.compareAndSet(false, true)) return;
+                if (timer >= 0) context.owner().cancelTimer(timer);
+                ActionMailbox.done(this);
+            };
+            try {
+                task.accept(callback);
+            } catch (Throwable t) {
+                logger.error("action of mailbox " + key + " failed: " + t.getMessage());
+                callback.run();
+            }
+        }
+    }
+
+    private static final class Stats {
+        private long depth;
+        private long maxDepth;
+        private long drained;
+        private long waitNanos;
+        private long maxWaitNanos;
+        private long latencyNanos;
+        private long maxLatencyNanos;
+        private long timedOut;
+
+        synchronized void timedOut() {
+            timedOut++;
+        }
+
+        synchronized void queued(int depth) {
+            this.depth = depth;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        synchronized void drained(Task task) {
+            final long now = System.nanoTime();
+            final long wait = task.started - task.submitted;
+            final long latency = now - task.submitted;
+            depth = Math.max(0, depth - 1);
+            drained++;
+            waitNanos += wait;
+            maxWaitNanos = Math.max(maxWaitNanos, wait);
+            latencyNanos += latency;
+            maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+        }
+
+        private static double millis(long nanos, long count) {
+            return count == 0 ? 0d : (double) nanos / count / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        synchronized JsonObject snapshot() {
+            return new JsonObject()
+                .put("depth", depth)
+                .put("maxDepth", maxDepth)
+                .put("drained", drained)
+                .put("avgWaitMs", millis(waitNanos, drained))
+                .put("maxWaitMs", millis(maxWaitNanos, 1))
+                .put("avgDrainLatencyMs", millis(latencyNanos, drained))
+                .put("maxDrainLatencyMs", millis(maxLatencyNanos, 1))
+                .put("timedOut", timedOut);
+        }
+    }
+
+    private static JsonObject snapshot() {
+        final JsonObject mailboxes = new JsonObject();
+        stats().forEach((key, mailboxStats) -> mailboxes.put(key, mailboxStats.snapshot()));
+        return new JsonObject()
+            .put("active", MAILBOXES.size())
+            .put("mailboxes", mailboxes);
+    }
+
+}
@@ -1,42 +1,58 @@
 package it.beng.modeler.microservice.services;
 
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
 import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.DeliveryOptions;
 import io.vertx.core.eventbus.Message;
 import io.vertx.core.json.JsonObject;
+import io.vertx.ext.bridge.BridgeEventType;
 import io.vertx.ext.bridge.PermittedOptions;
 import io.vertx.ext.web.handler.sockjs.BridgeEvent;
+import it.beng.microservice.common.AsyncHandler;
 import it.beng.microservice.db.MongoDB;
 import it.beng.modeler.config.cpd;
+import it.beng.modeler.microservice.actions.ActionContext;
 import it.beng.modeler.microservice.actions.IncomingAction;
 import it.beng.modeler.microservice.actions.PublishAction;
+import it.beng.modeler.microservice.metrics.BridgeMetrics;
 import it.beng.modeler.microservice.utils.EventBusUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.regex.Pattern;
 
 public abstract class ActionService extends BridgeEventService {
+    private static final Logger logger = LogManager.getLogger(ActionService.class);
 
-    private static final Map<String, Class<? extends IncomingAction>> INCOMING_ACTIONS = new HashMap<>();
+    private static final Map<String, Function<JsonObject, ? extends IncomingAction>> INCOMING_ACTIONS = new HashMap<>();
 
-    protected static void registerIncomingAction(String type, Class<? extends IncomingAction> actionClass) {
-        INCOMING_ACTIONS.put(type, actionClass);
+    protected static void registerIncomingAction(String type, Function<JsonObject, ? extends IncomingAction> factory) {
+        INCOMING_ACTIONS.put(type, factory);
     }
 
-    protected static IncomingAction createIncomingAction(BridgeEvent event) {
-        JsonObject json = event.getRawMessage().getJsonObject("body");
+    public static Set<String> incomingActionTypes() {
+        return Collections.unmodifiableSet(INCOMING_ACTIONS.keySet());
+    }
+
+    /**
+     * Creates and validates the incoming action of the given json.
+     *
+     * @throws IllegalStateException if the action cannot be created or is invalid
+     */
+    public static IncomingAction createIncomingAction(JsonObject json) {
         if (json == null) {
-            EventBusUtils.fail(event, "illegal state: no json found in message body");
+            throw new IllegalStateException("illegal state: no json found in message body");
         }
         String type = json.getString("type");
         if (type == null) {
-            EventBusUtils.fail(event, "illegal state: no type found in action json");
-            return null;
+            throw new IllegalStateException("illegal state: no type found in action json");
         }
-        Class<? extends IncomingAction> actionClass = INCOMING_ACTIONS.get(type);
-        if (actionClass == null) {
+        Function<JsonObject, ? extends IncomingAction> factory = INCOMING_ACTIONS.get(type);
+        if (factory == null) {
             if (cpd.develop()) {
                 return new PublishAction(json) {
                     @Override
@@ -46,17 +62,19 @@ public abstract class ActionService extends BridgeEventService {
 
                 };
             } else {
-                EventBusUtils.fail(event, "illegal state: no incoming action registered for type " + type);
-                return null;
+                throw new IllegalStateException("illegal state: no incoming action registered for type " + type);
             }
         }
+        IncomingAction action = factory.apply(json);
+        if (!action.isValid()) {
+            throw new IllegalStateException("illegal state: action is invalid");
+        }
+        return action;
+    }
+
+    protected static IncomingAction createIncomingAction(BridgeEvent event) {
         try {
-            IncomingAction action = actionClass.getDeclaredConstructor(JsonObject.class).newInstance(json);
-            if (!action.isValid()) {
-                EventBusUtils.fail(event, "illegal state: action is invalid");
-                return null;
-            }
-            return action;
+            return createIncomingAction(event.getRawMessage().getJsonObject("body"));
         } catch (Exception e) {
             EventBusUtils.fail(event, e);
             return null;
@@ -83,6 +101,23 @@ public abstract class ActionService extends BridgeEventService {
         vertx.eventBus().consumer(address(), (Message<JsonObject> message) -> {
             message.reply(message.body());
         });
+        OwnershipRing.start(vertx, cpd.cluster());
+        vertx.eventBus().consumer(forwardAddress(OwnershipRing.localNode()), this::handleForwarded);
+        vertx.eventBus().consumer(handoffAddress(OwnershipRing.localNode()), this::handleHandoff);
+    }
+
+    /**
+     * @return the (not bridged) address where the given cluster node receives the actions it owns
+     */
+    private String forwardAddress(String node) {
+        return address() + "::node::" + node;
+    }
+
+    /**
+     * @return the (not bridged) address where the given cluster node cedes the keys it owned
+     */
+    private String handoffAddress(String node) {
+        return forwardAddress(node) + "::handoff";
     }
 
     @Override
@@ -147,17 +182,155 @@ public abstract class ActionService extends BridgeEventService {
         }
     }
 
+    /**
+     * @return the key of the mailbox where the action must be queued, or {@code null} to run it immediately
+     */
+    protected String mailboxKey(IncomingAction action) {
+        return null;
+    }
+
     private void process(BridgeEvent event) {
+        final long received = BridgeMetrics.actionReceived(event);
         IncomingAction incomingAction = createIncomingAction(event);
-        if (incomingAction != null)
-            incomingAction.handle(EventBusUtils.context(event), action -> {
-                if (action.succeeded()) {
-                    event.getRawMessage().put("body", action.result());
-                    EventBusUtils.complete(event);
-                } else {
-                    EventBusUtils.fail(event, action.cause());
+        if (incomingAction == null) {
+            BridgeMetrics.actionDone(event, null, received, false);
+            return;
+        }
+        if (incomingAction.json.getString("actionId") == null)
+            incomingAction.json.put("actionId", UUID.randomUUID().toString());
+        final String mailboxKey = mailboxKey(incomingAction);
+        final ActionContext context = ActionContext.of(EventBusUtils.context(event));
+        final String owner = mailboxKey != null ? OwnershipRing.owner(mailboxKey) : OwnershipRing.localNode();
+        final AsyncHandler<JsonObject> handler = action -> completed(event, incomingAction, received, action);
+        if (!owner.equals(OwnershipRing.localNode())) {
+            forward(incomingAction, context, owner, handler);
+            return;
+        }
+        run(incomingAction, mailboxKey, context, handler);
+    }
+
+    /**
+     * Handles the action in the mailbox of its key, if any. The next action of the same key is not started
+     * until this one completes, even when it outlasts the mailbox task timeout.
+     */
+    private void run(IncomingAction incomingAction, String mailboxKey, ActionContext context,
+                     AsyncHandler<JsonObject> handler) {
+        if (mailboxKey == null) {
+            incomingAction.handle(context, handler);
+            return;
+        }
+        submit(mailboxKey, done -> {
+            // the key has been ceded while the action was queued
+            final String successor = OwnershipRing.cededTo(mailboxKey);
+            if (successor != null) {
+                done.run();
+                forward(incomingAction, context, successor, handler);
+                return;
+            }
+            incomingAction.handle(context, action -> {
+                try {
+                    handler.handle(action);
+                } finally {
+                    done.run();
+                }
+            });
+        });
+    }
+
+    /**
+     * Queues the task in the mailbox of the key, after handing the key over if this node did not own it before.
+     */
+    protected void submit(String mailboxKey, Consumer<Runnable> task) {
+        final String previous = OwnershipRing.previousOwner(mailboxKey);
+        if (previous != null)
+            ActionMailbox.submit(address() + "::" + mailboxKey, done -> handoff(mailboxKey, previous, done));
+        ActionMailbox.submit(address() + "::" + mailboxKey, task);
+    }
+
+    /**
+     * Asks the previous owner to cede the key, and waits until it has run the actions it had queued for it.
+     * It is asked again until it replies or leaves the cluster, since running the actions of the key before
+     * would let two nodes write the same diagram.
+     */
+    private void handoff(String mailboxKey, String previous, Runnable done) {
+        OwnershipRing.handoffs.incrementAndGet();
+        final JsonObject handoff = new JsonObject()
+            .put("key", mailboxKey)
+            .put("node", OwnershipRing.localNode());
+        vertx.eventBus().send(handoffAddress(previous), handoff,
+            new DeliveryOptions().setSendTimeout(cpd.server.eventBus.ownership.forwardTimeout), reply -> {
+                if (reply.succeeded() || !OwnershipRing.isMember(previous)) {
+                    done.run();
+                    return;
+                }
+                logger.warn("node " + previous + " did not cede " + mailboxKey + ": " + reply.cause().getMessage());
+                vertx.setTimer(cpd.server.eventBus.ownership.membershipPeriod,
+                    id -> handoff(mailboxKey, previous, done));
+            });
+    }
+
+    private void handleHandoff(Message<JsonObject> message) {
+        final String mailboxKey = message.body().getString("key");
+        OwnershipRing.cede(mailboxKey, message.body().getString("node"));
+        // replied once the actions queued before are over
+        ActionMailbox.submit(address() + "::" + mailboxKey, done -> {
+            message.reply(new JsonObject());
+            done.run();
+        });
+    }
+
+    /**
+     * Sends the action to the node owning its key, the handler is completed with the reply.
+     */
+    private void forward(IncomingAction incomingAction, ActionContext context, String owner,
+                         AsyncHandler<JsonObject> handler) {
+        OwnershipRing.forwarded.incrementAndGet();
+        final JsonObject forwarded = new JsonObject()
+            .put("action", incomingAction.json)
+            .put("context", context.toJson());
+        vertx.eventBus().send(forwardAddress(owner), forwarded,
+            new DeliveryOptions().setSendTimeout(cpd.server.eventBus.ownership.forwardTimeout),
+            (AsyncResult<Message<JsonObject>> reply) -> {
+                if (reply.succeeded())
+                    handler.handle(Future.succeededFuture(reply.result().body()));
+                else {
+                    OwnershipRing.forwardFailures.incrementAndGet();
+                    handler.handle(Future.failedFuture(reply.cause()));
                 }
             });
     }
 
+    private void handleForwarded(Message<JsonObject> message) {
+        final IncomingAction incomingAction;
+        try {
+            incomingAction = createIncomingAction(message.body().getJsonObject("action"));
+        } catch (Exception e) {
+            message.fail(-1, e.getLocalizedMessage());
+            return;
+        }
+        OwnershipRing.handledForOthers.incrementAndGet();
+        // handled here even if the ring has changed meanwhile (forwarding it again could bounce it between nodes),
+        // unless this node has ceded its key
+        final ActionContext context = ActionContext.fromJson(message.body().getJsonObject("context", new JsonObject()));
+        run(incomingAction, mailboxKey(incomingAction), context, action -> {
+            if (action.succeeded())
+                message.reply(action.result());
+            else
+                message.fail(-1, action.cause().getLocalizedMessage());
+        });
+    }
+
+    private static void completed(BridgeEvent event, IncomingAction incomingAction, long received,
+                                  AsyncResult<JsonObject> action) {
+        BridgeMetrics.actionDone(event, incomingAction.type(), received, action.succeeded());
+        if (action.succeeded()) {
+            event.getRawMessage().put("body", action.result());
+            if (event.type() == BridgeEventType.PUBLISH)
+                FrameCodec.published(event, action.result());
+            EventBusUtils.complete(event);
+        } else {
+            EventBusUtils.fail(event, action.cause());
+        }
+    }
+
 }
@@ -26,7 +26,7 @@ public abstract class BridgeEventService {
         init();
     }
 
-    public static void registerService(Class<DiagramActionService> bridgeEventServiceClass) {
+    public static void registerService(Class<? extends BridgeEventService> bridgeEventServiceClass) {
         SERVICES.put(bridgeEventServiceClass, null);
     }
 
@@ -1,33 +1,53 @@
 package it.beng.modeler.microservice.services;
 
 import io.vertx.core.Vertx;
+import it.beng.modeler.microservice.actions.IncomingAction;
 import it.beng.modeler.microservice.actions.diagram.DiagramAction;
+import it.beng.modeler.microservice.actions.diagram.publish.BatchAction;
 import it.beng.modeler.microservice.actions.diagram.publish.CreateThingsAction;
 import it.beng.modeler.microservice.actions.diagram.publish.DeleteThingsAction;
 import it.beng.modeler.microservice.actions.diagram.publish.UpdateThingsAction;
 import it.beng.modeler.microservice.actions.diagram.send.LoadDefinitionAction;
+import it.beng.modeler.microservice.actions.diagram.send.LoadDefinitionSinceAction;
+import it.beng.modeler.microservice.journal.DiagramSnapshots;
 
 public class DiagramActionService extends ActionService {
 
-    // TODO: creare un modello "Initial FPMN" da usare come template nella creazione di un nuovo diagramma
-
     // register here all handled IncomingActions (Publish/Send)
     static {
         /* PUBLISH */
-        registerIncomingAction(CreateThingsAction.TYPE, CreateThingsAction.class);
-        registerIncomingAction(UpdateThingsAction.TYPE, UpdateThingsAction.class);
-        registerIncomingAction(DeleteThingsAction.TYPE, DeleteThingsAction.class);
+        registerIncomingAction(CreateThingsAction.TYPE, CreateThingsAction::new);
+        registerIncomingAction(UpdateThingsAction.TYPE, UpdateThingsAction::new);
+        registerIncomingAction(DeleteThingsAction.TYPE, DeleteThingsAction::new);
+        registerIncomingAction(BatchAction.TYPE, BatchAction::new);
         /* SEND */
-        registerIncomingAction(LoadDefinitionAction.TYPE, LoadDefinitionAction.class);
+        registerIncomingAction(LoadDefinitionAction.TYPE, LoadDefinitionAction::new);
+        registerIncomingAction(LoadDefinitionSinceAction.TYPE, LoadDefinitionSinceAction::new);
     }
 
     public DiagramActionService(Vertx vertx) {
         super(vertx);
     }
 
+    @Override
+    protected void init() {
+        super.init();
+        // only the owner journals a diagram, so it is the one that snapshots it (between two of its actions)
+        DiagramSnapshots.start(vertx, diagramId -> OwnershipRing.owner(diagramId).equals(OwnershipRing.localNode()),
+            this::submit);
+    }
+
     @Override
     protected String address() {
         return DiagramAction.ADDRESS;
     }
 
+    /**
+     * Actions on the same diagram are processed one at a time, in the order they are received.
+     */
+    @Override
+    protected String mailboxKey(IncomingAction action) {
+        return action.json.getString("diagramId");
+    }
+
 }
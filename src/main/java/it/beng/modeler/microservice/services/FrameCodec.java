@@ -0,0 +1,216 @@
+package it.beng.modeler.microservice.services;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.handler.sockjs.BridgeEvent;
+import io.vertx.ext.web.handler.sockjs.SockJSSocket;
+import it.beng.modeler.microservice.cache.LruCache;
+import it.beng.modeler.microservice.metrics.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * <p>Per socket, opt-in, compact frames of the SockJS event bus bridge.</p>
+ * A client opts in by sending any frame with the headers:
+ * <ul>
+ * <li>{@code "cpd-encoding": "deflate"}: bodies (in both directions) may be zlib deflated JSON, base64 encoded
+ * in a string. Encoded frames carry the same header, smaller outbound bodies are left as they are.</li>
+ * <li>{@code "cpd-reply": "ack"}: the actions published by the client are echoed back to it as an ack
+ * with their {@code actionId}, {@code revision} and {@code results}, instead of the whole action.</li>
+ * </ul>
+ */
+public final class FrameCodec {
+    private static final Logger logger = LogManager.getLogger(FrameCodec.class);
+
+    public static final String ENCODING_HEADER = "cpd-encoding";
+    public static final String DEFLATE = "deflate";
+    public static final String REPLY_HEADER = "cpd-reply";
+    public static final String ACK = "ack";
+
+    // outbound bodies shorter than this are not worth deflating
+    private static final int MIN_DEFLATE_SIZE = 512;
+    // a published action may never be echoed (e.g. the socket is not registered to the diagram): its pending ack
+    // is forgotten after this many later ones, or after this long, and a late echo is then sent whole
+    private static final int MAX_PENDING_ACKS = 256;
+    private static final long PENDING_ACK_EXPIRY = 60_000;
+
+    private static final Map<SockJSSocket, Options> SOCKETS = new ConcurrentHashMap<>();
+
+    private static final AtomicLong deflatedFrames = new AtomicLong();
+    private static final AtomicLong inflatedFrames = new AtomicLong();
+    private static final AtomicLong plainBytes = new AtomicLong();
+    private static final AtomicLong deflatedBytes = new AtomicLong();
+    private static final AtomicLong acks = new AtomicLong();
+
+    static {
+        Metrics.register("frameCodec", FrameCodec::snapshot);
+    }
+
+    private FrameCodec() {}
+
+    private static final class Options {
+        volatile boolean deflate;
+        volatile boolean ack;
+        // actions published by this socket whose echo must be replaced by an ack
+        final LruCache<String, Boolean> pendingAcks = new LruCache<>(1, 16, MAX_PENDING_ACKS, PENDING_ACK_EXPIRY);
+    }
+
+    /**
+     * Negotiates the socket options and decodes inbound frames.
+     * It MUST be called before the event is handled by the bridge event services.
+     */
+    public static void handle(BridgeEvent event) {
+        switch (event.type()) {
+            case SOCKET_CLOSED:
+                SOCKETS.remove(event.socket());
+                break;
+            case SEND:
+            case PUBLISH:
+            case REGISTER:
+                inbound(event);
+                break;
+            default:
+        }
+    }
+
+    private static void inbound(BridgeEvent event) {
+        final JsonObject message = event.getRawMessage();
+        if (message == null) return;
+        final JsonObject headers = message.getJsonObject("headers");
+        if (headers == null) return;
+        final String encoding = headers.getString(ENCODING_HEADER);
+        final String reply = headers.getString(REPLY_HEADER);
+        if (encoding == null && reply == null) return;
+        final Options options = SOCKETS.computeIfAbsent(event.socket(), socket -> new Options());
+        if (encoding != null) options.deflate = DEFLATE.equals(encoding);
+        if (reply != null) options.ack = ACK.equals(reply);
+        // the event bus (and so every other socket) only sees plain JSON
+        headers.remove(ENCODING_HEADER);
+        headers.remove(REPLY_HEADER);
+        if (headers.isEmpty()) message.remove("headers");
+        final Object body = message.getValue("body");
+        if (DEFLATE.equals(encoding) && body instanceof String) {
+            try {
+                message.put("body", new JsonObject(inflate((String) body)));
+                inflatedFrames.incrementAndGet();
+            } catch (Exception e) {
+                logger.error("could not inflate frame body: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Encodes the outbound message, as it is going to be written to the socket.
+     */
+    static void encode(SockJSSocket socket, JsonObject message) {
+        final Options options = SOCKETS.get(socket);
+        if (options == null || message == null) return;
+        Object body = message.getValue("body");
+        if (options.ack && body instanceof JsonObject) {
+            final JsonObject action = (JsonObject) body;
+            final String actionId = action.getString("actionId");
+            if (actionId != null && options.pendingAcks.get(actionId) != null) {
+                options.pendingAcks.invalidate(actionId);
+                body = new JsonObject()
+                    .put("type", action.getString("type"))
+                    .put("ack", true)
+                    .put("actionId", actionId)
+                    .put("diagramId", action.getString("diagramId"))
+                    .put("revision", action.getValue("revision"))
+                    .put("results", action.getJsonArray("results"));
+                message.put("body", body);
+                acks.incrementAndGet();
+            }
+        }
+        if (options.deflate && (body instanceof JsonObject || body instanceof JsonArray)) {
+            final String plain = body instanceof JsonObject ? ((JsonObject) body).encode() : ((JsonArray) body).encode();
+            if (plain.length() < MIN_DEFLATE_SIZE) return;
+            final String deflated = deflate(plain);
+            plainBytes.addAndGet(plain.length());
+            deflatedBytes.addAndGet(deflated.length());
+            deflatedFrames.incrementAndGet();
+            JsonObject headers = message.getJsonObject("headers");
+            if (headers == null) message.put("headers", headers = new JsonObject());
+            headers.put(ENCODING_HEADER, DEFLATE);
+            message.put("body", deflated);
+        }
+    }
+
+    /**
+     * Called once the action published through the event has been handled: if the publishing
+     * socket asked for acks, its own copy of the published action will be replaced by an ack.
+     */
+    static void published(BridgeEvent event, JsonObject action) {
+        final Options options = SOCKETS.get(event.socket());
+        final String actionId = action.getString("actionId");
+        if (options != null && options.ack && actionId != null)
+            options.pendingAcks.put(actionId, Boolean.TRUE);
+    }
+
+    /**
+     * @return {@code true} if the message is the echo of an action published by the socket, that will be acked
+     */
+    static boolean awaitsAck(SockJSSocket socket, JsonObject message) {
+        final Options options = SOCKETS.get(socket);
+        final Object body = message.getValue("body");
+        return options != null && options.ack && body instanceof JsonObject
+            && options.pendingAcks.get(((JsonObject) body).getString("actionId", "")) != null;
+    }
+
+    static String deflate(String plain) {
+        final Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(plain.getBytes(StandardCharsets.UTF_8));
+            deflater.finish();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(plain.length() / 4 + 64);
+            final byte[] buffer = new byte[8192];
+            while (!deflater.finished())
+                out.write(buffer, 0, deflater.deflate(buffer));
+            return Base64.getEncoder().encodeToString(out.toByteArray());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static String inflate(String deflated) throws DataFormatException, IOException {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(Base64.getDecoder().decode(deflated));
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(deflated.length() * 4);
+            final byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                final int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new DataFormatException("truncated deflate stream");
+                out.write(buffer, 0, inflated);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static JsonObject snapshot() {
+        final long plain = plainBytes.get();
+        return new JsonObject()
+            .put("sockets", SOCKETS.size())
+            .put("deflatedFrames", deflatedFrames.get())
+            .put("inflatedFrames", inflatedFrames.get())
+            .put("plainBytes", plain)
+            .put("deflatedBytes", deflatedBytes.get())
+            .put("ratio", plain == 0 ? 1d : (double) deflatedBytes.get() / plain)
+            .put("acks", acks.get());
+    }
+
+}
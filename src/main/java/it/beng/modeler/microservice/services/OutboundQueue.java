@@ -0,0 +1,353 @@
+package it.beng.modeler.microservice.services;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.handler.sockjs.BridgeEvent;
+import io.vertx.ext.web.handler.sockjs.SockJSSocket;
+import it.beng.modeler.config.cpd;
+import it.beng.modeler.microservice.actions.diagram.DiagramAction;
+import it.beng.modeler.microservice.actions.diagram.publish.AuthorizedAction;
+import it.beng.modeler.microservice.actions.diagram.publish.BatchAction;
+import it.beng.modeler.microservice.actions.diagram.publish.CreateThingsAction;
+import it.beng.modeler.microservice.actions.diagram.publish.DeleteThingsAction;
+import it.beng.modeler.microservice.actions.diagram.publish.UpdateThingsAction;
+import it.beng.modeler.microservice.actions.diagram.reply.ResyncRequiredAction;
+import it.beng.modeler.microservice.metrics.BridgeMetrics;
+import it.beng.modeler.microservice.metrics.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Per socket queue of the outbound messages of the SockJS event bus bridge.</p>
+ * Messages are written as they come while the socket write queue has room; once it is full they are queued here
+ * and written as soon as the socket drains. While queued, diagram updates are conflated: a thing is updated
+ * at most once per queue (the earlier update being merged into the later one, unless another change of the thing
+ * is queued in between) and not at all if it is deleted. Only written items (whose result is {@code ok}) are
+ * conflated: the others, that clients skip, are left as they are.
+ * A socket is saturated if more than {@code cpd.server.eventBus.outbound.maxQueued} messages are queued, or if
+ * it cannot drain for longer than {@code maxSaturation}: the first time its queued diagram actions are replaced
+ * by a {@link ResyncRequiredAction} per diagram (when {@code resync} is enabled), otherwise it is disconnected.
+ */
+public final class OutboundQueue {
+    private static final Logger logger = LogManager.getLogger(OutboundQueue.class);
+
+    private static final Map<SockJSSocket, OutboundQueue> SOCKETS = new ConcurrentHashMap<>();
+
+    private static final AtomicLong queued = new AtomicLong();
+    private static final AtomicLong conflated = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final AtomicLong resyncs = new AtomicLong();
+    private static final AtomicLong disconnects = new AtomicLong();
+
+    static {
+        Metrics.register("outboundQueues", OutboundQueue::snapshot);
+    }
+
+    private final SockJSSocket socket;
+    private final Deque<JsonObject> queue = new ArrayDeque<>();
+    private int maxDepth;
+    // when the socket started queueing (0 while it is not)
+    private long saturatedSince;
+    private boolean resynced;
+
+    private OutboundQueue(SockJSSocket socket) {
+        this.socket = socket;
+        socket.drainHandler(v -> flush());
+    }
+
+    /**
+     * Writes, or queues, the outbound messages (encoding them as they are written).
+     * It MUST be called after {@link FrameCodec#handle(BridgeEvent)}.
+     *
+     * @return {@code true} if the event has been completed
+     */
+    public static boolean handle(BridgeEvent event) {
+        switch (event.type()) {
+            case SOCKET_CREATED:
+                SOCKETS.put(event.socket(), new OutboundQueue(event.socket()));
+                return false;
+            case SOCKET_CLOSED:
+                final OutboundQueue closed = SOCKETS.remove(event.socket());
+                if (closed != null) closed.clear();
+                return false;
+            case RECEIVE:
+                final OutboundQueue outbound = SOCKETS.get(event.socket());
+                final JsonObject message = event.getRawMessage();
+                // messages waiting for a reply are written at once: the bridge must track their reply address
+                if (outbound == null || message == null || message.getString("replyAddress") != null) {
+                    write(event.socket(), message);
+                    event.complete(true);
+                } else outbound.receive(event, message);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void write(SockJSSocket socket, JsonObject message) {
+        FrameCodec.encode(socket, message);
+        BridgeMetrics.outbound(socket, message);
+    }
+
+    private synchronized void receive(BridgeEvent event, JsonObject message) {
+        if (queue.isEmpty() && !socket.writeQueueFull()) {
+            // the bridge writes the (encoded) message itself
+            write(socket, message);
+            event.complete(true);
+            return;
+        }
+        event.complete(false);
+        if (PresenceService.isPresenceAddress(message.getString("address"))) {
+            // presence is refreshed on every tick: a socket that cannot keep up just skips it
+            dropped.incrementAndGet();
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        if (saturatedSince == 0) saturatedSince = now;
+        offer(message.copy());
+        if (queue.size() > cpd.server.eventBus.outbound.maxQueued
+            || now - saturatedSince > cpd.server.eventBus.outbound.maxSaturation)
+            saturated(now);
+        else flush();
+    }
+
+    private void offer(JsonObject message) {
+        final Object body = message.getValue("body");
+        if (body instanceof JsonObject && isDiagramAddress(message.getString("address"))) {
+            final JsonObject action = (JsonObject) body;
+            final String type = action.getString("type");
+            if (UpdateThingsAction.TYPE.equals(type)) {
+                final JsonArray updates = action.getJsonArray("updates", new JsonArray());
+                for (int i = 0; i < updates.size(); i++)
+                    if (written(action, updates, i))
+                        conflate(updates.getJsonObject(i), message.getString("address"));
+            }
+            if (DeleteThingsAction.TYPE.equals(type))
+                supersede(action, message.getString("address"));
+            // the updates of a batch are never conflated, but its deletes still supersede the queued updates
+            if (BatchAction.TYPE.equals(type))
+                for (Object batched : action.getJsonArray("actions", new JsonArray()))
+                    if (batched instanceof JsonObject
+                        && DeleteThingsAction.TYPE.equals(((JsonObject) batched).getString("type")))
+                        supersede((JsonObject) batched, message.getString("address"));
+        }
+        queue.add(message);
+        queued.incrementAndGet();
+        maxDepth = Math.max(maxDepth, queue.size());
+    }
+
+    private static boolean isDiagramAddress(String address) {
+        return address != null && address.startsWith(DiagramAction.ADDRESS + "::");
+    }
+
+    private static String thingId(Object thing) {
+        if (thing instanceof JsonObject) return ((JsonObject) thing).getString("id");
+        return thing instanceof String ? (String) thing : null;
+    }
+
+    /**
+     * @return whether the i-th entry of the items (updates or things) of the published action has been written
+     * (all of them have, if the action has no results)
+     */
+    private static boolean written(JsonObject action, JsonArray items, int i) {
+        if (!(items.getValue(i) instanceof JsonObject)) return false;
+        final JsonArray results = action.getValue("results") instanceof JsonArray
+            ? action.getJsonArray("results") : null;
+        if (results == null) return true;
+        final int result = resultIndex(items, i);
+        return result < results.size() && results.getValue(result) instanceof JsonObject
+            && AuthorizedAction.OK.equals(results.getJsonObject(result).getString("status"));
+    }
+
+    /**
+     * @return the index of the result of the i-th entry: results are given for the object entries only
+     */
+    private static int resultIndex(JsonArray items, int i) {
+        int index = 0;
+        for (int j = 0; j < i; j++)
+            if (items.getValue(j) instanceof JsonObject) index++;
+        return index;
+    }
+
+    /**
+     * Removes the queued updates of the things deleted by the action.
+     */
+    private void supersede(JsonObject delete, String address) {
+        final JsonArray things = delete.getJsonArray("things", new JsonArray());
+        for (int i = 0; i < things.size(); i++)
+            if (written(delete, things, i)) supersede(thingId(things.getValue(i)), address);
+    }
+
+    private static boolean isPatch(JsonObject update) {
+        return update.getJsonObject("original") == null;
+    }
+
+    private static String updateId(JsonObject update) {
+        return isPatch(update) ? update.getString("id") : update.getJsonObject("original").getString("id");
+    }
+
+    /**
+     * Merges the queued update of the same thing (if any) into the given one, that replaces it.
+     */
+    private void conflate(JsonObject update, String address) {
+        final JsonObject superseded = supersede(updateId(update), address);
+        if (superseded == null || !isPatch(update)) return;
+        final JsonObject changes = update.getJsonObject("changes", new JsonObject());
+        if (isPatch(superseded)) {
+            update.put("changes", superseded.getJsonObject("changes", new JsonObject()).mergeIn(changes, true));
+            update.remove("version");
+            return;
+        }
+        // a patch of a queued replacement is a replacement as well: nested objects must be patched whole
+        final JsonObject original = superseded.getJsonObject("original");
+        final JsonObject merged = superseded.getJsonObject("changes", new JsonObject());
+        changes.forEach(change -> {
+            final Object previous = merged.containsKey(change.getKey())
+                ? merged.getValue(change.getKey()) : original.getValue(change.getKey());
+            merged.put(change.getKey(), previous instanceof JsonObject && change.getValue() instanceof JsonObject
+                ? ((JsonObject) previous).copy().mergeIn((JsonObject) change.getValue(), true) : change.getValue());
+        });
+        update.clear();
+        update.put("original", original).put("changes", merged);
+    }
+
+    /**
+     * Removes the queued (written) update of the thing, with its result, dropping the messages left without
+     * updates. An update queued before another change of the thing (a create, a delete or a batch) is never
+     * removed: the client must apply both in order.
+     *
+     * @return the removed update, or {@code null} if there was none
+     */
+    private JsonObject supersede(String thingId, String address) {
+        if (thingId == null) return null;
+        for (Iterator<JsonObject> messages = queue.descendingIterator(); messages.hasNext(); ) {
+            final JsonObject message = messages.next();
+            if (!address.equals(message.getString("address")) || !(message.getValue("body") instanceof JsonObject))
+                continue;
+            final JsonObject action = message.getJsonObject("body");
+            if (!UpdateThingsAction.TYPE.equals(action.getString("type"))) {
+                if (changes(action, thingId)) return null;
+                continue;
+            }
+            final JsonArray updates = action.getJsonArray("updates", new JsonArray());
+            int i = -1;
+            for (int j = 0; j < updates.size() && i < 0; j++)
+                if (written(action, updates, j) && thingId.equals(updateId(updates.getJsonObject(j)))) i = j;
+            // updates not written did not change the thing: earlier ones may still be conflated
+            if (i < 0) continue;
+            final JsonObject update = updates.getJsonObject(i);
+            if (action.getValue("results") instanceof JsonArray)
+                action.getJsonArray("results").remove(resultIndex(updates, i));
+            updates.remove(i);
+            conflated.incrementAndGet();
+            // an echo to be acked is kept: the publisher waits for it
+            if (updates.isEmpty() && !FrameCodec.awaitsAck(socket, message)) {
+                messages.remove();
+                dropped.incrementAndGet();
+            }
+            // there is at most one queued written update per thing
+            return update;
+        }
+        return null;
+    }
+
+    private static int indexOf(JsonArray updates, String thingId) {
+        for (int i = 0; i < updates.size(); i++) {
+            final Object update = updates.getValue(i);
+            if (update instanceof JsonObject && thingId.equals(updateId((JsonObject) update))) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return whether the action (or any action of the batch) creates, updates or deletes the thing
+     */
+    private static boolean changes(JsonObject action, String thingId) {
+        final String type = action.getString("type");
+        if (UpdateThingsAction.TYPE.equals(type))
+            return indexOf(action.getJsonArray("updates", new JsonArray()), thingId) >= 0;
+        if (CreateThingsAction.TYPE.equals(type) || DeleteThingsAction.TYPE.equals(type))
+            return action.getJsonArray("things", new JsonArray()).stream()
+                         .anyMatch(thing -> thingId.equals(thingId(thing)));
+        if (BatchAction.TYPE.equals(type))
+            return action.getJsonArray("actions", new JsonArray()).stream()
+                         .anyMatch(batched -> batched instanceof JsonObject && changes((JsonObject) batched, thingId));
+        return false;
+    }
+
+    private void saturated(long now) {
+        if (!cpd.server.eventBus.outbound.resync || resynced) {
+            disconnects.incrementAndGet();
+            logger.warn("disconnecting socket " + BridgeMetrics.socketId(socket) + ": "
+                + queue.size() + " messages queued since " + (now - saturatedSince) + "ms");
+            clear();
+            socket.close();
+            return;
+        }
+        resynced = true;
+        saturatedSince = now;
+        resyncs.incrementAndGet();
+        // diagram address -> diagram id
+        final Map<String, String> diagrams = new LinkedHashMap<>();
+        for (Iterator<JsonObject> messages = queue.iterator(); messages.hasNext(); ) {
+            final JsonObject message = messages.next();
+            final Object body = message.getValue("body");
+            if (!isDiagramAddress(message.getString("address")) || !(body instanceof JsonObject)) continue;
+            final String diagramId = ((JsonObject) body).getString("diagramId");
+            if (diagramId == null) continue;
+            diagrams.put(message.getString("address"), diagramId);
+            messages.remove();
+            dropped.incrementAndGet();
+        }
+        logger.warn("socket " + BridgeMetrics.socketId(socket) + " must resync diagrams " + diagrams.values());
+        diagrams.forEach((address, diagramId) -> queue.add(new JsonObject()
+            .put("type", "rec")
+            .put("address", address)
+            .put("body", new ResyncRequiredAction(diagramId).json)));
+        flush();
+    }
+
+    private synchronized void flush() {
+        while (!queue.isEmpty() && !socket.writeQueueFull()) {
+            final JsonObject message = queue.poll();
+            write(socket, message);
+            socket.write(Buffer.buffer(message.encode()));
+        }
+        if (queue.isEmpty()) {
+            saturatedSince = 0;
+            resynced = false;
+        }
+    }
+
+    private synchronized void clear() {
+        dropped.addAndGet(queue.size());
+        queue.clear();
+    }
+
+    private synchronized JsonObject stats() {
+        return new JsonObject()
+            .put("depth", queue.size())
+            .put("maxDepth", maxDepth)
+            .put("saturatedMs", saturatedSince == 0 ? 0 : System.currentTimeMillis() - saturatedSince);
+    }
+
+    private static JsonObject snapshot() {
+        final JsonObject sockets = new JsonObject();
+        SOCKETS.forEach((socket, outbound) -> {
+            if (outbound.maxDepth > 0) sockets.put(BridgeMetrics.socketId(socket), outbound.stats());
+        });
+        return new JsonObject()
+            .put("queued", queued.get())
+            .put("conflated", conflated.get())
+            .put("dropped", dropped.get())
+            .put("resyncs", resyncs.get())
+            .put("disconnects", disconnects.get())
+            .put("sockets", sockets);
+    }
+
+}
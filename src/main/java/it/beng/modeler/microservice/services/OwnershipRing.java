@@ -0,0 +1,200 @@
+package it.beng.modeler.microservice.services;
+
+import com.hazelcast.core.Cluster;
+import com.hazelcast.core.Member;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import it.beng.modeler.config.cpd;
+import it.beng.modeler.microservice.cache.DefinitionCache;
+import it.beng.modeler.microservice.cache.ExtensionsIndex;
+import it.beng.modeler.microservice.metrics.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Consistent hashing of the mailbox keys (the diagram ids) over the members of the cluster.</p>
+ * Each member is placed on the ring {@code cpd.server.eventBus.ownership.virtualNodes} times and owns the keys
+ * hashed up to each of its points. Members are polled every {@code membershipPeriod}: when one joins or leaves
+ * only the keys of its points change owner, and the definitions cached here are dropped, since another node may
+ * have changed them while this one did not own them. Without a cluster this node owns every key.
+ * <p>Nodes do not see a change of the members at the same time, so a key is handed over: before running the first
+ * action of a key it did not own, the new owner asks the previous one to cede it. The previous owner runs the
+ * actions it had queued for the key, then forwards the later ones to the new owner until it sees the change too
+ * (or for two membership periods at most, after which the key goes back to the owner of its ring).</p>
+ */
+final class OwnershipRing {
+    private static final Logger logger = LogManager.getLogger(OwnershipRing.class);
+
+    private static volatile String localNode = "local";
+    private static volatile List<String> members = Collections.emptyList();
+    private static volatile NavigableMap<Long, String> ring = new TreeMap<>();
+    private static volatile NavigableMap<Long, String> previousRing = new TreeMap<>();
+    private static final Map<String, Ceded> ceded = new ConcurrentHashMap<>();
+    private static final Set<String> acquired = ConcurrentHashMap.newKeySet();
+    private static boolean started;
+
+    static final AtomicLong forwarded = new AtomicLong();
+    static final AtomicLong forwardFailures = new AtomicLong();
+    static final AtomicLong handledForOthers = new AtomicLong();
+    static final AtomicLong handoffs = new AtomicLong();
+    private static final AtomicLong rebalances = new AtomicLong();
+
+    private OwnershipRing() {}
+
+    /**
+     * @param cluster the cluster this node has joined, {@code null} if it is not clustered
+     */
+    static synchronized void start(Vertx vertx, Cluster cluster) {
+        if (started) return;
+        started = true;
+        Metrics.register("ownership", OwnershipRing::snapshot);
+        if (cluster == null) {
+            rebuild(Collections.singletonList(localNode));
+            return;
+        }
+        localNode = cluster.getLocalMember().getUuid();
+        DefinitionCache.joinCluster(vertx);
+        ExtensionsIndex.joinCluster(vertx);
+        rebuild(nodes(cluster));
+        // members are polled, so that the ring only changes on the event loop
+        vertx.setPeriodic(cpd.server.eventBus.ownership.membershipPeriod, id -> {
+            final List<String> nodes = nodes(cluster);
+            if (!new HashSet<>(nodes).equals(new HashSet<>(members))) {
+                rebuild(nodes);
+                rebalances.incrementAndGet();
+                DefinitionCache.invalidateAll();
+            }
+        });
+    }
+
+    /**
+     * @return the ids of the members, the same as the vert.x node ids
+     */
+    private static List<String> nodes(Cluster cluster) {
+        final List<String> nodes = new ArrayList<>();
+        for (Member member : cluster.getMembers())
+            nodes.add(member.getUuid());
+        return nodes;
+    }
+
+    private static void rebuild(List<String> nodes) {
+        final List<String> sorted = new ArrayList<>(nodes);
+        Collections.sort(sorted);
+        final NavigableMap<Long, String> points = new TreeMap<>();
+        for (String node : sorted)
+            for (int i = 0; i < cpd.server.eventBus.ownership.virtualNodes; i++)
+                points.put(hash(node + "#" + i), node);
+        if (!ring.isEmpty()) previousRing = ring;
+        ring = points;
+        members = Collections.unmodifiableList(sorted);
+        // keys are handed over again from the owners of the previous ring
+        acquired.clear();
+        ceded.entrySet().removeIf(mark -> !members.contains(mark.getValue().node)
+            || !localNode.equals(owner(points, mark.getKey())));
+        logger.info("diagram ownership ring of node " + localNode + ": " + sorted);
+    }
+
+    private static long hash(String key) {
+        final byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        long hash = 0;
+        for (int i = 0; i < 8; i++)
+            hash = hash << 8 | (digest[i] & 0xff);
+        return hash;
+    }
+
+    static String localNode() {
+        return localNode;
+    }
+
+    static boolean isMember(String node) {
+        return members.contains(node);
+    }
+
+    /**
+     * @return the node owning the key: the one it was ceded to, if any, or else the one of the ring
+     */
+    static String owner(String key) {
+        final String successor = cededTo(key);
+        return successor != null ? successor : owner(ring, key);
+    }
+
+    private static String owner(NavigableMap<Long, String> ring, String key) {
+        if (ring.isEmpty()) return localNode;
+        final Map.Entry<Long, String> point = ring.ceilingEntry(hash(key));
+        return (point != null ? point : ring.firstEntry()).getValue();
+    }
+
+    /**
+     * @return the node the key was ceded to, while this node must forward its actions there, or {@code null}
+     */
+    static String cededTo(String key) {
+        final Ceded mark = ceded.get(key);
+        return mark != null && mark.live() ? mark.node : null;
+    }
+
+    /**
+     * Cedes the key to the node that has taken it over: the actions of the key queued from now on are forwarded
+     * there. It must be followed by an action of the mailbox of the key, run when the ones queued before are over.
+     */
+    static void cede(String key, String node) {
+        ceded.put(key, new Ceded(node, System.currentTimeMillis() + 2 * cpd.server.eventBus.ownership.membershipPeriod));
+        // if the key comes back, it will be handed over again
+        acquired.remove(key);
+    }
+
+    /**
+     * Must be called by the owner before queuing an action of the key.
+     *
+     * @return the node the key must be handed over from before running its actions, {@code null} if none
+     */
+    static String previousOwner(String key) {
+        final Ceded mark = ceded.get(key);
+        // the actions of a key still ceded are forwarded from its mailbox
+        if (mark != null && (mark.live() || !ceded.remove(key, mark))) return null;
+        if (mark == null && (previousRing.isEmpty() || acquired.contains(key))) return null;
+        // if this node had ceded the key, it runs again its actions after the node it had ceded it to
+        final String previous = mark != null ? mark.node : owner(previousRing, key);
+        if (previous.equals(localNode) || !members.contains(previous)) return null;
+        return acquired.add(key) || mark != null ? previous : null;
+    }
+
+    private static JsonObject snapshot() {
+        return new JsonObject()
+            .put("localNode", localNode)
+            .put("members", new JsonArray(new ArrayList<>(members)))
+            .put("rebalances", rebalances.get())
+            .put("forwarded", forwarded.get())
+            .put("forwardFailures", forwardFailures.get())
+            .put("handledForOthers", handledForOthers.get())
+            .put("handoffs", handoffs.get())
+            .put("ceded", ceded.size());
+    }
+
+    private static final class Ceded {
+        final String node;
+        final long until;
+
+        Ceded(String node, long until) {
+            this.node = node;
+            this.until = until;
+        }
+
+        boolean live() {
+            return until > System.currentTimeMillis() && members.contains(node);
+        }
+    }
+
+}
@@ -0,0 +1,304 @@
+package it.beng.modeler.microservice.services;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.bridge.PermittedOptions;
+import io.vertx.ext.web.handler.sockjs.BridgeEvent;
+import io.vertx.ext.web.handler.sockjs.SockJSSocket;
+import it.beng.modeler.config.cpd;
+import it.beng.modeler.microservice.actions.ActionContext;
+import it.beng.modeler.microservice.actions.diagram.DiagramAction;
+import it.beng.modeler.microservice.metrics.Metrics;
+import it.beng.modeler.microservice.utils.AuthUtils;
+import it.beng.modeler.microservice.utils.DBUtils;
+import it.beng.modeler.microservice.utils.EventBusUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>Ephemeral presence of the users on a diagram (cursors, selections, "is editing"...).</p>
+ * A socket registers to {@code <presence address>::<diagramId>}: it is authorized once, at registration,
+ * if its user is an admin or in the team of the diagram. The states it publishes there are never persisted
+ * nor delivered as they are: the latest one of each user is kept and, once per {@code tick}, the states changed
+ * since the previous tick (and the users who left) are published as a single {@value #TYPE} message.
+ * Sockets publishing more than {@code maxRate} states per second, or states larger than {@code maxStateSize},
+ * are dropped; so are presence messages to sockets that cannot keep up (see {@link OutboundQueue}).
+ * Each node only knows the users connected through its own sockets: in cluster mode, a user joining a diagram
+ * is signalled on {@code <presence address>::joined}, and every node republishes the full state of its users
+ * on its next tick.
+ */
+public class PresenceService extends BridgeEventService {
+    private static final Logger logger = LogManager.getLogger(PresenceService.class);
+
+    public static final String TYPE = "[Presence] State";
+    public static final String ADDRESS = cpd.server.eventBus.presence.address;
+
+    // not bridged: the address pattern only permits diagram ids
+    private static final String JOINED = ADDRESS + "::joined";
+
+    private static final Collection<String> roles = Arrays.asList("owner", "reviewer", "editor", "observer");
+
+    private static final Pattern ADDRESS_PATTERN = Pattern.compile(
+        "^" + Pattern.quote(ADDRESS + "::") + "([a-z0-9]{8}-(?:[a-z0-9]{4}-){3}[a-z0-9]{12})$");
+
+    private final Map<SockJSSocket, Subscriber> subscribers = new ConcurrentHashMap<>();
+    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong fannedOut = new AtomicLong();
+
+    public PresenceService(Vertx vertx) {
+        super(vertx);
+    }
+
+    @Override
+    protected void init() {
+        vertx.setPeriodic(cpd.server.eventBus.presence.tick, id -> fanOut());
+        vertx.eventBus().<String>consumer(JOINED, message -> {
+            final Room room = rooms.get(message.body());
+            if (room != null) room.joined();
+        });
+        Metrics.register("presence", this::snapshot);
+    }
+
+    static boolean isPresenceAddress(String address) {
+        return address != null && address.startsWith(ADDRESS + "::");
+    }
+
+    @Override
+    public Collection<PermittedOptions> inboundPermitted() {
+        return Collections.singletonList(new PermittedOptions().setAddressRegex(ADDRESS_PATTERN.pattern()));
+    }
+
+    @Override
+    public Collection<PermittedOptions> outboundPermitted() {
+        return inboundPermitted();
+    }
+
+    /**
+     * The sockets that registered to the presence of some diagram, with their rate limit.
+     */
+    private static final class Subscriber {
+        final String userId;
+        final String displayName;
+        final Set<String> diagramIds = ConcurrentHashMap.newKeySet();
+        private double tokens = cpd.server.eventBus.presence.maxRate;
+        private long refilled = System.nanoTime();
+
+        Subscriber(JsonObject account) {
+            userId = account.getString("id");
+            displayName = account.getString("displayName");
+        }
+
+        synchronized boolean acquire() {
+            final long now = System.nanoTime();
+            final int maxRate = cpd.server.eventBus.presence.maxRate;
+            tokens = Math.min(maxRate, tokens + (now - refilled) * maxRate / 1e9);
+            refilled = now;
+            if (tokens < 1) return false;
+            tokens--;
+            return true;
+        }
+    }
+
+    /**
+     * The users present on a diagram through the sockets of this node.
+     */
+    private static final class Room {
+        // user id -> latest state (null until the user publishes one)
+        final Map<String, JsonObject> states = new HashMap<>();
+        // user id -> sockets of the user
+        final Map<String, Integer> sockets = new HashMap<>();
+        final Set<String> changed = new LinkedHashSet<>();
+        final Set<String> left = new LinkedHashSet<>();
+        // someone joined: all states are published on the next tick
+        boolean joined;
+
+        synchronized void join(String userId) {
+            sockets.merge(userId, 1, Integer::sum);
+            left.remove(userId);
+            joined = true;
+        }
+
+        // someone joined through another node
+        synchronized void joined() {
+            joined = true;
+        }
+
+        synchronized void leave(String userId) {
+            if (sockets.merge(userId, -1, Integer::sum) > 0) return;
+            sockets.remove(userId);
+            states.remove(userId);
+            changed.remove(userId);
+            left.add(userId);
+        }
+
+        synchronized void update(String userId, JsonObject state) {
+            if (!sockets.containsKey(userId)) return;
+            states.put(userId, state);
+            changed.add(userId);
+        }
+
+        /**
+         * @return the presence message to publish, or {@code null} if nothing changed
+         */
+        synchronized JsonObject drain(String diagramId) {
+            if (changed.isEmpty() && left.isEmpty() && !joined) return null;
+            final JsonArray users = new JsonArray();
+            for (String userId : joined ? states.keySet() : changed) {
+                final JsonObject state = states.get(userId);
+                if (state != null) users.add(state);
+            }
+            final JsonObject message = new JsonObject()
+                .put("type", TYPE)
+                .put("diagramId", diagramId)
+                .put("users", users)
+                .put("left", new JsonArray(new ArrayList<>(left)));
+            changed.clear();
+            left.clear();
+            joined = false;
+            return users.isEmpty() && message.getJsonArray("left").isEmpty() ? null : message;
+        }
+
+        synchronized boolean isEmpty() {
+            return sockets.isEmpty() && left.isEmpty();
+        }
+    }
+
+    @Override
+    public boolean handle(BridgeEvent event) {
+        switch (event.type()) {
+            case SOCKET_CLOSED:
+                final Subscriber closed = subscribers.remove(event.socket());
+                if (closed != null)
+                    closed.diagramIds.forEach(diagramId -> leave(diagramId, closed.userId));
+                return false;
+            case SOCKET_CREATED:
+            case SOCKET_PING:
+                return false;
+            default:
+        }
+        final JsonObject message = event.getRawMessage();
+        final Matcher matcher = message != null && message.getString("address") != null
+            ? ADDRESS_PATTERN.matcher(message.getString("address")) : null;
+        if (matcher == null || !matcher.matches()) return false;
+        final String diagramId = matcher.group(1);
+        switch (event.type()) {
+            case REGISTER:
+                register(event, diagramId);
+                break;
+            case UNREGISTER:
+                final Subscriber subscriber = subscribers.get(event.socket());
+                if (subscriber != null && subscriber.diagramIds.remove(diagramId))
+                    leave(diagramId, subscriber.userId);
+                EventBusUtils.complete(event);
+                break;
+            case PUBLISH:
+                update(event, diagramId, message.getValue("body"));
+                break;
+            case SEND:
+                EventBusUtils.fail(event, "illegal state: cannot send messages over a presence address");
+                break;
+            default:
+                EventBusUtils.complete(event);
+        }
+        return true;
+    }
+
+    private void register(BridgeEvent event, String diagramId) {
+        final ActionContext context = ActionContext.of(EventBusUtils.context(event));
+        final JsonObject account = context.account();
+        if (account == null || account.getString("id") == null) {
+            event.complete(false);
+            return;
+        }
+        if (AuthUtils.isAdmin(context.user())) {
+            join(event, diagramId, account);
+            return;
+        }
+        DBUtils.team(diagramId, team -> {
+            if (team.failed() || team.result() == null || team.result().getJsonObject("team") == null) {
+                if (team.failed()) logger.error("could not authorize presence: " + team.cause().getMessage());
+                event.complete(false);
+                return;
+            }
+            DiagramAction.isPermitted(account, team.result(), roles, isPermitted -> {
+                if (isPermitted.succeeded() && isPermitted.result())
+                    join(event, diagramId, account);
+                else
+                    event.complete(false);
+            });
+        });
+    }
+
+    private void join(BridgeEvent event, String diagramId, JsonObject account) {
+        final Subscriber subscriber = subscribers.computeIfAbsent(event.socket(), socket -> new Subscriber(account));
+        if (subscriber.diagramIds.add(diagramId)) {
+            rooms.compute(diagramId, (id, room) -> {
+                if (room == null) room = new Room();
+                room.join(subscriber.userId);
+                return room;
+            });
+            // the other nodes republish their users, that the socket would not see otherwise
+            vertx.eventBus().publish(JOINED, diagramId);
+        }
+        event.complete(true);
+    }
+
+    private void leave(String diagramId, String userId) {
+        final Room room = rooms.get(diagramId);
+        if (room != null) room.leave(userId);
+    }
+
+    private void update(BridgeEvent event, String diagramId, Object body) {
+        // the state is fanned out on the next tick, never delivered as it is
+        event.complete(false);
+        received.incrementAndGet();
+        final Subscriber subscriber = subscribers.get(event.socket());
+        final Room room = rooms.get(diagramId);
+        if (subscriber == null || room == null || !subscriber.diagramIds.contains(diagramId)
+            || !(body instanceof JsonObject)
+            || ((JsonObject) body).encode().length() > cpd.server.eventBus.presence.maxStateSize
+            || !subscriber.acquire()) {
+            rejected.incrementAndGet();
+            return;
+        }
+        room.update(subscriber.userId, new JsonObject()
+            .put("userId", subscriber.userId)
+            .put("displayName", subscriber.displayName)
+            .put("state", body));
+    }
+
+    private void fanOut() {
+        rooms.forEach((diagramId, room) -> {
+            final JsonObject message = room.drain(diagramId);
+            if (message != null) {
+                vertx.eventBus().publish(ADDRESS + "::" + diagramId, message);
+                published.incrementAndGet();
+                fannedOut.addAndGet(message.getJsonArray("users").size());
+            }
+        });
+        rooms.keySet().forEach(diagramId -> rooms.computeIfPresent(diagramId, (id, room) -> room.isEmpty() ? null : room));
+    }
+
+    private JsonObject snapshot() {
+        final long states = received.get() - rejected.get();
+        return new JsonObject()
+            .put("rooms", rooms.size())
+            .put("subscribers", subscribers.size())
+            .put("received", received.get())
+            .put("rejected", rejected.get())
+            .put("published", published.get())
+            .put("coalesced", Math.max(0, states - fannedOut.get()));
+    }
+
+}
@@ -7,6 +7,7 @@ import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerResponse;
 import io.vertx.core.impl.NoStackTraceThrowable;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
@@ -15,17 +16,22 @@ import io.vertx.ext.mongo.FindOptions;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
 import io.vertx.ext.web.handler.StaticHandler;
-import it.beng.microservice.common.AsyncHandler;
-import it.beng.microservice.db.MongoDB;
 import it.beng.modeler.config.cpd;
+import it.beng.modeler.microservice.feedback.FeedbackQueue;
 import it.beng.modeler.microservice.http.JsonResponse;
+import it.beng.modeler.microservice.metrics.Metrics;
+import it.beng.modeler.microservice.metrics.Prometheus;
+import it.beng.modeler.microservice.summaries.ProcedureSummaries;
+import it.beng.modeler.microservice.utils.AggregateCursor;
 import it.beng.modeler.microservice.utils.AuthUtils;
+import it.beng.modeler.microservice.utils.CommandTemplates;
+import it.beng.modeler.microservice.utils.DBIndexes;
 import it.beng.modeler.microservice.utils.DBUtils;
-import it.beng.modeler.microservice.utils.JsonUtils;
 import it.beng.modeler.model.Domain;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.nio.charset.StandardCharsets;
 import java.time.OffsetDateTime;
 import java.util.*;
 import java.util.regex.Pattern;
@@ -98,6 +104,14 @@ public final class ApiSubRoute extends VoidSubRoute {
 
         router.route(HttpMethod.PUT, path + "diagram/:id.svg").handler(this::putModelDiagramSVG);
 
+        // admin
+        router.route(HttpMethod.GET, path + "admin/metrics").handler(this::getMetrics);
+        router.route(HttpMethod.GET, path + "admin/metrics/prometheus").handler(this::getPrometheusMetrics);
+        router.route(HttpMethod.GET, path + "admin/db/indexes").handler(this::getDBIndexes);
+        router.route(HttpMethod.GET, path + "admin/db/explain").handler(this::getDBExplain);
+        router.route(HttpMethod.POST, path + "admin/procedure/summaries/rebuild")
+              .handler(this::postProcedureSummariesRebuild);
+
         // // diagram
         // router.route(HttpMethod.GET, path + "diagram/:id").handler(this::getDiagramElement);
         // router.route(HttpMethod.PUT, path + "diagram").handler(this::putDiagramElement);
@@ -125,16 +139,10 @@ public final class ApiSubRoute extends VoidSubRoute {
 
     private void getProcedureEServiceCount(RoutingContext context) {
         String procedureId = context.pathParam("procedureId");
-        MongoDB.Command command = mongodb.command("getProcedureEServiceCount", new HashMap<String, String>() {
-            private static final long serialVersionUID = 1L;
-
-            {
-                put("procedureId", procedureId);
-            }
-        });
-        mongodb.runCommand("aggregate", command, ar -> {
+        JsonObject parameters = new JsonObject().put("procedureId", procedureId);
+        CommandTemplates.aggregate("getProcedureEServiceCount", parameters, ar -> {
             if (ar.succeeded()) {
-                JsonArray result = ar.result().getJsonArray("result");
+                JsonArray result = ar.result();
                 if (result.size() > 0)
                     new JsonResponse(context).end(result.getJsonObject(0));
                 else
@@ -147,17 +155,11 @@ public final class ApiSubRoute extends VoidSubRoute {
 
     private void getProcedureUserFeedbackCount(RoutingContext context) {
         String procedureId = context.pathParam("procedureId");
-        MongoDB.Command command = mongodb.command("getProcedureUserFeedbackCount", new HashMap<String, String>() {
-            private static final long serialVersionUID = 1L;
-
-            {
-                put("procedureId", procedureId);
-            }
-        });
-        mongodb.runCommand("aggregate", command, ar -> {
+        JsonObject parameters = new JsonObject().put("procedureId", procedureId);
+        CommandTemplates.aggregate("getProcedureUserFeedbackCount", parameters, ar -> {
             if (ar.succeeded()) {
                 JsonResponse response = new JsonResponse(context);
-                JsonArray result = ar.result().getJsonArray("result");
+                JsonArray result = ar.result();
                 if (result.size() > 0) {
                     if (procedureId != null)
                         response.end(result.getJsonObject(0));
@@ -171,30 +173,32 @@ public final class ApiSubRoute extends VoidSubRoute {
         });
     }
 
-    private void getProcedureSummaryCommand(String procedureId, String eServiceId, String appHref, AsyncHandler<JsonArray> handler) {
-        MongoDB.Command command = mongodb.command("getProcedureSummary", new HashMap<String, String>() {{
-            put("procedureId", procedureId != null ? "\"_id\":\"" + procedureId + "\"," : "");
-            put("eServiceId", eServiceId != null ? "\"phases.eServiceIds\": \"" + eServiceId + "\"" : "");
-            put("appDiagramUrl", appHref + cpd.app.designerPath);
-            put("appDiagramSvg", cpd.server.apiHref() + "diagram/");
-        }});
-        mongodb.runCommand("aggregate", command, ar -> {
-            if (ar.succeeded()) {
-                handler.handle(Future.succeededFuture(ar.result().getJsonArray("result")));
-            } else {
-                handler.handle(Future.failedFuture(ar.cause()));
-            }
-        });
+    /**
+     * Serves the summaries (the first one if {@code single}) from the procedure summaries view, answering
+     * "304 Not Modified" when the client already has them.
+     */
+    private void getProcedureSummaries(RoutingContext context, JsonObject query, boolean single) {
+        ProcedureSummaries.find(query, cpd.server.appHref(context) + cpd.app.designerPath,
+            cpd.server.apiHref() + "diagram/", find -> {
+                if (find.failed()) {
+                    context.fail(find.cause());
+                    return;
+                }
+                context.response().putHeader("ETag", find.result().etag);
+                if (find.result().etag.equals(context.request().getHeader("If-None-Match"))) {
+                    context.response().setStatusCode(HttpResponseStatus.NOT_MODIFIED.code()).end();
+                    return;
+                }
+                final List<JsonObject> summaries = find.result().list;
+                if (single)
+                    new JsonResponse(context).end(summaries.isEmpty() ? null : summaries.get(0));
+                else
+                    new JsonResponse(context).end(summaries);
+            });
     }
 
     private void getProcedureSummaryList(RoutingContext context) {
-        getProcedureSummaryCommand(null, null, cpd.server.appHref(context), command -> {
-            if (command.succeeded()) {
-                new JsonResponse(context).end(command.result());
-            } else {
-                context.fail(command.cause());
-            }
-        });
+        getProcedureSummaries(context, new JsonObject(), false);
     }
 
     private void getProcedureSummary(RoutingContext context) {
@@ -203,13 +207,7 @@ public final class ApiSubRoute extends VoidSubRoute {
             context.fail(new NullPointerException());
             return;
         }
-        getProcedureSummaryCommand(procedureId, null, cpd.server.appHref(context), command -> {
-            if (command.succeeded()) {
-                new JsonResponse(context).end(JsonUtils.firstOrNull(command.result()));
-            } else {
-                context.fail(command.cause());
-            }
-        });
+        getProcedureSummaries(context, new JsonObject().put("id", procedureId), true);
     }
 
     private void getProcedureEServiceSummary(RoutingContext context) {
@@ -218,13 +216,18 @@ public final class ApiSubRoute extends VoidSubRoute {
             context.fail(new NullPointerException());
             return;
         }
-        getProcedureSummaryCommand(null, eServiceId, cpd.server.appHref(context), command -> {
-            if (command.succeeded()) {
-                new JsonResponse(context).end(JsonUtils.firstOrNull(command.result()));
-            } else {
-                context.fail(command.cause());
-            }
-        });
+        getProcedureSummaries(context, new JsonObject().put("eServiceIds", eServiceId), true);
+    }
+
+    private void postProcedureSummariesRebuild(RoutingContext context) {
+        if (isAdminFailOtherwise(context)) {
+            ProcedureSummaries.rebuild(rebuild -> {
+                if (rebuild.succeeded())
+                    new JsonResponse(context).end(new JsonObject().put("summaries", rebuild.result()));
+                else
+                    context.fail(rebuild.cause());
+            });
+        }
     }
 
     private void getEServiceSummary(RoutingContext context) {
@@ -249,6 +252,46 @@ public final class ApiSubRoute extends VoidSubRoute {
         return range;
     }
 
+    /**
+     * @return the continuation token of the feedback following {@code feedback}, in (dateTime, id) order
+     */
+    private static String feedbackToken(JsonObject feedback) {
+        final JsonObject position = new JsonObject()
+            .put("dateTime", feedback.getJsonObject("dateTime").getString("$date"))
+            .put("id", feedback.getString("id"));
+        return Base64.getUrlEncoder().withoutPadding()
+                     .encodeToString(position.encode().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the condition of the feedbacks following the continuation token
+     * @throws IllegalArgumentException if the token is not valid
+     */
+    private static JsonArray feedbackAfter(String token) {
+        final JsonObject position;
+        try {
+            position = new JsonObject(new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("invalid continuation token");
+        }
+        if (position.getValue("dateTime") instanceof String && position.getValue("id") instanceof String) {
+            final JsonObject dateTime = new JsonObject().put("$date", position.getString("dateTime"));
+            return new JsonArray()
+                .add(new JsonObject().put("dateTime", new JsonObject().put("$gt", dateTime)))
+                .add(new JsonObject()
+                    .put("dateTime", dateTime)
+                    .put("_id", new JsonObject().put("$gt", position.getString("id"))));
+        }
+        throw new IllegalArgumentException("invalid continuation token");
+    }
+
+    /**
+     * Streams the feedbacks of the range, in (dateTime, id) order, from an aggregate cursor to a chunked response,
+     * reading the next batch only once the response can take it. At most {@code limit} feedbacks are returned
+     * (all of them by default), followed by the continuation token of the next page ({@code null} if there are
+     * no more): it is the {@code after} parameter of the next request. With {@code format=ndjson} (or accepting
+     * {@code application/x-ndjson}) each feedback is a line, and the token is the last line {@code {"next"}}.
+     */
     private void getUserFeedback(RoutingContext context) {
         OffsetDateTime fromDateTime = DBUtils.parseDateTime(context.pathParam("fromDateTime"));
         if (fromDateTime == null) {
@@ -259,20 +302,79 @@ public final class ApiSubRoute extends VoidSubRoute {
         }
         OffsetDateTime toDateTime = DBUtils.parseDateTime(context.pathParam("toDateTime"));
         JsonObject dateTimeRange = mongoDateTimeRange(fromDateTime, toDateTime);
-        MongoDB.Command command = mongodb.command("getUserFeedback", new HashMap<String, String>() {{
-                put("dateTimeRange", dateTimeRange.encode());
-                put("appDiagramUrl", cpd.server.appHref(context) + cpd.app.designerPath);
-                put("appDiagramSvg", cpd.server.apiHref() + "model/diagram/");
-            }}
-        );
-        mongodb.runCommand("aggregate", command, ar -> {
-            if (ar.succeeded()) {
-                new JsonResponse(context).end(new JsonObject().put("dateTimeRange", dateTimeRange)
-                                                              .put("feedbackList",
-                                                                  ar.result().getJsonArray("result")));
-            } else {
-                context.fail(ar.cause());
+        JsonObject parameters = new JsonObject()
+            .put("dateTimeRange", dateTimeRange)
+            .put("appDiagramUrl", cpd.server.appHref(context) + cpd.app.designerPath)
+            .put("appDiagramSvg", cpd.server.apiHref() + "model/diagram/");
+        final int limit;
+        try {
+            final String after = context.request().getParam("after");
+            if (after != null && !after.isEmpty())
+                parameters.put("after", feedbackAfter(after));
+            final String limitParam = context.request().getParam("limit");
+            limit = limitParam != null ? Integer.parseInt(limitParam) : 0;
+            if (limit < 0)
+                throw new IllegalArgumentException("limit must not be negative");
+            if (limit > 0)
+                parameters.put("limitStage", new JsonObject().put("$limit", limit));
+        } catch (IllegalArgumentException e) {
+            context.fail(new NoStackTraceThrowable(e instanceof NumberFormatException
+                ? "limit must be a number" : e.getMessage()));
+            return;
+        }
+        final String accept = context.request().getHeader("Accept");
+        final boolean ndjson = "ndjson".equals(context.request().getParam("format"))
+            || accept != null && accept.contains("application/x-ndjson");
+        CommandTemplates.cursor("getUserFeedback", parameters, cpd.server.feedback.batchSize, cursor -> {
+            if (cursor.failed()) {
+                context.fail(cursor.cause());
+                return;
+            }
+            final HttpServerResponse response = context.response()
+                                                       .setChunked(true)
+                                                       .putHeader("Content-Type", ndjson
+                                                           ? "application/x-ndjson; charset=utf-8"
+                                                           : "application/json; charset=utf-8");
+            response.closeHandler(closed -> cursor.result().close());
+            if (!ndjson)
+                response.write("{\"dateTimeRange\":" + dateTimeRange.encode() + ",\"feedbackList\":[");
+            streamUserFeedback(response, cursor.result(), ndjson, limit, 0, null);
+        });
+    }
+
+    private static void streamUserFeedback(HttpServerResponse response, AggregateCursor cursor, boolean ndjson,
+                                           int limit, int count, JsonObject last) {
+        cursor.next(next -> {
+            if (response.closed()) return;
+            if (next.failed()) {
+                // the status is already sent: the truncated body (no final token) tells the client to resume
+                logger.error("feedback export failed after " + count + " feedbacks: " + next.cause().getMessage());
+                cursor.close();
+                response.close();
+                return;
             }
+            final List<JsonObject> batch = next.result();
+            if (batch.isEmpty()) {
+                final String token = limit > 0 && count == limit ? feedbackToken(last) : null;
+                response.end(ndjson
+                    ? new JsonObject().put("next", token).encode() + "\n"
+                    : "],\"next\":" + (token != null ? "\"" + token + "\"" : "null") + "}");
+                return;
+            }
+            final StringBuilder chunk = new StringBuilder();
+            for (int i = 0; i < batch.size(); i++) {
+                if (!ndjson && (count > 0 || i > 0)) chunk.append(',');
+                chunk.append(batch.get(i).encode());
+                if (ndjson) chunk.append('\n');
+            }
+            response.write(chunk.toString());
+            final int written = count + batch.size();
+            final JsonObject lastWritten = batch.get(batch.size() - 1);
+            if (response.writeQueueFull())
+                response.drainHandler(drained ->
+                    streamUserFeedback(response, cursor, ndjson, limit, written, lastWritten));
+            else
+                streamUserFeedback(response, cursor, ndjson, limit, written, lastWritten);
         });
     }
 
@@ -304,11 +406,25 @@ public final class ApiSubRoute extends VoidSubRoute {
                     .put("dateTime", DBUtils.mongoDateTime(OffsetDateTime.now()));
             //        schemaTools.validate();
 
-            mongodb.save("user.feedbacks", feedback, save -> {
-                if (save.succeeded()) {
-                    new JsonResponse(context).status(HttpResponseStatus.CREATED).end(save.result());
+            if (cpd.server.feedback.synchronous) {
+                mongodb.save("user.feedbacks", feedback, save -> {
+                    if (save.succeeded()) {
+                        new JsonResponse(context).status(HttpResponseStatus.CREATED).end(save.result());
+                    } else {
+                        context.fail(save.cause());
+                    }
+                });
+                return;
+            }
+            // acknowledged once queued, written behind
+            FeedbackQueue.append(feedback, append -> {
+                if (append.failed()) {
+                    context.fail(append.cause());
+                } else if (append.result()) {
+                    new JsonResponse(context).status(HttpResponseStatus.ACCEPTED).end(feedback.getString("id"));
                 } else {
-                    context.fail(save.cause());
+                    new JsonResponse(context).fail(new NoStackTraceThrowable("feedback queue full"),
+                        HttpResponseStatus.SERVICE_UNAVAILABLE);
                 }
             });
         }
@@ -318,6 +434,47 @@ public final class ApiSubRoute extends VoidSubRoute {
 
     // Diagram
 
+    private void getMetrics(RoutingContext context) {
+        if (isAdminFailOtherwise(context)) {
+            new JsonResponse(context).end(Metrics.snapshot());
+        }
+    }
+
+    /**
+     * Scrape endpoint: admins, or anyone presenting the configured scrape token as bearer, are allowed.
+     */
+    private void getPrometheusMetrics(RoutingContext context) {
+        final String token = cpd.server.metrics.scrapeToken;
+        final boolean scraper = token != null && !token.isEmpty()
+            && ("Bearer " + token).equals(context.request().getHeader("Authorization"));
+        if (scraper || isAdminFailOtherwise(context)) {
+            context.response()
+                   .putHeader("Content-Type", Prometheus.CONTENT_TYPE)
+                   .end(Prometheus.format(Metrics.snapshot()));
+        }
+    }
+
+    private void getDBIndexes(RoutingContext context) {
+        if (isAdminFailOtherwise(context)) {
+            DBIndexes.report(vertx, report -> {
+                if (report.succeeded()) new JsonResponse(context).end(report.result());
+                else context.fail(report.cause());
+            });
+        }
+    }
+
+    /**
+     * Explains the command templates, flagging those doing collection scans.
+     */
+    private void getDBExplain(RoutingContext context) {
+        if (isAdminFailOtherwise(context)) {
+            DBIndexes.explain(vertx, explain -> {
+                if (explain.succeeded()) new JsonResponse(context).end(explain.result());
+                else context.fail(explain.cause());
+            });
+        }
+    }
+
     private void getModelDiagramSVG(RoutingContext context) {
         String id = context.pathParam("id");
         vertx.fileSystem().readFile("web/assets/svg/" + id + ".svg", file -> {
@@ -1,5 +1,7 @@
 package it.beng.modeler.microservice.subroute;
 
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
@@ -11,22 +13,26 @@ import io.vertx.ext.auth.User;
 import io.vertx.ext.mongo.FindOptions;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
+import it.beng.microservice.common.AsyncHandler;
 import it.beng.microservice.common.Countdown;
-import it.beng.microservice.db.DeleteResult;
 import it.beng.modeler.config.cpd;
+import it.beng.modeler.microservice.actions.diagram.DiagramAction;
+import it.beng.modeler.microservice.cache.DefinitionCache;
 import it.beng.modeler.microservice.http.JsonResponse;
+import it.beng.modeler.microservice.jobs.DeletionJobs;
+import it.beng.modeler.microservice.journal.DiagramJournal;
+import it.beng.modeler.microservice.journal.DiagramSnapshots;
+import it.beng.modeler.microservice.summaries.ProcedureSummaries;
+import it.beng.modeler.microservice.templates.DiagramTemplates;
 import it.beng.modeler.microservice.utils.AuthUtils;
 import it.beng.modeler.microservice.utils.CommonUtils;
 import it.beng.modeler.microservice.utils.DBUtils;
-import it.beng.modeler.microservice.utils.ProcessEngineUtils;
 import it.beng.modeler.model.Domain;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.time.OffsetDateTime;
-import java.util.Arrays;
-import java.util.List;
-import java.util.UUID;
+import java.util.*;
 import java.util.stream.Collectors;
 
 /**
@@ -57,7 +63,10 @@ public final class CollaborationsSubRoute extends VoidSubRoute {
         router.route(HttpMethod.GET, path).handler(this::get);
 
         router.route(HttpMethod.POST, path + "new").handler(this::post);
+        router.route(HttpMethod.POST, path + ":id/clone").handler(this::post);
         router.route(HttpMethod.POST, path + "completeTask").handler(this::completeTask);
+        router.route(HttpMethod.POST, path + "delete").handler(this::deleteAll);
+        router.route(HttpMethod.GET, path + "deletions/:jobId").handler(this::deletionStatus);
 
         router.route(HttpMethod.PUT, path + ":id/team").handler(this::putTeam);
         router.route(HttpMethod.PUT, path + ":id/new").handler(this::startNew);
@@ -68,8 +77,13 @@ public final class CollaborationsSubRoute extends VoidSubRoute {
     private void completeTask(RoutingContext context) {
         try {
             JsonObject body = context.getBodyAsJson();
-            ProcessEngineUtils.completeTask(body.getJsonObject("task"), body.getJsonObject("variable"));
-            new JsonResponse(context).end();
+            cpd.processEngineService().completeTask(body.getJsonObject("task"), body.getJsonObject("variable"),
+                completeTask -> {
+                    if (completeTask.succeeded())
+                        new JsonResponse(context).end();
+                    else
+                        context.fail(completeTask.cause());
+                });
         } catch (Exception e) {
             context.fail(e);
         }
@@ -151,25 +165,28 @@ public final class CollaborationsSubRoute extends VoidSubRoute {
                 final JsonObject update = new JsonObject().put("$set", body);
                 mongodb.findOneAndUpdate(collection, query, update, findOneAndUpdate -> {
                     if (findOneAndUpdate.succeeded()) {
-                        final JsonObject result = findOneAndUpdate.result();
-                        final String $domain = result.getString("$domain");
-                        if ($domain != null && Domain.ofDefinition(Domain.Definition.DIAGRAM)
-                                                     .getDomains().contains($domain)) {
-                            JsonObject team = new JsonObject();
-                            body.forEach(entry -> {
-                                team.put(entry.getKey().substring("team.".length()), entry.getValue());
-                            });
-                            ProcessEngineUtils.update(new JsonObject()
-                                    .put("original", result)
-                                    .put("changes", new JsonObject().put("team", team)),
-                                updated -> {
-                                    if (updated.succeeded())
-                                        new JsonResponse(context).end(result);
-                                    else
-                                        context.fail(updated.cause());
-                                }
-                            );
-                        } else new JsonResponse(context).end(result);
+                        ProcedureSummaries.changed(collaborationId);
+                        journalUpdated(collaborationId, collection, query, journaled -> {
+                            final JsonObject result = findOneAndUpdate.result();
+                            final String $domain = result.getString("$domain");
+                            if ($domain != null && Domain.ofDefinition(Domain.Definition.DIAGRAM)
+                                                         .getDomains().contains($domain)) {
+                                JsonObject team = new JsonObject();
+                                body.forEach(entry -> {
+                                    team.put(entry.getKey().substring("team.".length()), entry.getValue());
+                                });
+                                cpd.processEngineService().update(new JsonObject()
+                                        .put("original", result)
+                                        .put("changes", new JsonObject().put("team", team)),
+                                    updated -> {
+                                        if (updated.succeeded())
+                                            new JsonResponse(context).end(result);
+                                        else
+                                            context.fail(updated.cause());
+                                    }
+                                );
+                            } else new JsonResponse(context).end(result);
+                        });
                     } else {
                         context.fail(findOneAndUpdate.cause());
                     }
@@ -180,6 +197,40 @@ public final class CollaborationsSubRoute extends VoidSubRoute {
         });
     }
 
+    /**
+     * Journals the (changed) diagram root as updated, so that snapshots and lagging clients see the change.
+     */
+    private void journalUpdated(String collaborationId, String collection, JsonObject query, Handler<Void> done) {
+        mongodb.findOne(collection, query, new JsonObject(), findOne -> {
+            if (findOne.failed() || findOne.result() == null) {
+                dropSnapshot(collaborationId, done);
+                return;
+            }
+            final JsonObject changes = new JsonObject()
+                .put(DiagramJournal.UPDATED, new JsonArray().add(findOne.result()));
+            DiagramJournal.journal(collaborationId, changes, journal -> {
+                if (journal.succeeded()) {
+                    DefinitionCache.invalidateInCluster(collaborationId);
+                    done.handle(null);
+                } else {
+                    logger.error("could not journal the update of diagram " + collaborationId + ": "
+                        + journal.cause().getMessage());
+                    dropSnapshot(collaborationId, done);
+                }
+            });
+        });
+    }
+
+    private static void dropSnapshot(String collaborationId, Handler<Void> done) {
+        DiagramSnapshots.drop(collaborationId, drop -> {
+            if (drop.failed())
+                logger.error("could not drop the snapshot of diagram " + collaborationId + ": "
+                    + drop.cause().getMessage());
+            DefinitionCache.invalidateInCluster(collaborationId);
+            done.handle(null);
+        });
+    }
+
     private void startNew(RoutingContext context) {
         final String collaborationId = context.pathParam("id");
         if (collaborationId == null) {
@@ -195,9 +246,13 @@ public final class CollaborationsSubRoute extends VoidSubRoute {
                         findOne -> {
                             if (findOne.succeeded()) {
                                 JsonObject collaboration = findOne.result();
-                                ProcessEngineUtils
-                                    .startCollaboration(collaborationId, collaboration.getJsonObject("team"));
-                                new JsonResponse(context).end(collaboration);
+                                cpd.processEngineService().startCollaboration(
+                                    collaborationId, collaboration.getJsonObject("team"), started -> {
+                                        if (started.succeeded())
+                                            new JsonResponse(context).end(collaboration);
+                                        else
+                                            context.fail(started.cause());
+                                    });
                             } else context.fail(findOne.cause());
                         });
                 } else context.fail(HttpResponseStatus.UNAUTHORIZED.code());
@@ -212,7 +267,11 @@ public final class CollaborationsSubRoute extends VoidSubRoute {
             final String notation = body.getString("notation");
             final String $domain = body.getString("$domain");
             final JsonObject team = body.getJsonObject("team");
-            if (notation == null || $domain == null || team == null) {
+            // a clone (or a diagram instantiated from a template) keeps the fields it is not given
+            final boolean cloning = context.pathParam("id") != null;
+            final String templateId = CommonUtils.coalesce(context.pathParam("id"), body.getString("templateId"),
+                cpd.server.templates.initial.isEmpty() ? null : cpd.server.templates.initial);
+            if (team == null || templateId == null && (notation == null || $domain == null)) {
                 context.fail(new IllegalStateException("no collaboration team provided"));
                 return;
             } else {
@@ -236,8 +295,8 @@ public final class CollaborationsSubRoute extends VoidSubRoute {
                 .put("version", CommonUtils.coalesce(body.getInteger("version"), 1))
                 .put("created", CommonUtils.coalesce(body.getJsonObject("created"), now))
                 .put("lastModified", CommonUtils.coalesce(body.getJsonObject("lastModified"), now))
-                .put("language", CommonUtils.coalesce(body.getString("language"), language))
-                .put("name", CommonUtils.coalesce(body.getString("name"), "New Diagram"))
+                .put("language", CommonUtils.coalesce(body.getString("language"), cloning ? null : language))
+                .put("name", CommonUtils.coalesce(body.getString("name"), cloning ? null : "New Diagram"))
                 .put("documentation", body.getString("documentation"))
                 .put("team", new JsonObject()
                     .put("owner", ownerIdArray)
@@ -246,6 +305,11 @@ public final class CollaborationsSubRoute extends VoidSubRoute {
                     .put("observer", CommonUtils.coalesce(team.getJsonArray("observer"), new JsonArray())))
                 .put("$domain", $domain);
 
+            if (templateId != null) {
+                instantiate(context, templateId, newDiagram, team);
+                return;
+            }
+
             final JsonObject newPlane = new JsonObject();
             newPlane
                 .put("id", UUID.randomUUID().toString())
@@ -311,35 +375,121 @@ public final class CollaborationsSubRoute extends VoidSubRoute {
                     .put("height", 120.0))
                 .put("$domain", "Di.Shape");
 
-            mongodb.save(Domain.Collection.MODELS, newDiagram, diagramSaved -> {
-                if (diagramSaved.succeeded()) {
-                    mongodb.save(Domain.Collection.DIS, newPlane, planeSaved -> {
-                        if (planeSaved.succeeded()) {
-                            mongodb.save(Domain.Collection.MODELS, newRoot, rootSaved -> {
-                                if (rootSaved.succeeded()) {
-                                    mongodb.save(Domain.Collection.DIS, newRootShape, rootShapeSaved -> {
-                                        if (rootShapeSaved.succeeded()) {
-                                            mongodb.save(Domain.Collection.MODELS, newChild, childSaved -> {
-                                                if (childSaved.succeeded()) {
-                                                    mongodb
-                                                        .save(Domain.Collection.DIS, newChildShape, childShapeSaved -> {
-                                                            if (childShapeSaved.succeeded()) {
-                                                                final String diagramId = newDiagram.getString("id");
-                                                                ProcessEngineUtils.startCollaboration(diagramId, team);
-                                                                new JsonResponse(context).end(diagramId);
-                                                            } else context.fail(childShapeSaved.cause());
-                                                        });
-                                                } else context.fail(childSaved.cause());
-                                            });
-                                        } else context.fail(rootShapeSaved.cause());
-                                    });
-                                } else context.fail(rootSaved.cause());
-                            });
-                        } else context.fail(planeSaved.cause());
-                    });
-                } else context.fail(diagramSaved.cause());
+            // all documents are built up front: one (ordered) bulk insert per collection
+            final Map<String, List<JsonObject>> documents = new LinkedHashMap<>();
+            documents.put(Domain.Collection.MODELS, Arrays.asList(newDiagram, newRoot, newChild));
+            documents.put(Domain.Collection.DIS, Arrays.asList(newPlane, newRootShape, newChildShape));
+            insert(documents, inserted -> {
+                if (inserted.succeeded())
+                    start(context, newDiagram.getString("id"), team, inserted.result());
+                else
+                    context.fail(inserted.cause());
+            });
+        }
+    }
+
+    /**
+     * Creates the collaboration as a copy of the template (or any other diagram the user can see).
+     */
+    private static void instantiate(RoutingContext context, String templateId, JsonObject newDiagram,
+                                    JsonObject team) {
+        canCopy(context.user(), templateId, canCopy -> {
+            if (canCopy.failed()) {
+                context.fail(canCopy.cause());
+                return;
+            }
+            if (!canCopy.result()) {
+                context.fail(HttpResponseStatus.UNAUTHORIZED.code());
+                return;
+            }
+            DiagramTemplates.instantiate(templateId, newDiagram, inserted -> {
+                if (inserted.succeeded())
+                    start(context, newDiagram.getString("id"), team, inserted.result());
+                else
+                    context.fail(inserted.cause());
             });
+        });
+    }
+
+    private static void canCopy(User user, String diagramId, AsyncHandler<Boolean> handler) {
+        if (isAdmin(user) || diagramId.equals(cpd.server.templates.initial)) {
+            handler.handle(Future.succeededFuture(true));
+            return;
         }
+        cpd.dataDB().findOne(Domain.ofDefinition(Domain.Definition.DIAGRAM).getCollection(),
+            new JsonObject().put("id", diagramId), new JsonObject().put("team", 1).put("template", 1), findOne -> {
+                if (findOne.failed()) {
+                    handler.handle(Future.failedFuture(findOne.cause()));
+                    return;
+                }
+                final JsonObject diagram = findOne.result();
+                if (diagram == null || diagram.getJsonObject("team") == null) {
+                    handler.handle(Future.succeededFuture(false));
+                } else if (diagram.getBoolean("template", false)) {
+                    handler.handle(Future.succeededFuture(true));
+                } else DiagramAction.isEngaged(AuthUtils.getAccount(user), diagram, handler);
+            });
+    }
+
+    /**
+     * Starts the process of the new collaboration, removing its documents if it cannot be started.
+     */
+    private static void start(RoutingContext context, String diagramId, JsonObject team,
+                              Map<String, List<String>> inserted) {
+        cpd.processEngineService().startCollaboration(diagramId, team, started -> {
+            if (started.succeeded()) {
+                ProcedureSummaries.changed(diagramId);
+                new JsonResponse(context).end(diagramId);
+                return;
+            }
+            // no collaboration without its process: the inserted documents are removed
+            DBUtils.bulkDelete(inserted, removed -> {
+                if (removed.failed())
+                    logger.error("could not remove the documents of collaboration " + diagramId
+                        + ": " + removed.cause().getMessage());
+            });
+            context.fail(started.cause());
+        });
+    }
+
+    /**
+     * Inserts the documents of each collection with a single ordered bulk write, all collections at once.
+     *
+     * @return the ids of the inserted documents, by collection (even if some insert failed, see the cause)
+     */
+    private static void insert(Map<String, List<JsonObject>> documents,
+                               AsyncHandler<Map<String, List<String>>> handler) {
+        final Map<String, List<String>> inserted = new LinkedHashMap<>();
+        final List<Throwable> failures = new LinkedList<>();
+        final Countdown countdown = new Countdown(documents.size()).onComplete(zero -> {
+            if (failures.isEmpty()) {
+                handler.handle(Future.succeededFuture(inserted));
+                return;
+            }
+            DBUtils.bulkDelete(inserted, removed -> {
+                if (removed.failed())
+                    logger.error("could not remove partially inserted documents: " + removed.cause().getMessage());
+            });
+            handler.handle(Future.failedFuture(failures.get(0)));
+        });
+        documents.forEach((collection, list) -> DBUtils.bulkWrite(collection,
+            list.stream().map(DBUtils::bulkInsert).collect(Collectors.toList()), bulkWrite -> {
+                // the write is ordered: documents before the first error are inserted
+                int insertedCount = list.size();
+                if (bulkWrite.failed()) {
+                    failures.add(bulkWrite.cause());
+                    insertedCount = 0;
+                    if (bulkWrite.cause() instanceof MongoBulkWriteException) {
+                        final List<BulkWriteError> errors =
+                            ((MongoBulkWriteException) bulkWrite.cause()).getWriteErrors();
+                        if (!errors.isEmpty()) insertedCount = errors.get(0).getIndex();
+                    }
+                }
+                inserted.put(collection, list.subList(0, insertedCount).stream()
+                                             .map(document -> document.getString("id"))
+                                             .collect(Collectors.toList()));
+                countdown.next();
+            }));
     }
 
     private void delete(RoutingContext context) {
@@ -349,47 +499,39 @@ public final class CollaborationsSubRoute extends VoidSubRoute {
                 context.fail(new NullPointerException("no id"));
                 return;
             }
-            final JsonObject idQuery = new JsonObject().put("id", id);
-            final Domain diagramDomain = Domain.ofDefinition(Domain.Definition.DIAGRAM);
-            final String diagramCollection = diagramDomain.getCollection();
-            final JsonObject diagramQuery = DBUtils.and(Arrays.asList(diagramDomain.getQuery(), idQuery));
-            mongodb.findOneAndDelete(diagramCollection, diagramQuery, deleteDiagram -> {
-                if (deleteDiagram.succeeded()) {
-                    if (deleteDiagram.result() == null) {
-                        context.fail(HttpResponseStatus.NOT_FOUND.code());
-                        return;
-                    }
-                    final JsonArray removed = new JsonArray().add(new DeleteResult(diagramCollection, 1).toJson());
-                    final Countdown countdown = new Countdown(3).onComplete(launch -> {
-                        if (launch.succeeded()) {
-                            // todo: remove process
-                            new JsonResponse(context).end(removed);
-                        }
-                    });
-                    mongodb.removeDocuments(Domain.Collection.MODELS,
-                        new JsonObject().put("designId", id), removeModels -> {
-                            if (removeModels.succeeded()) {
-                                removed.add(removeModels.result().toJson());
-                                countdown.next();
-                            } else context.fail(removeModels.cause());
-                        });
-                    mongodb.findOneAndDelete(Domain.Collection.DIS,
-                        new JsonObject().put("modelId", id), deletePlane -> {
-                            if (deletePlane.succeeded()) {
-                                removed.add(new DeleteResult(Domain.Collection.DIS, 1).toJson());
-                                JsonObject plane = deletePlane.result();
-                                mongodb.removeDocuments(Domain.Collection.DIS,
-                                    new JsonObject().put("planeId", plane.getString("id")), removeDIs -> {
-                                        if (removeDIs.succeeded()) {
-                                            removed.add(removeDIs.result().toJson());
-                                            countdown.next();
-                                        } else context.fail(removeDIs.cause());
-                                    });
-                            } else context.fail(deletePlane.cause());
-                        });
-                    ProcessEngineUtils.deleteCollaboration(id);
-                    countdown.next();
-                } else context.fail(deleteDiagram.cause());
+            startDeletion(context, Collections.singletonList(id));
+        }
+    }
+
+    private void deleteAll(RoutingContext context) {
+        if (isAdminFailOtherwise(context)) {
+            final JsonArray ids = context.getBodyAsJson().getJsonArray("ids");
+            if (ids == null || ids.stream().anyMatch(id -> !(id instanceof String))) {
+                context.fail(new IllegalStateException("no collaboration ids provided"));
+                return;
+            }
+            startDeletion(context, ids.stream().map(id -> (String) id).collect(Collectors.toList()));
+        }
+    }
+
+    private void startDeletion(RoutingContext context, List<String> ids) {
+        DeletionJobs.start(ids, start -> {
+            if (start.succeeded())
+                new JsonResponse(context).status(HttpResponseStatus.ACCEPTED).end(start.result());
+            else
+                context.fail(start.cause());
+        });
+    }
+
+    private void deletionStatus(RoutingContext context) {
+        if (isAdminFailOtherwise(context)) {
+            DeletionJobs.status(context.pathParam("jobId"), status -> {
+                if (status.failed())
+                    context.fail(status.cause());
+                else if (status.result() != null)
+                    new JsonResponse(context).end(status.result());
+                else
+                    context.fail(HttpResponseStatus.NOT_FOUND.code());
             });
         }
     }
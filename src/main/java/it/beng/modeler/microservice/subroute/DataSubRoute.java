@@ -1,6 +1,7 @@
 package it.beng.modeler.microservice.subroute;
 
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.core.json.JsonArray;
@@ -8,8 +9,15 @@ import io.vertx.core.json.JsonObject;
 import io.vertx.ext.mongo.FindOptions;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
+import it.beng.modeler.microservice.cache.DefinitionCache;
+import it.beng.modeler.microservice.cache.ExtensionsIndex;
 import it.beng.modeler.microservice.http.JsonResponse;
+import it.beng.modeler.microservice.journal.DiagramSnapshots;
+import it.beng.modeler.microservice.summaries.ProcedureSummaries;
 import it.beng.modeler.microservice.utils.JsonUtils;
+import it.beng.modeler.model.Domain;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import java.util.Map;
 
@@ -20,6 +28,7 @@ import java.util.Map;
  * @author vince
  */
 public final class DataSubRoute extends VoidSubRoute {
+    private static final Logger logger = LogManager.getLogger(DataSubRoute.class);
 
     public DataSubRoute(Vertx vertx, Router router) {
         super("data/", vertx, router, false);
@@ -114,6 +123,24 @@ public final class DataSubRoute extends VoidSubRoute {
         });
     }
 
+    private static void collectionChanged(String collection, Handler<Void> done) {
+        if (Domain.Collection.MODELS.equals(collection))
+            ProcedureSummaries.changed(null);
+        if (Domain.Collection.EXTENSIONS.equals(collection))
+            ExtensionsIndex.reloadInCluster();
+        if (!Domain.Collection.MODELS.equals(collection) && !Domain.Collection.DIS.equals(collection)) {
+            done.handle(null);
+            return;
+        }
+        // raw writes cannot be traced back to their diagram, nor journaled: no snapshot can be brought up to date
+        DiagramSnapshots.drop(null, drop -> {
+            if (drop.failed())
+                logger.error("could not drop the diagram snapshots: " + drop.cause().getMessage());
+            DefinitionCache.invalidateInCluster(null);
+            done.handle(null);
+        });
+    }
+
     private void postCollection(RoutingContext context) {
         if (isLoggedInOrFail(context)) {
             String collection = context.pathParam("collection");
@@ -125,7 +152,8 @@ public final class DataSubRoute extends VoidSubRoute {
                         mongodb.insert(collection, document, save -> {
                             JsonResponse response = new JsonResponse(context);
                             if (save.succeeded()) {
-                                response.status(HttpResponseStatus.CREATED).end(save.result());
+                                collectionChanged(collection, changed ->
+                                    response.status(HttpResponseStatus.CREATED).end(save.result()));
                             } else {
                                 context.fail(save.cause());
                             }
@@ -146,7 +174,8 @@ public final class DataSubRoute extends VoidSubRoute {
             JsonObject item = context.getBodyAsJson();
             mongodb.save(collection, item, save -> {
                 if (save.succeeded()) {
-                    new JsonResponse(context).status(HttpResponseStatus.CREATED).end(save.result());
+                    collectionChanged(collection, changed ->
+                        new JsonResponse(context).status(HttpResponseStatus.CREATED).end(save.result()));
                 } else {
                     context.fail(save.cause());
                 }
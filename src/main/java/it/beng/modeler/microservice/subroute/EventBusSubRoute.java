@@ -7,8 +7,12 @@ import io.vertx.ext.web.handler.sockjs.BridgeOptions;
 import io.vertx.ext.web.handler.sockjs.SockJSHandler;
 import io.vertx.ext.web.handler.sockjs.SockJSHandlerOptions;
 import it.beng.modeler.config.cpd;
+import it.beng.modeler.microservice.metrics.BridgeMetrics;
 import it.beng.modeler.microservice.services.BridgeEventService;
 import it.beng.modeler.microservice.services.DiagramActionService;
+import it.beng.modeler.microservice.services.FrameCodec;
+import it.beng.modeler.microservice.services.OutboundQueue;
+import it.beng.modeler.microservice.services.PresenceService;
 import it.beng.modeler.microservice.utils.EventBusUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -25,6 +29,7 @@ public final class EventBusSubRoute extends VoidSubRoute {
         // register the bridge event services here.
         // NOTE: insertion order is used for handler evaluation
         BridgeEventService.registerService(DiagramActionService.class);
+        BridgeEventService.registerService(PresenceService.class);
     }
 
     public EventBusSubRoute(Vertx vertx, Router router) {
@@ -48,6 +53,9 @@ public final class EventBusSubRoute extends VoidSubRoute {
         SockJSHandler sockJSHandler = SockJSHandler.create(vertx, new SockJSHandlerOptions().setInsertJSESSIONID(true))
                                                    .bridge(bridgeOptions, event -> {
                                                        EventBusUtils.log(event);
+                                                       BridgeMetrics.inbound(event);
+                                                       FrameCodec.handle(event);
+                                                       if (OutboundQueue.handle(event)) return;
                                                        boolean handled = false;
                                                        for (BridgeEventService service : BridgeEventService
                                                            .services()) {
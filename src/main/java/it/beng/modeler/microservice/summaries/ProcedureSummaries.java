@@ -0,0 +1,250 @@
+package it.beng.modeler.microservice.summaries;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.BulkOperation;
+import io.vertx.ext.mongo.FindOptions;
+import it.beng.microservice.common.AsyncHandler;
+import it.beng.modeler.config.cpd;
+import it.beng.modeler.microservice.metrics.Metrics;
+import it.beng.modeler.microservice.utils.CommandTemplates;
+import it.beng.modeler.microservice.utils.DBUtils;
+import it.beng.modeler.model.Domain;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * <p>The {@code procedure.summaries} collection: the results of the {@code getProcedureSummary} aggregate, kept
+ * as {@code {id, diagramId, eServiceIds, etag, summary}} documents.</p>
+ * When the models of a diagram change, the summaries of its procedures are refreshed (once, {@code
+ * cpd.server.summaries.refreshDelay} after the last change). Summaries are stored with relative urls, the
+ * application and api hrefs of the request being prepended when they are served.
+ */
+public final class ProcedureSummaries {
+    private static final Logger logger = LogManager.getLogger(ProcedureSummaries.class);
+
+    private static final String COMMAND = "getProcedureSummary";
+    // the key of a refresh of all the summaries
+    private static final String ALL = "";
+
+    private static Vertx vertx;
+    private static final Set<String> pending = new HashSet<>();
+    private static final Set<String> running = new HashSet<>();
+
+    private static final AtomicLong refreshes = new AtomicLong();
+    private static final AtomicLong rebuilds = new AtomicLong();
+    private static final AtomicLong failures = new AtomicLong();
+
+    private ProcedureSummaries() {}
+
+    /**
+     * Starts refreshing the summaries, backfilling the collection if it is empty.
+     */
+    public static void start(Vertx vertx, AsyncHandler<Void> handler) {
+        ProcedureSummaries.vertx = vertx;
+        Metrics.register("procedureSummaries", ProcedureSummaries::metrics);
+        cpd.mongoClient().count(Domain.Collection.PROCEDURE_SUMMARIES, new JsonObject(), count -> {
+            if (count.succeeded() && count.result() == 0) {
+                logger.info("backfilling the procedure summaries");
+                changed(null);
+            }
+        });
+        handler.handle(Future.succeededFuture());
+    }
+
+    /**
+     * Schedules the refresh of the summaries of the diagram (of all of them if {@code diagramId} is {@code null}).
+     */
+    public static void changed(String diagramId) {
+        if (vertx == null) return;
+        final String key = diagramId != null ? diagramId : ALL;
+        synchronized (pending) {
+            if (!pending.add(key)) return;
+        }
+        vertx.setTimer(Math.max(1, cpd.server.summaries.refreshDelay), timer -> refresh(key));
+    }
+
+    private static void refresh(String key) {
+        synchronized (pending) {
+            if (running.contains(key) || !running.isEmpty() && (ALL.equals(key) || running.contains(ALL))) {
+                // wait for the running refresh, which may not see the latest changes
+                vertx.setTimer(Math.max(1, cpd.server.summaries.refreshDelay), timer -> refresh(key));
+                return;
+            }
+            pending.remove(key);
+            running.add(key);
+        }
+        final AsyncHandler<Integer> done = refresh -> {
+            synchronized (pending) {
+                running.remove(key);
+            }
+            if (refresh.failed()) {
+                failures.incrementAndGet();
+                logger.error("could not refresh the procedure summaries"
+                    + (ALL.equals(key) ? "" : " of diagram " + key) + ": " + refresh.cause().getMessage());
+            }
+        };
+        if (ALL.equals(key))
+            rebuild(done);
+        else
+            refresh(key, done);
+    }
+
+    /**
+     * Rebuilds all the summaries.
+     *
+     * @return the number of summaries
+     */
+    public static void rebuild(AsyncHandler<Integer> handler) {
+        rebuilds.incrementAndGet();
+        store(new JsonObject(), new JsonObject(), handler);
+    }
+
+    private static void refresh(String diagramId, AsyncHandler<Integer> handler) {
+        refreshes.incrementAndGet();
+        store(new JsonObject().put("diagramId", diagramId), new JsonObject().put("diagramId", diagramId), handler);
+    }
+
+    /**
+     * Stores the summaries found by the aggregate, removing the ones in {@code scope} no longer found.
+     */
+    private static void store(JsonObject parameters, JsonObject scope, AsyncHandler<Integer> handler) {
+        CommandTemplates.aggregate(COMMAND, parameters
+            .put("appDiagramUrl", "")
+            .put("appDiagramSvg", ""), aggregate -> {
+            if (aggregate.failed()) {
+                handler.handle(Future.failedFuture(aggregate.cause()));
+                return;
+            }
+            final List<JsonObject> documents = aggregate.result().stream()
+                                                        .map(summary -> document((JsonObject) summary))
+                                                        .collect(Collectors.toList());
+            final JsonArray ids = new JsonArray(documents.stream()
+                                                         .map(document -> document.getString("id"))
+                                                         .collect(Collectors.toList()));
+            final AsyncHandler<Void> removeStale = stored -> {
+                if (stored.failed()) {
+                    handler.handle(Future.failedFuture(stored.cause()));
+                    return;
+                }
+                cpd.mongoClient().removeDocuments(Domain.Collection.PROCEDURE_SUMMARIES,
+                    scope.copy().put("_id", new JsonObject().put("$nin", ids)), remove -> {
+                        if (remove.succeeded())
+                            handler.handle(Future.succeededFuture(documents.size()));
+                        else
+                            handler.handle(Future.failedFuture(remove.cause()));
+                    });
+            };
+            if (documents.isEmpty()) {
+                removeStale.handle(Future.succeededFuture());
+                return;
+            }
+            final List<BulkOperation> operations = documents.stream()
+                                                            .map(DBUtils::bulkSave)
+                                                            .collect(Collectors.toList());
+            DBUtils.bulkWrite(Domain.Collection.PROCEDURE_SUMMARIES, operations, bulkWrite -> {
+                if (bulkWrite.succeeded())
+                    removeStale.handle(Future.succeededFuture());
+                else
+                    removeStale.handle(Future.failedFuture(bulkWrite.cause()));
+            });
+        });
+    }
+
+    private static JsonObject document(JsonObject summary) {
+        final String diagramId = (String) summary.remove("diagramId");
+        final Set<String> eServiceIds = new LinkedHashSet<>();
+        summary.getJsonArray("phases", new JsonArray()).forEach(phase -> {
+            final JsonArray phaseEServiceIds = ((JsonObject) phase).getJsonArray("eServiceIds");
+            if (phaseEServiceIds != null)
+                phaseEServiceIds.forEach(eServiceId -> eServiceIds.add(String.valueOf(eServiceId)));
+        });
+        return new JsonObject()
+            .put("id", summary.getString("id"))
+            .put("diagramId", diagramId)
+            .put("eServiceIds", new JsonArray(new ArrayList<>(eServiceIds)))
+            .put("etag", digest(summary.encode()))
+            .put("summary", summary);
+    }
+
+    /**
+     * @return the summaries matching the query, with the given hrefs prepended to their urls, and their etag
+     */
+    public static void find(JsonObject query, String appDiagramUrl, String appDiagramSvg,
+                            AsyncHandler<Summaries> handler) {
+        cpd.mongoClient().findWithOptions(Domain.Collection.PROCEDURE_SUMMARIES, DBUtils.toMongo(query),
+            new FindOptions().setSort(new JsonObject().put("_id", 1)), find -> {
+                if (find.failed()) {
+                    handler.handle(Future.failedFuture(find.cause()));
+                    return;
+                }
+                final StringBuilder etags = new StringBuilder(appDiagramUrl).append('|').append(appDiagramSvg);
+                final List<JsonObject> summaries = new ArrayList<>(find.result().size());
+                find.result().forEach(found -> {
+                    final JsonObject document = DBUtils.fromMongo(found);
+                    etags.append('|').append(document.getString("etag"));
+                    summaries.add(absolute(document.getJsonObject("summary"), appDiagramUrl, appDiagramSvg));
+                });
+                handler.handle(Future.succeededFuture(
+                    new Summaries(summaries, "W/\"" + digest(etags.toString()) + "\"")));
+            });
+    }
+
+    private static JsonObject absolute(JsonObject summary, String appDiagramUrl, String appDiagramSvg) {
+        if (summary.getString("url") != null)
+            summary.put("url", appDiagramUrl + summary.getString("url"));
+        if (summary.getString("svg") != null)
+            summary.put("svg", appDiagramSvg + summary.getString("svg"));
+        summary.getJsonArray("phases", new JsonArray()).forEach(item -> {
+            final JsonObject phase = (JsonObject) item;
+            if (phase.getString("url") != null)
+                phase.put("url", appDiagramUrl + phase.getString("url"));
+        });
+        return summary;
+    }
+
+    private static String digest(String value) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder hex = new StringBuilder();
+            for (byte b : digest) hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(value.hashCode());
+        }
+    }
+
+    private static JsonObject metrics() {
+        synchronized (pending) {
+            return new JsonObject()
+                .put("pending", pending.size())
+                .put("running", running.size())
+                .put("refreshes", refreshes.get())
+                .put("rebuilds", rebuilds.get())
+                .put("failures", failures.get());
+        }
+    }
+
+    /**
+     * Summaries, with the etag of the whole list.
+     */
+    public static final class Summaries {
+        public final List<JsonObject> list;
+        public final String etag;
+
+        Summaries(List<JsonObject> list, String etag) {
+            this.list = list;
+            this.etag = etag;
+        }
+    }
+
+}
@@ -0,0 +1,225 @@
+package it.beng.modeler.microservice.templates;
+
+import com.mongodb.MongoBulkWriteException;
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.FindOptions;
+import it.beng.microservice.common.AsyncHandler;
+import it.beng.microservice.common.Countdown;
+import it.beng.microservice.db.MongoDB;
+import it.beng.modeler.config.cpd;
+import it.beng.modeler.microservice.utils.DBUtils;
+import it.beng.modeler.model.Domain;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * <p>Instantiation of new diagrams as copies of existing ones: stored templates (diagrams flagged as
+ * {@code template}) or any other diagram.</p>
+ * The ids of the documents of the source are read first, then its documents are streamed and inserted with
+ * {@code cpd.server.templates.batchSize} documents per ordered bulk write. Each copy gets a new id, and every
+ * reference to a document of the source ({@code designId}, {@code parentId}, {@code modelId}, {@code planeId},
+ * {@code prevPhaseId}... any "id", "*Id" or "*Ids" field) is remapped to its copy.
+ */
+public final class DiagramTemplates {
+    private static final Logger logger = LogManager.getLogger(DiagramTemplates.class);
+
+    private static final MongoDB mongodb = cpd.dataDB();
+
+    private static final FindOptions IDS = new FindOptions().setFields(new JsonObject().put("id", 1));
+
+    private DiagramTemplates() {}
+
+    /**
+     * Copies the source diagram as {@code diagram}, whose (not null) fields override those of the source.
+     *
+     * @return the ids of the inserted documents, by collection
+     */
+    public static void instantiate(String sourceId, JsonObject diagram,
+                                   AsyncHandler<Map<String, List<String>>> handler) {
+        final JsonObject models = new JsonObject().put("$or", new JsonArray()
+            .add(new JsonObject().put("id", sourceId))
+            .add(new JsonObject().put("designId", sourceId)));
+        final JsonObject planes = new JsonObject().put("modelId", sourceId);
+        final Map<String, List<String>> sourceIds = new LinkedHashMap<>();
+        final Countdown countdown = new Countdown(2).onComplete(found -> {
+            if (found.failed()) {
+                handler.handle(Future.failedFuture(found.cause()));
+                return;
+            }
+            if (!sourceIds.get(Domain.Collection.MODELS).contains(sourceId)) {
+                handler.handle(Future.failedFuture("diagram " + sourceId + " not found"));
+                return;
+            }
+            final JsonObject dis = new JsonObject().put("$or", new JsonArray()
+                .add(planes)
+                .add(new JsonObject().put("planeId", new JsonObject().put("$in",
+                    new JsonArray(sourceIds.get(Domain.Collection.DIS))))));
+            findIds(Domain.Collection.DIS, dis, sourceIds, disFound -> {
+                if (disFound.failed()) {
+                    handler.handle(Future.failedFuture(disFound.cause()));
+                    return;
+                }
+                copy(sourceId, diagram, sourceIds, models, dis, handler);
+            });
+        });
+        findIds(Domain.Collection.MODELS, models, sourceIds, countdown);
+        findIds(Domain.Collection.DIS, planes, sourceIds, countdown);
+    }
+
+    private static void findIds(String collection, JsonObject query, Map<String, List<String>> ids,
+                                AsyncHandler<Void> handler) {
+        mongodb.findWithOptions(collection, query, IDS, find -> {
+            if (find.failed()) {
+                handler.handle(Future.failedFuture(find.cause()));
+                return;
+            }
+            ids.put(collection, find.result().stream()
+                                    .map(document -> document.getString("id"))
+                                    .collect(Collectors.toList()));
+            handler.handle(Future.succeededFuture());
+        });
+    }
+
+    private static void findIds(String collection, JsonObject query, Map<String, List<String>> ids,
+                                Countdown countdown) {
+        findIds(collection, query, ids, found -> {
+            if (found.succeeded())
+                countdown.next();
+            else
+                countdown.fail(found.cause());
+        });
+    }
+
+    private static void copy(String sourceId, JsonObject diagram, Map<String, List<String>> sourceIds,
+                             JsonObject models, JsonObject dis, AsyncHandler<Map<String, List<String>>> handler) {
+        // source id -> copy id
+        final Map<String, String> ids = new HashMap<>();
+        sourceIds.values().forEach(list -> list.forEach(id -> ids.put(id, UUID.randomUUID().toString())));
+        ids.put(sourceId, diagram.getString("id"));
+        final Map<String, List<String>> copyIds = new LinkedHashMap<>();
+        sourceIds.forEach((collection, list) -> copyIds.put(collection,
+            list.stream().map(ids::get).collect(Collectors.toList())));
+
+        final Countdown countdown = new Countdown(2).onComplete(copied -> {
+            if (copied.succeeded()) {
+                handler.handle(Future.succeededFuture(copyIds));
+                return;
+            }
+            DBUtils.bulkDelete(copyIds, removed -> {
+                if (removed.failed())
+                    logger.error("could not remove the partial copy of diagram " + sourceId
+                        + ": " + removed.cause().getMessage());
+            });
+            handler.handle(Future.failedFuture(copied.cause()));
+        });
+        new CollectionCopy(Domain.Collection.MODELS, document -> {
+            final JsonObject copy = remap(document, ids);
+            if (!sourceId.equals(document.getString("id"))) return copy;
+            copy.remove("template");
+            diagram.forEach(field -> {
+                if (field.getValue() != null) copy.put(field.getKey(), field.getValue());
+            });
+            return copy;
+        }, countdown).start(models);
+        new CollectionCopy(Domain.Collection.DIS, document -> remap(document, ids), countdown).start(dis);
+    }
+
+    private static boolean isReference(String field) {
+        return field != null && (field.equals("id") || field.endsWith("Id") || field.endsWith("Ids"));
+    }
+
+    /**
+     * @return a copy of the document, with the ids referenced by its fields remapped
+     */
+    private static JsonObject remap(JsonObject document, Map<String, String> ids) {
+        final JsonObject copy = new JsonObject();
+        document.forEach(entry -> copy.put(entry.getKey(), remap(entry.getKey(), entry.getValue(), ids)));
+        return copy;
+    }
+
+    private static Object remap(String field, Object value, Map<String, String> ids) {
+        if (value instanceof JsonObject) {
+            return remap((JsonObject) value, ids);
+        }
+        if (value instanceof JsonArray) {
+            final JsonArray copy = new JsonArray();
+            ((JsonArray) value).forEach(item -> copy.add(remap(field, item, ids)));
+            return copy;
+        }
+        if (value instanceof String && isReference(field)) {
+            return ids.getOrDefault(value, (String) value);
+        }
+        return value;
+    }
+
+    /**
+     * Streams the documents of a collection, inserting their copies in batches.
+     */
+    private static final class CollectionCopy {
+        private final String collection;
+        private final Function<JsonObject, JsonObject> copy;
+        private final Countdown countdown;
+        private List<JsonObject> batch = new ArrayList<>();
+        private int pending;
+        private boolean ended;
+        private Throwable failure;
+
+        CollectionCopy(String collection, Function<JsonObject, JsonObject> copy, Countdown countdown) {
+            this.collection = collection;
+            this.copy = copy;
+            this.countdown = countdown;
+        }
+
+        void start(JsonObject query) {
+            mongodb.findBatch(collection, query, find -> {
+                if (ended) return;
+                if (find.failed()) {
+                    failure = find.cause();
+                    ended = true;
+                } else if (find.result() == null) {
+                    ended = true;
+                    flush();
+                } else {
+                    batch.add(copy.apply(find.result()));
+                    if (batch.size() >= cpd.server.templates.batchSize) flush();
+                    return;
+                }
+                done();
+            });
+        }
+
+        private void flush() {
+            if (batch.isEmpty() || failure != null) return;
+            final List<JsonObject> documents = batch;
+            batch = new ArrayList<>();
+            pending++;
+            DBUtils.bulkWrite(collection,
+                documents.stream().map(DBUtils::bulkInsert).collect(Collectors.toList()), bulkWrite -> {
+                    pending--;
+                    if (bulkWrite.failed() && failure == null) {
+                        failure = bulkWrite.cause() instanceof MongoBulkWriteException
+                            && !((MongoBulkWriteException) bulkWrite.cause()).getWriteErrors().isEmpty()
+                            ? new IllegalStateException(
+                                ((MongoBulkWriteException) bulkWrite.cause()).getWriteErrors().get(0).getMessage())
+                            : bulkWrite.cause();
+                    }
+                    done();
+                });
+        }
+
+        private void done() {
+            if (!ended || pending > 0) return;
+            if (failure == null)
+                countdown.next();
+            else
+                countdown.fail(failure);
+        }
+    }
+
+}
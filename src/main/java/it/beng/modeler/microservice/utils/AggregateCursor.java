@@ -0,0 +1,107 @@
+package it.beng.modeler.microservice.utils;
+
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import it.beng.microservice.common.AsyncHandler;
+import it.beng.modeler.config.cpd;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * <p>Server side cursor of an aggregate, read one batch at a time with {@code getMore}.</p>
+ * Nothing is read until the next batch is asked for, so the reader sets the pace (e.g. the write queue of a
+ * response). A cursor not read to its end must be closed.
+ */
+public final class AggregateCursor {
+    private static final Logger logger = LogManager.getLogger(AggregateCursor.class);
+
+    private final String collection;
+    private final int batchSize;
+    private final boolean mapped;
+    private long id;
+    private List<JsonObject> firstBatch;
+
+    private AggregateCursor(String collection, int batchSize, boolean mapped, JsonObject cursor) {
+        this.collection = collection;
+        this.batchSize = batchSize;
+        this.mapped = mapped;
+        this.id = cursor.getLong("id", 0L);
+        this.firstBatch = documents(cursor.getJsonArray("firstBatch"));
+    }
+
+    /**
+     * Runs the aggregate, with the data mappings (e.g. "_id" => "id") applied to its results if {@code mapped}.
+     */
+    static void open(JsonObject aggregate, int batchSize, boolean mapped, AsyncHandler<AggregateCursor> handler) {
+        aggregate.put("cursor", new JsonObject().put("batchSize", batchSize));
+        cpd.mongoClient().runCommand("aggregate", aggregate, open -> {
+            if (open.succeeded())
+                handler.handle(Future.succeededFuture(new AggregateCursor(
+                    aggregate.getString("aggregate"), batchSize, mapped, open.result().getJsonObject("cursor"))));
+            else
+                handler.handle(Future.failedFuture(open.cause()));
+        });
+    }
+
+    private List<JsonObject> documents(JsonArray batch) {
+        if (batch == null) return Collections.emptyList();
+        return batch.stream()
+                    .map(document -> mapped ? DBUtils.fromMongo((JsonObject) document) : (JsonObject) document)
+                    .collect(Collectors.toList());
+    }
+
+    /**
+     * @return the next batch, empty when the cursor is exhausted
+     */
+    public void next(AsyncHandler<List<JsonObject>> handler) {
+        if (firstBatch != null) {
+            final List<JsonObject> batch = firstBatch;
+            firstBatch = null;
+            // an empty first batch of an open cursor is not its end
+            if (!batch.isEmpty() || id == 0) {
+                handler.handle(Future.succeededFuture(batch));
+                return;
+            }
+        }
+        if (id == 0) {
+            handler.handle(Future.succeededFuture(Collections.emptyList()));
+            return;
+        }
+        final JsonObject getMore = new JsonObject()
+            .put("getMore", id)
+            .put("collection", collection)
+            .put("batchSize", batchSize);
+        cpd.mongoClient().runCommand("getMore", getMore, next -> {
+            if (next.failed()) {
+                id = 0;
+                handler.handle(Future.failedFuture(next.cause()));
+                return;
+            }
+            final JsonObject cursor = next.result().getJsonObject("cursor");
+            id = cursor.getLong("id", 0L);
+            handler.handle(Future.succeededFuture(documents(cursor.getJsonArray("nextBatch"))));
+        });
+    }
+
+    /**
+     * Releases the server side cursor, if it is still open.
+     */
+    public void close() {
+        firstBatch = null;
+        if (id == 0) return;
+        final JsonObject killCursors = new JsonObject()
+            .put("killCursors", collection)
+            .put("cursors", new JsonArray().add(id));
+        id = 0;
+        cpd.mongoClient().runCommand("killCursors", killCursors, kill -> {
+            if (kill.failed())
+                logger.warn("could not kill a cursor on " + collection + ": " + kill.cause().getMessage());
+        });
+    }
+
+}
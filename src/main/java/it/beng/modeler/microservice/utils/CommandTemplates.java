@@ -0,0 +1,318 @@
+package it.beng.modeler.microservice.utils;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import it.beng.microservice.common.AsyncHandler;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * <p>Mongo command templates ({@code data/db/commands}), compiled once at startup.</p>
+ * A template is plain JSON where a string value {@code "{name[:type][?]}"} is a parameter slot, whose type is one
+ * of {@code string} (the default), {@code number}, {@code boolean}, {@code object}, {@code array} or {@code any}.
+ * An optional slot ({@code ?}) is dropped, with its member, when its parameter is missing or null. Binding the
+ * parameters builds a new command from the compiled tree, putting each value as it is: nothing is spliced into
+ * the JSON text, so no value needs (or can escape) quoting.
+ */
+public final class CommandTemplates {
+    private static final Logger logger = LogManager.getLogger(CommandTemplates.class);
+
+    private static final Pattern SLOT = Pattern.compile("^\\{([A-Za-z]\\w*)(?::(\\w+))?(\\?)?}$");
+    private static final Object ABSENT = new Object();
+    private static final int BATCH_SIZE = 1000;
+
+    private static final Map<String, Template> TEMPLATES = new HashMap<>();
+
+    private CommandTemplates() {}
+
+    /**
+     * Compiles all the templates found (recursively) in the directory. It blocks.
+     *
+     * @throws IllegalArgumentException if a template is not valid
+     */
+    public static void compile(Vertx vertx, String directory) {
+        final Map<String, Template> templates = new HashMap<>();
+        compile(vertx, directory, directory, templates);
+        synchronized (TEMPLATES) {
+            TEMPLATES.clear();
+            TEMPLATES.putAll(templates);
+        }
+        logger.info(templates.size() + " command templates compiled");
+    }
+
+    private static void compile(Vertx vertx, String root, String directory, Map<String, Template> templates) {
+        for (String path : vertx.fileSystem().readDirBlocking(directory)) {
+            if (vertx.fileSystem().propsBlocking(path).isDirectory()) {
+                compile(vertx, root, path, templates);
+            } else if (path.endsWith(".json")) {
+                final String name = path.substring(path.indexOf(root) + root.length(), path.length() - 5);
+                final String source = vertx.fileSystem().readFileBlocking(path).toString();
+                try {
+                    templates.put(name, new Template(name, source));
+                } catch (RuntimeException e) {
+                    throw new IllegalArgumentException("command template " + name + ": " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the names of the compiled templates
+     */
+    public static Set<String> names() {
+        synchronized (TEMPLATES) {
+            return new TreeSet<>(TEMPLATES.keySet());
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if there is no such template
+     */
+    public static Template get(String name) {
+        final Template template;
+        synchronized (TEMPLATES) {
+            template = TEMPLATES.get(name);
+        }
+        if (template == null) throw new IllegalArgumentException("no command template " + name);
+        return template;
+    }
+
+    /**
+     * Runs the aggregate template, with the data mappings (e.g. "_id" => "id") applied to its results.
+     */
+    public static void aggregate(String name, JsonObject parameters, AsyncHandler<JsonArray> handler) {
+        aggregate(name, parameters, true, handler);
+    }
+
+    /**
+     * Runs the aggregate template, returning its results as they are in the database.
+     */
+    public static void rawAggregate(String name, JsonObject parameters, AsyncHandler<JsonArray> handler) {
+        aggregate(name, parameters, false, handler);
+    }
+
+    private static void aggregate(String name, JsonObject parameters, boolean mapped,
+                                  AsyncHandler<JsonArray> handler) {
+        final JsonObject command;
+        try {
+            command = get(name).bind(parameters);
+        } catch (IllegalArgumentException e) {
+            handler.handle(Future.failedFuture(e));
+            return;
+        }
+        // the results are read to the end: the first batch alone holds only the first 101 documents
+        AggregateCursor.open(command, BATCH_SIZE, mapped, open -> {
+            if (open.succeeded())
+                drain(open.result(), new JsonArray(), handler);
+            else
+                handler.handle(Future.failedFuture(open.cause()));
+        });
+    }
+
+    private static void drain(AggregateCursor cursor, JsonArray results, AsyncHandler<JsonArray> handler) {
+        cursor.next(next -> {
+            if (next.failed()) {
+                cursor.close();
+                handler.handle(Future.failedFuture(next.cause()));
+                return;
+            }
+            if (next.result().isEmpty()) {
+                handler.handle(Future.succeededFuture(results));
+                return;
+            }
+            next.result().forEach(results::add);
+            drain(cursor, results, handler);
+        });
+    }
+
+    /**
+     * Opens a cursor on the aggregate template, to read its results {@code batchSize} at a time (with the data
+     * mappings applied).
+     */
+    public static void cursor(String name, JsonObject parameters, int batchSize,
+                              AsyncHandler<AggregateCursor> handler) {
+        final JsonObject command;
+        try {
+            command = get(name).bind(parameters);
+        } catch (IllegalArgumentException e) {
+            handler.handle(Future.failedFuture(e));
+            return;
+        }
+        AggregateCursor.open(command, batchSize, true, handler);
+    }
+
+    private enum Type {
+        STRING, NUMBER, BOOLEAN, OBJECT, ARRAY, ANY;
+
+        boolean accepts(Object value) {
+            switch (this) {
+                case STRING:
+                    return value instanceof String;
+                case NUMBER:
+                    return value instanceof Number;
+                case BOOLEAN:
+                    return value instanceof Boolean;
+                case OBJECT:
+                    return value instanceof JsonObject;
+                case ARRAY:
+                    return value instanceof JsonArray;
+                default:
+                    return true;
+            }
+        }
+    }
+
+    private interface Node {
+        /**
+         * @return the bound value, or {@link #ABSENT} if it must be left out
+         */
+        Object bind(String template, JsonObject parameters);
+    }
+
+    private static final class Constant implements Node {
+        private final Object value;
+
+        Constant(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public Object bind(String template, JsonObject parameters) {
+            if (value instanceof JsonObject) return ((JsonObject) value).copy();
+            if (value instanceof JsonArray) return ((JsonArray) value).copy();
+            return value;
+        }
+    }
+
+    private static final class Slot implements Node {
+        private final String name;
+        private final Type type;
+        private final boolean optional;
+
+        Slot(String name, Type type, boolean optional) {
+            this.name = name;
+            this.type = type;
+            this.optional = optional;
+        }
+
+        @Override
+        public Object bind(String template, JsonObject parameters) {
+            final Object value = parameters.getValue(name);
+            if (value == null) {
+                if (optional) return ABSENT;
+                if (!parameters.containsKey(name))
+                    throw new IllegalArgumentException("command " + template + ": missing parameter " + name);
+                return null;
+            }
+            if (!type.accepts(value))
+                throw new IllegalArgumentException("command " + template + ": parameter " + name + " must be "
+                    + type.name().toLowerCase() + ", not " + value.getClass().getSimpleName());
+            return value;
+        }
+    }
+
+    private static final class ObjectNode implements Node {
+        private final Map<String, Node> members;
+
+        ObjectNode(Map<String, Node> members) {
+            this.members = members;
+        }
+
+        @Override
+        public Object bind(String template, JsonObject parameters) {
+            final JsonObject object = new JsonObject();
+            members.forEach((key, member) -> {
+                final Object value = member.bind(template, parameters);
+                if (value != ABSENT) object.put(key, value);
+            });
+            return object;
+        }
+    }
+
+    private static final class ArrayNode implements Node {
+        private final List<Node> items;
+
+        ArrayNode(List<Node> items) {
+            this.items = items;
+        }
+
+        @Override
+        public Object bind(String template, JsonObject parameters) {
+            final JsonArray array = new JsonArray();
+            items.forEach(item -> {
+                final Object value = item.bind(template, parameters);
+                if (value != ABSENT) array.add(value);
+            });
+            return array;
+        }
+    }
+
+    /**
+     * A compiled command template.
+     */
+    public static final class Template {
+        private final String name;
+        private final Node root;
+        private final Map<String, Type> parameters = new LinkedHashMap<>();
+
+        private Template(String name, String source) {
+            this.name = name;
+            this.root = compile(new JsonObject(source));
+        }
+
+        public String name() {
+            return name;
+        }
+
+        /**
+         * @return the parameters of the template, with their types
+         */
+        public JsonObject parameters() {
+            final JsonObject parameters = new JsonObject();
+            this.parameters.forEach((name, type) -> parameters.put(name, type.name().toLowerCase()));
+            return parameters;
+        }
+
+        /**
+         * @return a new command, with the parameters in their slots
+         * @throws IllegalArgumentException if a (non optional) parameter is missing, or has the wrong type
+         */
+        public JsonObject bind(JsonObject parameters) {
+            return (JsonObject) root.bind(name, parameters);
+        }
+
+        private Node compile(Object value) {
+            if (value instanceof JsonObject) {
+                final Map<String, Node> members = new LinkedHashMap<>();
+                ((JsonObject) value).forEach(member -> members.put(member.getKey(), compile(member.getValue())));
+                return members.values().stream().allMatch(member -> member instanceof Constant)
+                    ? new Constant(value) : new ObjectNode(members);
+            }
+            if (value instanceof JsonArray) {
+                final List<Node> items = ((JsonArray) value).stream().map(this::compile).collect(Collectors.toList());
+                return items.stream().allMatch(item -> item instanceof Constant)
+                    ? new Constant(value) : new ArrayNode(items);
+            }
+            if (value instanceof String) {
+                final Matcher slot = SLOT.matcher((String) value);
+                if (slot.matches()) {
+                    final Type type = slot.group(2) != null ? Type.valueOf(slot.group(2).toUpperCase()) : Type.STRING;
+                    final Type previous = parameters.put(slot.group(1), type);
+                    if (previous != null && previous != type)
+                        throw new IllegalArgumentException("parameter " + slot.group(1) + " is both "
+                            + previous.name().toLowerCase() + " and " + type.name().toLowerCase());
+                    return new Slot(slot.group(1), type, slot.group(3) != null);
+                }
+            }
+            return new Constant(value);
+        }
+    }
+
+}
@@ -5,7 +5,10 @@ import io.vertx.core.json.JsonObject;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
 /**
@@ -16,11 +19,36 @@ import java.util.stream.Stream;
 public final class CommonUtils {
     public static final Predicate<String> NON_EMPTY_STRING = p -> p != null && !p.trim().isEmpty();
     public static final Predicate<JsonObject> NON_EMPTY_JSON_OBJECT = p -> p != null && !p.isEmpty();
+    private static final Pattern DURATION = Pattern.compile("(\\d+)\\s*(ms|s|m|h|d|)");
 
     public static <T> T coalesce(T... objects) {
         return Stream.of(objects).filter(Objects::nonNull).findFirst().orElse(null);
     }
 
+    /**
+     * Parses a duration like "500ms", "30s", "60m", "12h" or "1d" (a bare number is taken as milliseconds).
+     *
+     * @return the duration in milliseconds
+     */
+    public static long parseDuration(String duration) {
+        final Matcher matcher = DURATION.matcher(duration == null ? "" : duration.trim());
+        if (!matcher.matches())
+            throw new IllegalArgumentException("invalid duration: " + duration);
+        final long value = Long.parseLong(matcher.group(1));
+        switch (matcher.group(2)) {
+            case "s":
+                return TimeUnit.SECONDS.toMillis(value);
+            case "m":
+                return TimeUnit.MINUTES.toMillis(value);
+            case "h":
+                return TimeUnit.HOURS.toMillis(value);
+            case "d":
+                return TimeUnit.DAYS.toMillis(value);
+            default:
+                return value;
+        }
+    }
+
     public static String implicitUrlOriginPort(String url) {
         try {
             URL u = new URL(url);
@@ -0,0 +1,304 @@
+package it.beng.modeler.microservice.utils;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.IndexOptions;
+import it.beng.microservice.common.AsyncHandler;
+import it.beng.microservice.common.Countdown;
+import it.beng.modeler.config.cpd;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * <p>Declarative indexes of the data collections, as listed in {@code data/db/indexes.json}.</p>
+ * At startup the missing indexes are created (in background) and those not in the manifest are reported.
+ * An index is there if an index with the same name or the same key exists, so indexes created by hand are
+ * never duplicated. The manifest also holds the {@code $explain} parameters used to explain the
+ * {@link CommandTemplates}.
+ */
+public final class DBIndexes {
+    private static final Logger logger = LogManager.getLogger(DBIndexes.class);
+
+    private static final String MANIFEST = cpd.DB_PATH + "indexes.json";
+    private static final String EXPLAIN = "$explain";
+
+    private DBIndexes() {}
+
+    private static void manifest(Vertx vertx, AsyncHandler<JsonObject> handler) {
+        vertx.fileSystem().readFile(MANIFEST, readFile -> {
+            if (readFile.succeeded())
+                handler.handle(Future.succeededFuture(readFile.result().toJsonObject()));
+            else
+                handler.handle(Future.failedFuture(readFile.cause()));
+        });
+    }
+
+    private static Map<String, JsonArray> collections(JsonObject manifest) {
+        final Map<String, JsonArray> collections = new LinkedHashMap<>();
+        manifest.forEach(entry -> {
+            if (!entry.getKey().startsWith("$")) collections.put(entry.getKey(), (JsonArray) entry.getValue());
+        });
+        return collections;
+    }
+
+    /**
+     * Creates the missing indexes. It never fails: indexes that cannot be created are only logged.
+     */
+    public static void ensure(Vertx vertx, AsyncHandler<Void> handler) {
+        manifest(vertx, manifest -> {
+            if (manifest.failed()) {
+                logger.warn("no index manifest: " + manifest.cause().getMessage());
+                handler.handle(Future.succeededFuture());
+                return;
+            }
+            final Map<String, JsonArray> collections = collections(manifest.result());
+            if (collections.isEmpty()) {
+                handler.handle(Future.succeededFuture());
+                return;
+            }
+            final Countdown countdown = new Countdown(collections.size()).onComplete(done ->
+                handler.handle(Future.succeededFuture()));
+            collections.forEach((collection, indexes) -> status(collection, indexes, status -> {
+                if (status.failed()) {
+                    logger.error("could not list the indexes of " + collection + ": " + status.cause().getMessage());
+                    countdown.next();
+                    return;
+                }
+                status.result().getJsonArray("unmanaged").forEach(name ->
+                    logger.warn("index " + collection + "." + name + " is not in the index manifest"));
+                status.result().getJsonArray("mismatched").forEach(name ->
+                    logger.warn("index " + collection + "." + name + " differs from the index manifest"));
+                final List<JsonObject> missing = indexes.stream()
+                                                        .map(index -> (JsonObject) index)
+                                                        .filter(index -> status.result().getJsonArray("missing")
+                                                                               .contains(index.getString("name")))
+                                                        .collect(Collectors.toList());
+                create(collection, missing.iterator(), countdown);
+            }));
+        });
+    }
+
+    private static void create(String collection, Iterator<JsonObject> indexes, Countdown countdown) {
+        if (!indexes.hasNext()) {
+            countdown.next();
+            return;
+        }
+        final JsonObject index = indexes.next();
+        final IndexOptions options = new IndexOptions(index.getJsonObject("options", new JsonObject()))
+            .name(index.getString("name"))
+            .background(true);
+        logger.info("creating index " + collection + "." + index.getString("name") + " " + index.getJsonObject("key"));
+        cpd.mongoClient().createIndexWithOptions(collection, index.getJsonObject("key"), options, create -> {
+            if (create.failed())
+                logger.error("could not create index " + collection + "." + index.getString("name") + ": "
+                    + create.cause().getMessage());
+            create(collection, indexes, countdown);
+        });
+    }
+
+    /**
+     * A text index is keyed by its (weighted) terms, whatever fields they come from.
+     */
+    private static String signature(JsonObject key) {
+        if (key.containsKey("_fts") || key.getMap().containsValue("text")) return "text";
+        return key.stream()
+                  .map(field -> field.getKey() + ":" + (field.getValue() instanceof Number
+                      ? String.valueOf(((Number) field.getValue()).intValue()) : field.getValue()))
+                  .collect(Collectors.joining(","));
+    }
+
+    /**
+     * @return whether the existing index has another key, or other {@code unique} and {@code sparse} options,
+     * than the index of the manifest with its name
+     */
+    private static boolean mismatched(JsonObject index, JsonObject existing) {
+        final JsonObject options = index.getJsonObject("options", new JsonObject());
+        return !signature(index.getJsonObject("key")).equals(signature(existing.getJsonObject("key")))
+            || options.getBoolean("unique", false) != existing.getBoolean("unique", false)
+            || options.getBoolean("sparse", false) != existing.getBoolean("sparse", false);
+    }
+
+    /**
+     * @return {@code {missing, mismatched, unmanaged, unused}} index names of the collection, where unused indexes
+     * are those never used since the server started (or {@code null} if their usage cannot be read)
+     */
+    private static void status(String collection, JsonArray manifest, AsyncHandler<JsonObject> handler) {
+        cpd.mongoClient().listIndexes(collection, listIndexes -> {
+            if (listIndexes.failed()) {
+                handler.handle(Future.failedFuture(listIndexes.cause()));
+                return;
+            }
+            final Set<String> names = new HashSet<>();
+            final Set<String> signatures = new HashSet<>();
+            final Map<String, String> existing = new LinkedHashMap<>();
+            final Map<String, JsonObject> existingIndexes = new HashMap<>();
+            listIndexes.result().forEach(item -> {
+                final JsonObject index = (JsonObject) item;
+                existing.put(index.getString("name"), signature(index.getJsonObject("key")));
+                existingIndexes.put(index.getString("name"), index);
+            });
+            final JsonArray missing = new JsonArray();
+            final JsonArray mismatched = new JsonArray();
+            manifest.forEach(item -> {
+                final JsonObject index = (JsonObject) item;
+                names.add(index.getString("name"));
+                signatures.add(signature(index.getJsonObject("key")));
+                if (existingIndexes.containsKey(index.getString("name"))) {
+                    if (mismatched(index, existingIndexes.get(index.getString("name"))))
+                        mismatched.add(index.getString("name"));
+                } else if (!existing.containsValue(signature(index.getJsonObject("key"))))
+                    missing.add(index.getString("name"));
+            });
+            final JsonArray unmanaged = new JsonArray();
+            existing.forEach((name, signature) -> {
+                if (!"_id_".equals(name) && !names.contains(name) && !signatures.contains(signature))
+                    unmanaged.add(name);
+            });
+            final JsonObject status = new JsonObject()
+                .put("missing", missing)
+                .put("mismatched", mismatched)
+                .put("unmanaged", unmanaged);
+            final JsonObject indexStats = new JsonObject()
+                .put("aggregate", collection)
+                .put("pipeline", new JsonArray().add(new JsonObject().put("$indexStats", new JsonObject())))
+                .put("cursor", new JsonObject());
+            cpd.mongoClient().runCommand("aggregate", indexStats, stats -> {
+                if (stats.failed()) {
+                    // $indexStats needs mongo 3.2 and the clusterMonitor role
+                    handler.handle(Future.succeededFuture(status.putNull("unused")));
+                    return;
+                }
+                final JsonArray unused = new JsonArray();
+                stats.result().getJsonObject("cursor", new JsonObject()).getJsonArray("firstBatch", new JsonArray())
+                     .forEach(item -> {
+                         final JsonObject stat = (JsonObject) item;
+                         final JsonObject accesses = stat.getJsonObject("accesses", new JsonObject());
+                         if (!"_id_".equals(stat.getString("name")) && accesses.getValue("ops") instanceof Number
+                             && ((Number) accesses.getValue("ops")).longValue() == 0)
+                             unused.add(stat.getString("name"));
+                     });
+                handler.handle(Future.succeededFuture(status.put("unused", unused)));
+            });
+        });
+    }
+
+    /**
+     * @return the index status of each collection of the manifest
+     */
+    public static void report(Vertx vertx, AsyncHandler<JsonObject> handler) {
+        manifest(vertx, manifest -> {
+            if (manifest.failed()) {
+                handler.handle(Future.failedFuture(manifest.cause()));
+                return;
+            }
+            final Map<String, JsonArray> collections = collections(manifest.result());
+            final JsonObject report = new JsonObject();
+            if (collections.isEmpty()) {
+                handler.handle(Future.succeededFuture(report));
+                return;
+            }
+            final Countdown countdown = new Countdown(collections.size()).onComplete(done ->
+                handler.handle(Future.succeededFuture(report)));
+            collections.forEach((collection, indexes) -> status(collection, indexes, status -> {
+                synchronized (report) {
+                    report.put(collection, status.succeeded()
+                        ? status.result() : new JsonObject().put("error", status.cause().getMessage()));
+                }
+                countdown.next();
+            }));
+        });
+    }
+
+    /**
+     * Explains each aggregate command template (with the {@code $explain} parameters of the manifest, any other
+     * string parameter being a dummy string) and flags the collection scans of its winning plans.
+     *
+     * @return {@code {<template>: {collection, stages, collectionScan} | {skipped} | {error}}}
+     */
+    public static void explain(Vertx vertx, AsyncHandler<JsonObject> handler) {
+        manifest(vertx, manifest -> {
+            final JsonObject parameters = manifest.succeeded()
+                ? manifest.result().getJsonObject(EXPLAIN, new JsonObject()) : new JsonObject();
+            final Set<String> names = CommandTemplates.names();
+            final JsonObject report = new JsonObject();
+            if (names.isEmpty()) {
+                handler.handle(Future.succeededFuture(report));
+                return;
+            }
+            final Countdown countdown = new Countdown(names.size()).onComplete(done ->
+                handler.handle(Future.succeededFuture(report)));
+            names.forEach(name -> explain(CommandTemplates.get(name), parameters, explain -> {
+                synchronized (report) {
+                    report.put(name, explain.succeeded()
+                        ? explain.result() : new JsonObject().put("error", explain.cause().getMessage()));
+                }
+                countdown.next();
+            }));
+        });
+    }
+
+    private static void explain(CommandTemplates.Template template, JsonObject parameters,
+                                AsyncHandler<JsonObject> handler) {
+        final JsonObject bound = new JsonObject();
+        final Set<String> unresolved = new TreeSet<>();
+        template.parameters().forEach(parameter -> {
+            if (parameters.containsKey(parameter.getKey()))
+                bound.put(parameter.getKey(), parameters.getValue(parameter.getKey()));
+            else if ("string".equals(parameter.getValue()))
+                bound.put(parameter.getKey(), "explain");
+            else
+                unresolved.add(parameter.getKey());
+        });
+        if (!unresolved.isEmpty()) {
+            handler.handle(Future.succeededFuture(new JsonObject()
+                .put("skipped", "no $explain value for " + unresolved)));
+            return;
+        }
+        final JsonObject aggregate;
+        try {
+            aggregate = template.bind(bound);
+        } catch (IllegalArgumentException e) {
+            handler.handle(Future.failedFuture(e));
+            return;
+        }
+        if (!(aggregate.getValue("aggregate") instanceof String)) {
+            handler.handle(Future.succeededFuture(new JsonObject().put("skipped", "not an aggregate")));
+            return;
+        }
+        cpd.mongoClient().runCommand("aggregate", aggregate.put("explain", true), explain -> {
+            if (explain.failed()) {
+                handler.handle(Future.failedFuture(explain.cause()));
+                return;
+            }
+            final List<String> stages = new LinkedList<>();
+            stages(explain.result(), stages);
+            handler.handle(Future.succeededFuture(new JsonObject()
+                .put("collection", aggregate.getString("aggregate"))
+                .put("stages", new JsonArray(stages))
+                .put("collectionScan", stages.contains("COLLSCAN"))));
+        });
+    }
+
+    /**
+     * Collects the stages of the (winning) query plans, wherever they are nested in the explain output.
+     */
+    private static void stages(Object explain, List<String> stages) {
+        if (explain instanceof JsonObject) {
+            ((JsonObject) explain).forEach(field -> {
+                if ("rejectedPlans".equals(field.getKey())) return;
+                if ("stage".equals(field.getKey()) && field.getValue() instanceof String)
+                    stages.add((String) field.getValue());
+                else
+                    stages(field.getValue(), stages);
+            });
+        } else if (explain instanceof JsonArray) {
+            ((JsonArray) explain).forEach(item -> stages(item, stages));
+        }
+    }
+
+}
@@ -3,9 +3,14 @@ package it.beng.modeler.microservice.utils;
 import io.vertx.core.Future;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.BulkOperation;
+import io.vertx.ext.mongo.BulkWriteOptions;
+import io.vertx.ext.mongo.MongoClientBulkWriteResult;
 import it.beng.microservice.common.AsyncHandler;
+import it.beng.microservice.common.Countdown;
 import it.beng.microservice.db.MongoDB;
 import it.beng.modeler.config.cpd;
+import it.beng.modeler.microservice.actions.diagram.DiagramAction;
 import it.beng.modeler.model.Domain;
 
 import java.time.OffsetDateTime;
@@ -175,6 +180,213 @@ public final class DBUtils {
         );
     }
 
+    /* BULK */
+
+    private static final BulkWriteOptions ORDERED = new BulkWriteOptions().setOrdered(true);
+    private static final String VERSION = cpd.dataMappings().get("$version");
+    private static final String WRITE = cpd.dataMappings().get("$write");
+    // the ids of the latest writes kept in "$write": enough for the writes of a thing in a single revision
+    private static final int WRITES = 16;
+    private static final Map<String, String> FROM_MONGO = cpd.dataMappings().entrySet().stream()
+                                                             .collect(Collectors.toMap(Map.Entry::getValue,
+                                                                 Map.Entry::getKey));
+
+    private static Object toMongoValue(Object value) {
+        if (value instanceof JsonObject)
+            return toMongo((JsonObject) value);
+        if (value instanceof JsonArray)
+            return new JsonArray(((JsonArray) value).stream()
+                                                    .map(DBUtils::toMongoValue)
+                                                    .collect(Collectors.toList()));
+        return value;
+    }
+
+    /**
+     * Applies the data mappings (e.g. "id" => "_id", "$domain" => "＄domain") to a document that is going to be sent
+     * straight to the mongo client, bypassing the {@link MongoDB} wrapper.
+     */
+    public static JsonObject toMongo(JsonObject document) {
+        final Map<String, String> mappings = cpd.dataMappings();
+        final JsonObject result = new JsonObject();
+        document.forEach(entry -> result.put(
+            mappings.getOrDefault(entry.getKey(), entry.getKey()),
+            toMongoValue(entry.getValue())));
+        return result;
+    }
+
+    private static Object fromMongoValue(Object value) {
+        if (value instanceof JsonObject)
+            return fromMongo((JsonObject) value);
+        if (value instanceof JsonArray)
+            return new JsonArray(((JsonArray) value).stream()
+                                                    .map(DBUtils::fromMongoValue)
+                                                    .collect(Collectors.toList()));
+        return value;
+    }
+
+    /**
+     * Reverts the data mappings (e.g. "_id" => "id") of a document read straight from the mongo client.
+     */
+    public static JsonObject fromMongo(JsonObject document) {
+        final JsonObject result = new JsonObject();
+        document.forEach(entry -> result.put(
+            FROM_MONGO.getOrDefault(entry.getKey(), entry.getKey()),
+            fromMongoValue(entry.getValue())));
+        return result;
+    }
+
+    public static BulkOperation bulkSave(JsonObject document) {
+        final JsonObject mongoDocument = toMongo(document);
+        return BulkOperation.createReplace(
+            new JsonObject().put("_id", mongoDocument.getValue("_id")), mongoDocument, true);
+    }
+
+    public static BulkOperation bulkInsert(JsonObject document) {
+        return BulkOperation.createInsert(toMongo(document));
+    }
+
+    public static BulkOperation bulkReplace(JsonObject document) {
+        final JsonObject mongoDocument = toMongo(document);
+        return BulkOperation.createReplace(
+            new JsonObject().put("_id", mongoDocument.getValue("_id")), mongoDocument);
+    }
+
+    /**
+     * Replaces the stored document (its fields not in {@code document} are unset) if it has the expected version.
+     * Like a patch, the replacement increments the version and records its write id.
+     *
+     * @param version the version the document is expected to have (see {@link #bulkPatch})
+     * @param stored  the document as it is stored, or {@code null} if it is not known
+     * @param write   the unique id of this write (see {@link #bulkPatch})
+     */
+    public static BulkOperation bulkVersionedReplace(JsonObject document, Long version, JsonObject stored,
+                                                     String write) {
+        final JsonObject set = toMongo(document);
+        final String id = (String) set.remove("_id");
+        set.remove(VERSION);
+        set.remove(WRITE);
+        final JsonObject unset = new JsonObject();
+        if (stored != null)
+            toMongo(stored).fieldNames().stream()
+                           .filter(field -> !set.containsKey(field) && !"_id".equals(field)
+                               && !VERSION.equals(field) && !WRITE.equals(field))
+                           .forEach(field -> unset.put(field, ""));
+        final JsonObject update = new JsonObject().put("$inc", new JsonObject().put(VERSION, 1));
+        if (!set.isEmpty()) update.put("$set", set);
+        if (!unset.isEmpty()) update.put("$unset", unset);
+        return BulkOperation.createUpdate(versionFilter(id, version), written(update, write));
+    }
+
+    private static JsonObject written(JsonObject update, String write) {
+        return update.put("$push", new JsonObject().put(WRITE, new JsonObject()
+            .put("$each", new JsonArray().add(write))
+            .put("$slice", -WRITES)));
+    }
+
+    private static JsonObject versionFilter(String id, Long version) {
+        final JsonObject filter = new JsonObject().put("_id", id);
+        if (version != null)
+            filter.put(VERSION, version == 0 ? new JsonObject().put("$exists", false) : version);
+        return filter;
+    }
+
+    /**
+     * Compiles field level changes into a targeted update. Nested objects are merged (as by
+     * {@code JsonObject.mergeIn(changes, true)}) one field at a time, {@code null} values unset their field.
+     * The "id", "$version" and "$write" fields cannot be changed: the version is incremented by every patch.
+     * Mongo cannot set a field inside a {@code null} or scalar value: a nested object replaces as a whole
+     * the stored value that is not an object, hence the {@code stored} document (if {@code null}, every
+     * stored value the changes are nested into is expected to be an object, or missing).
+     */
+    public static JsonObject patch(JsonObject changes, JsonObject stored) {
+        final JsonObject set = new JsonObject();
+        final JsonObject unset = new JsonObject();
+        final JsonObject mongoChanges = toMongo(changes);
+        mongoChanges.remove("_id");
+        mongoChanges.remove(VERSION);
+        mongoChanges.remove(WRITE);
+        flatten("", mongoChanges, stored != null ? toMongo(stored) : null, set, unset);
+        final JsonObject update = new JsonObject().put("$inc", new JsonObject().put(VERSION, 1));
+        if (!set.isEmpty()) update.put("$set", set);
+        if (!unset.isEmpty()) update.put("$unset", unset);
+        return update;
+    }
+
+    private static void flatten(String prefix, JsonObject changes, JsonObject stored, JsonObject set,
+                                JsonObject unset) {
+        changes.forEach(entry -> {
+            final String path = prefix + entry.getKey();
+            final Object value = entry.getValue();
+            if (value == null)
+                unset.put(path, "");
+            else if (!(value instanceof JsonObject))
+                set.put(path, value);
+            else {
+                final boolean missing = stored == null || !stored.containsKey(entry.getKey());
+                final Object current = missing ? null : stored.getValue(entry.getKey());
+                if (missing || current instanceof JsonObject)
+                    // mongo creates the nested fields of a missing value
+                    flatten(path + ".", (JsonObject) value, (JsonObject) current, set, unset);
+                else
+                    set.put(path, withoutNulls((JsonObject) value));
+            }
+        });
+    }
+
+    private static JsonObject withoutNulls(JsonObject object) {
+        final JsonObject result = new JsonObject();
+        object.forEach(entry -> {
+            if (entry.getValue() instanceof JsonObject)
+                result.put(entry.getKey(), withoutNulls((JsonObject) entry.getValue()));
+            else if (entry.getValue() != null)
+                result.put(entry.getKey(), entry.getValue());
+        });
+        return result;
+    }
+
+    /**
+     * @param version the version the document is expected to have (0 if it has never been patched),
+     *                or {@code null} to patch it whatever its version
+     * @param stored  the document as it is stored, needed if the changes are nested
+     *                (see {@link #patch(JsonObject, JsonObject)})
+     * @param write   the unique id of this write, added to the latest ones in "$write": finding it there once
+     *                written tells that the patch matched the document
+     */
+    public static BulkOperation bulkPatch(String id, Long version, JsonObject changes, JsonObject stored,
+                                          String write) {
+        return BulkOperation.createUpdate(versionFilter(id, version), written(patch(changes, stored), write));
+    }
+
+    public static BulkOperation bulkDelete(String id) {
+        return BulkOperation.createDelete(new JsonObject().put("_id", id));
+    }
+
+    public static void bulkWrite(String collection, List<BulkOperation> operations,
+                                 AsyncHandler<MongoClientBulkWriteResult> handler) {
+        cpd.mongoClient().bulkWriteWithOptions(collection, operations, ORDERED, handler);
+    }
+
+    /**
+     * Deletes the documents with the given ids, by collection, with one bulk write per collection.
+     */
+    public static void bulkDelete(Map<String, List<String>> ids, AsyncHandler<Void> handler) {
+        final Map<String, List<String>> notEmpty = ids.entrySet().stream()
+                                                      .filter(entry -> !entry.getValue().isEmpty())
+                                                      .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        if (notEmpty.isEmpty()) {
+            handler.handle(Future.succeededFuture());
+            return;
+        }
+        final Countdown countdown = new Countdown(notEmpty.size()).onComplete(handler);
+        notEmpty.forEach((collection, list) -> bulkWrite(collection,
+            list.stream().map(DBUtils::bulkDelete).collect(Collectors.toList()), bulkWrite -> {
+                if (bulkWrite.succeeded())
+                    countdown.next();
+                else
+                    countdown.fail(bulkWrite.cause());
+            }));
+    }
+
     /* TEAM */
 
     public static void team(String collaborationId, AsyncHandler<JsonObject> handler) {
@@ -189,4 +401,25 @@ public final class DBUtils {
             });
     }
 
+    /* DEFINITION */
+
+    /**
+     * Runs the {@code getDiagramDefinition} aggregate.
+     */
+    public static void diagramDefinition(String diagramId, AsyncHandler<JsonObject> handler) {
+        final JsonObject parameters = new JsonObject().put("diagramId", diagramId);
+        final String name = DiagramAction.COMMAND_PATH + "getDiagramDefinition";
+        CommandTemplates.aggregate(name, parameters, getDiagramDefinition -> {
+            if (getDiagramDefinition.succeeded()) {
+                JsonObject definition = JsonUtils.firstOrNull(getDiagramDefinition.result());
+                if (definition != null)
+                    handler.handle(Future.succeededFuture(definition));
+                else
+                    handler.handle(Future.failedFuture("definition not found"));
+            } else {
+                handler.handle(Future.failedFuture(getDiagramDefinition.cause()));
+            }
+        });
+    }
+
 }
@@ -13,11 +13,10 @@ public final class EventBusUtils {
     private static final Logger logger = LogManager.getLogger(EventBusUtils.class);
 
     public static void log(BridgeEvent event) {
-        if (event.type() != BridgeEventType.SOCKET_PING) {
+        // nothing is allocated (or encoded) unless debug is enabled
+        if (event.type() != BridgeEventType.SOCKET_PING && logger.isDebugEnabled()) {
             JsonObject message = event.getRawMessage();
-            logger.debug("EVENT BUS: $1 $2"
-                .replace("$1", event.type().name())
-                .replace("$2", message != null ? message.encodePrettily() : "-"));
+            logger.debug("EVENT BUS: {} {}", event.type().name(), message != null ? message.encodePrettily() : "-");
         }
     }
 
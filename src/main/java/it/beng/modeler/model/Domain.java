@@ -18,9 +18,15 @@ public class Domain {
 
     public static final class Collection {
         public static final String PROPERTIES = "properties";
+        public static final String DELETION_JOBS = "deletion.jobs";
+        public static final String DIAGRAM_JOURNAL = "diagram.journal";
+        public static final String DIAGRAM_REVISIONS = "diagram.revisions";
+        public static final String DIAGRAM_SNAPSHOTS = "diagram.snapshots";
         public static final String DIS = "dis";
+        public static final String EXTENSIONS = "extensions";
         public static final String MODELS = "models";
         public static final String NOTATIONS = "notations";
+        public static final String PROCEDURE_SUMMARIES = "procedure.summaries";
         public static final String SCHEMAS = "schemas";
         public static final String USERS = "users";
         public static final String USER_FEEDBACKS = "user.feedbacks";